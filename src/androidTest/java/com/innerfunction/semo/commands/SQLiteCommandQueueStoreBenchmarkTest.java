@@ -0,0 +1,78 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Instrumented benchmark of the append and drain rates of the SQLite and journal queue stores.
+ * Run with connectedAndroidTest; results are logged and written to the app's files directory.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SQLiteCommandQueueStoreBenchmarkTest {
+
+    static final String Tag = SQLiteCommandQueueStoreBenchmarkTest.class.getSimpleName();
+
+    /** The name of the queue used by the benchmark; distinct from the app's own queue. */
+    static final String QueueName = "com.innerfunction.semo.command-scheduler-benchmark";
+
+    @Test
+    public void testQueueStores() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase( QueueName );
+        File baseDir = new File( context.getCacheDir(), "benchmark");
+        deleteAll( baseDir );
+
+        CommandQueueStoreBenchmark benchmark = new CommandQueueStoreBenchmark();
+        CommandQueueStore sqliteStore = new SQLiteCommandQueueStore( context );
+        sqliteStore.setName( QueueName );
+        assertSimulationCorrect( benchmark.run("sqlite", sqliteStore ) );
+        CommandQueueStore journalStore = new JournalCommandQueueStore( baseDir );
+        journalStore.setName( QueueName );
+        assertSimulationCorrect( benchmark.run("journal", journalStore ) );
+
+        Log.i( Tag, benchmark.toJSON() );
+        benchmark.writeResults( new File( context.getFilesDir(), "benchmarks/command-queue-stores.json") );
+        context.deleteDatabase( QueueName );
+        deleteAll( baseDir );
+    }
+
+    static void assertSimulationCorrect(Map<String,Object> results) {
+        Map simulation = (Map)results.get("simulation");
+        assertEquals( 0, ((Number)simulation.get("errorCount")).intValue() );
+        assertEquals( results.get("appended"), results.get("drained") );
+    }
+
+    static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if( files != null ) {
+            for( File child : files ) {
+                deleteAll( child );
+            }
+        }
+        file.delete();
+    }
+}
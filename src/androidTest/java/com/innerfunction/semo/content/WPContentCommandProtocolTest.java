@@ -0,0 +1,174 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.content;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.innerfunction.semo.db.Column;
+import com.innerfunction.semo.db.DB;
+import com.innerfunction.semo.db.DBFilter;
+import com.innerfunction.semo.db.Table;
+import com.innerfunction.util.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.innerfunction.util.DataLiterals.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Instrumented tests of feed deploys by the content protocol, against a post DB on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WPContentCommandProtocolTest {
+
+    static final String Tag = WPContentCommandProtocolTest.class.getSimpleName();
+
+    static final String DBName = "com.innerfunction.semo.content-test";
+    /** The number of trashed posts deployed by the throughput test. */
+    static final int TrashedPostCount = 5000;
+
+    Context context;
+    DB postDB;
+    File stagingDir;
+    WPContentCommandProtocol protocol;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase( DBName );
+        postDB = new DB();
+        postDB.setAndroidContext( context );
+        postDB.setName( DBName );
+        postDB.setVersion( 1 );
+        postDB.setTableSchema(
+            new Table("posts",
+                new Column("id", "INTEGER", "id"),
+                new Column("title", "TEXT"),
+                new Column("type", "TEXT"),
+                new Column("status", "TEXT"),
+                new Column("modified", "TEXT"),
+                new Column("filename", "TEXT"),
+                new Column("parent", "INTEGER")),
+            new Table("closures",
+                new Column("parent", "INTEGER"),
+                new Column("child", "INTEGER"),
+                new Column("depth", "INTEGER")));
+        postDB.startService();
+        stagingDir = new File( context.getCacheDir(), "content-test");
+        stagingDir.mkdirs();
+        protocol = new WPContentCommandProtocol( context );
+        protocol.setPostDB( postDB );
+        protocol.setStagingPath( stagingDir.getAbsolutePath() );
+        protocol.setContentPath( new File( stagingDir, "content").getAbsolutePath() );
+    }
+
+    @After
+    public void tearDown() {
+        postDB.stopService();
+        context.deleteDatabase( DBName );
+        new File( stagingDir, "feed.json").delete();
+    }
+
+    /**
+     * Test that a post whose parent is trashed in the same chunk has no closure entries left from
+     * its old ancestors.
+     */
+    @Test
+    public void testTrashedParentInChunk() {
+        deploy( Arrays.asList( post("1", "0", "publish"), post("2", "1", "publish"), post("3", "2", "publish") ) );
+        assertEquals( 1, countClosures("parent = 1 AND child = 3") );
+
+        // Post 2 is trashed; post 3 is updated after it in the same chunk.
+        deploy( Arrays.asList( post("2", "1", "trash"), post("3", "2", "publish") ) );
+        assertEquals( 0, countClosures("parent = 2 OR child = 2") );
+        assertEquals( 0, countClosures("parent = 1 AND child = 3") );
+        assertEquals( 1, countClosures("parent = 3 AND child = 3") );
+    }
+
+    /** Test that deployed posts read back the same as maps, through DB filters and as typed records. */
+    @Test
+    public void testDeployedPostReads() {
+        deploy( Arrays.asList( post("1", "0", "publish"), post("2", "1", "publish") ) );
+        Map<String,Object> values = postDB.read("posts", "2");
+        assertEquals( 2, values.get("id") );
+        assertEquals( 1, values.get("parent") );
+        assertEquals( "Post 2", values.get("title") );
+
+        DBFilter filter = new DBFilter();
+        filter.setTable("posts");
+        filter.setFilters( m( kv("parent", "1") ) );
+        List<Map<String,Object>> children = filter.applyTo( postDB, null );
+        assertEquals( 1, children.size() );
+        assertEquals( values, children.get( 0 ) );
+
+        postDB.registerRowMapper("posts", Post.class, Post.Mapper );
+        Post post = postDB.read("posts", "2", Post.class );
+        assertEquals( 2, post.id );
+        assertEquals( Integer.valueOf( 1 ), post.parent );
+        assertEquals( values, post.toMap() );
+    }
+
+    /** Report the deploy throughput of a feed with thousands of trashed posts. */
+    @Test
+    public void testTrashedPostThroughput() {
+        List<Map<String,Object>> posts = new ArrayList<>();
+        List<Map<String,Object>> trashed = new ArrayList<>();
+        for( int i = 1; i <= TrashedPostCount; i++ ) {
+            // Posts are in trees of 10; each tree's first post is the parent of the others.
+            String parent = i % 10 == 1 ? "0" : String.valueOf( i - (i - 1) % 10 );
+            posts.add( post( String.valueOf( i ), parent, "publish") );
+            trashed.add( post( String.valueOf( i ), parent, "trash") );
+        }
+        deploy( posts );
+        long startTime = System.currentTimeMillis();
+        deploy( trashed );
+        long time = System.currentTimeMillis() - startTime;
+        Log.i( Tag, String.format("Deployed %d trashed posts in %d ms; %.1f posts/s", TrashedPostCount, time, time > 0 ? TrashedPostCount * 1000.0 / time : 0 ) );
+        assertEquals( 0, postDB.countInTable("posts", "1 = 1") );
+        assertEquals( 0, postDB.countInTable("closures", "1 = 1") );
+    }
+
+    Map<String,Object> post(String id, String parent, String status) {
+        return m(
+            kv("id", id ),
+            kv("title", "Post " + id ),
+            kv("type", "page"),
+            kv("status", status ),
+            kv("modified", "2016-01-01T00:00:00Z"),
+            kv("parent", parent )
+        );
+    }
+
+    void deploy(List<Map<String,Object>> feedItems) {
+        Files.writeJSON( new File( stagingDir, "feed.json"), feedItems );
+        protocol.deployDownload( Collections.emptyList(), null );
+    }
+
+    int countClosures(String where) {
+        return postDB.countInTable("closures", where );
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.innerfunction.util.DataLiterals.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumented tests of the table rebuilds performed when a DB is upgraded.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DBRebuildTest {
+
+    static final String DBName = "com.innerfunction.semo.db-rebuild-test";
+    /** The number of rows in the rebuilt table; several rebuild chunks. */
+    static final int RowCount = DBHelper.RebuildChunkSize * 3;
+
+    Context context;
+    DB db;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase( DBName );
+    }
+
+    @After
+    public void tearDown() {
+        if( db != null ) {
+            db.stopService();
+        }
+        context.deleteDatabase( DBName );
+    }
+
+    /** Test that rows written while a table is being rebuilt are in the rebuilt table. */
+    @Test
+    public void testWritesDuringRebuild() throws InterruptedException {
+        db = newDB( 1, new Column("id", "INTEGER", "id"), new Column("title", "TEXT"), new Column("removed", "TEXT") );
+        db.startService();
+        List<Map<String,Object>> rows = new ArrayList<>();
+        for( int i = 1; i <= RowCount; i++ ) {
+            rows.add( m( kv("id", i ), kv("title", "Row " + i ), kv("removed", "x") ) );
+        }
+        assertTrue( db.insert("items", rows ) );
+        db.stopService();
+
+        // Reopen with the removed column dropped from the schema.
+        db = newDB( 2, new Column("id", "INTEGER", "id"), new Column("title", "TEXT") );
+        final CountDownLatch rebuilt = new CountDownLatch( 1 );
+        db.setMigrationListener( new DB.MigrationListener() {
+            @Override
+            public void onTableRebuildProgress(String table, long copied, long total) {}
+            @Override
+            public void onTableRebuildComplete(String table) {
+                rebuilt.countDown();
+            }
+        });
+        db.startService();
+        // The first and last rows are updated, a row is deleted and a row is inserted while the
+        // rebuild is in progress.
+        assertTrue( db.update("items", m( kv("id", 1 ), kv("title", "Updated 1") ) ) );
+        assertTrue( db.update("items", m( kv("id", RowCount ), kv("title", "Updated last") ) ) );
+        assertTrue( db.delete("items", "2") );
+        assertTrue( db.insert("items", m( kv("id", RowCount + 1 ), kv("title", "Inserted") ) ) );
+        assertTrue( rebuilt.await( 60, TimeUnit.SECONDS ) );
+        assertFalse( db.isRebuildingTables() );
+
+        assertFalse( getColumnNames("items").contains("removed") );
+        assertEquals( RowCount, db.countInTable("items", "1 = 1") );
+        assertEquals( "Updated 1", db.read("items", "1").get("title") );
+        assertEquals( null, db.read("items", "2") );
+        assertEquals( "Row 3", db.read("items", "3").get("title") );
+        assertEquals( "Updated last", db.read("items", String.valueOf( RowCount ) ).get("title") );
+        assertEquals( "Inserted", db.read("items", String.valueOf( RowCount + 1 ) ).get("title") );
+    }
+
+    DB newDB(int version, Column... columns) {
+        DB db = new DB();
+        db.setAndroidContext( context );
+        db.setName( DBName );
+        db.setVersion( version );
+        db.setTableSchema( new Table("items", columns ) );
+        return db;
+    }
+
+    List<String> getColumnNames(String table) {
+        List<String> names = new ArrayList<>();
+        Cursor cursor = db.getConnection().rawQuery( String.format("PRAGMA table_info(%s)", table ), null );
+        while( cursor.moveToNext() ) {
+            names.add( cursor.getString( cursor.getColumnIndex("name") ) );
+        }
+        cursor.close();
+        return names;
+    }
+}
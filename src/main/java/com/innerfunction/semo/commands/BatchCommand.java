@@ -0,0 +1,48 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import com.innerfunction.q.Q;
+
+import java.util.List;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A command which can execute a batch of commands in a single call.
+ * When several commands with the same name and batch are ready to execute at the same time, and
+ * none depends on another, the command scheduler coalesces them into a single call to
+ * executeBatch(). The commands in the batch are completed together when the call succeeds.
+ *
+ * If the call fails or times out then each command in the batch is returned to the queue, to be
+ * executed individually - and retried according to its own retry policy - using execute(). Batch
+ * execution must therefore be safe to repeat for any of the commands in the batch.
+ */
+public interface BatchCommand extends Command {
+
+    /**
+     * Return the maximum number of commands with the specified name which may be coalesced into a
+     * single batch.
+     */
+    int getMaxBatchSize(String name);
+
+    /**
+     * Execute a batch of commands with the specified name.
+     * @param argsList  The arguments of each command in the batch, in queue order.
+     * Returns a deferred promise which may resolve to a list of new commands, to be queued for
+     * execution after the batch completes.
+     */
+    Q.Promise<List<CommandItem>> executeBatch(String name, List<List> argsList);
+
+}
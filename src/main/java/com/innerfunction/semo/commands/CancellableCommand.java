@@ -0,0 +1,40 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import android.os.CancellationSignal;
+
+import com.innerfunction.q.Q;
+
+import java.util.List;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A command which can be cancelled whilst executing.
+ * The command scheduler executes cancellable commands using the variant of execute() which takes
+ * a cancellation signal; the signal is cancelled when the command times out or is cancelled using
+ * one of the scheduler's cancel methods. The scheduler disregards the result of a command once it
+ * has been cancelled, but the command should stop any work in progress and release any resources
+ * it holds as soon as possible.
+ */
+public interface CancellableCommand extends Command {
+
+    /**
+     * Execute the command with the specified name and arguments.
+     * @param cancellation A signal which is cancelled if the command's execution is cancelled.
+     */
+    Q.Promise<List<CommandItem>> execute(String name, List args, CancellationSignal cancellation);
+
+}
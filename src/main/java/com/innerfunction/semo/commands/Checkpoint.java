@@ -0,0 +1,110 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import android.os.CancellationSignal;
+
+import java.util.List;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A persisted progress cursor for an executing command.
+ * A long running command saves its cursor - e.g. the index of the next item to be processed -
+ * after completing each unit of work. The cursor is written to the command's queue record, and if
+ * the command is executed again - after the app is restarted, or after the command fails and is
+ * retried - then the saved cursor is passed back to it, so that it can resume from that point.
+ *
+ * A command can also queue follow on commands when saving a checkpoint. The follow on commands
+ * are written atomically with the cursor, so that the commands generated by completed work are
+ * never lost or duplicated by resuming the command; they may start executing whilst the command
+ * is still running.
+ *
+ * Checkpoints are written asynchronously, using the scheduler's group commit, so a command may
+ * resume from an earlier checkpoint than the last one saved; work done after a checkpoint should
+ * therefore be safe to repeat.
+ *
+ * The checkpoint also carries the execution's cancellation signal (see CancellableCommand); a
+ * command should test isCancelled() between units of work, and stop if it returns true.
+ */
+public class Checkpoint {
+
+    /** The scheduler executing the command. */
+    private CommandScheduler scheduler;
+    /** The command being executed. */
+    private CommandItem commandItem;
+    /** A signal which is cancelled if the command's execution is cancelled or times out. */
+    private CancellationSignal cancellation;
+    /** Flag indicating that the command is being resumed from a previously saved checkpoint. */
+    private boolean resumed;
+    /** The cursor last saved. */
+    private volatile String cursor;
+
+    Checkpoint(CommandScheduler scheduler, CommandItem commandItem, CancellationSignal cancellation) {
+        this.scheduler = scheduler;
+        this.commandItem = commandItem;
+        this.cancellation = cancellation;
+        this.cursor = commandItem.checkpoint;
+        this.resumed = cursor != null;
+    }
+
+    /** Test whether the command is being resumed from a previously saved checkpoint. */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /** Return the signal which is cancelled if the command's execution is cancelled or times out. */
+    public CancellationSignal getCancellationSignal() {
+        return cancellation;
+    }
+
+    /** Test whether the command's execution has been cancelled or has timed out. */
+    public boolean isCancelled() {
+        return cancellation.isCanceled();
+    }
+
+    /** Return the cursor last saved; or null if no cursor has been saved. */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /** Return the cursor last saved as an integer; or the default value if no cursor has been saved. */
+    public int getCursorAsInt(int defaultValue) {
+        if( cursor != null ) {
+            try {
+                return Integer.parseInt( cursor );
+            }
+            catch(NumberFormatException e) {
+                // Invalid cursor; fall through to default.
+            }
+        }
+        return defaultValue;
+    }
+
+    /** Save the command's cursor. */
+    public void save(String cursor) {
+        save( cursor, CommandScheduler.NoFollowOns );
+    }
+
+    /** Save the command's cursor, and queue follow on commands generated since the last checkpoint. */
+    public void save(String cursor, List<CommandItem> commands) {
+        this.cursor = cursor;
+        scheduler.saveCheckpoint( commandItem, cursor, commands );
+    }
+
+    /** Save an integer cursor. */
+    public void save(int cursor, List<CommandItem> commands) {
+        save( String.valueOf( cursor ), commands );
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import com.innerfunction.q.Q;
+
+import java.util.List;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A long running command which can record its progress, so that it can resume from where it
+ * stopped if its execution is interrupted - e.g. by the app being terminated - or fails.
+ * The command scheduler executes checkpointed commands using the variant of execute() which takes
+ * a checkpoint; see Checkpoint for details. The checkpoint also carries the execution's
+ * cancellation signal, so checkpointed commands needn't also implement CancellableCommand.
+ */
+public interface CheckpointedCommand extends Command {
+
+    /**
+     * Execute the command with the specified name and arguments.
+     * @param checkpoint The command's checkpoint. If the command is being resumed, then the
+     *                   checkpoint's cursor is the cursor last saved by the command.
+     */
+    Q.Promise<List<CommandItem>> execute(String name, List args, Checkpoint checkpoint);
+
+}
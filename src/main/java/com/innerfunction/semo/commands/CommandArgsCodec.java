@@ -0,0 +1,241 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for command argument lists.
+ * Command arguments are mostly file paths and URLs which share a small number of directory
+ * prefixes. The codec interns the prefix of each path-like string argument - i.e. everything up to
+ * and including its last '/' - into a prefix dictionary, and encodes the argument as a token
+ * referencing the prefix, followed by the remainder of the string. All lengths, counts and tokens
+ * are written as unsigned varints; integers are written as zig-zag varints.
+ *
+ * Tokens are assigned to prefixes in the order they are first seen, and must not change once
+ * assigned; stores using the codec must therefore persist the prefix dictionary, and restore it
+ * using addPrefix() before decoding any data.
+ */
+public class CommandArgsCodec {
+
+    /** Format version; the first byte of all encoded data. */
+    static final byte Version = 1;
+
+    /** Argument type tags. */
+    static final byte TypeNull              = 0;
+    static final byte TypeString            = 1;
+    static final byte TypePrefixedString    = 2;
+    static final byte TypeInteger           = 3;
+    static final byte TypeDouble            = 4;
+    static final byte TypeTrue              = 5;
+    static final byte TypeFalse             = 6;
+    static final byte TypeJSON              = 7;
+
+    /** The minimum length of an interned prefix. */
+    static final int MinPrefixLength = 8;
+    /** The maximum number of prefixes in the dictionary. */
+    static final int MaxPrefixes = 4096;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The prefix dictionary, indexed by token. */
+    private List<String> prefixes = new ArrayList<>();
+    /** Prefix tokens, keyed by prefix. */
+    private Map<String,Integer> tokens = new HashMap<>();
+
+    /**
+     * Add a prefix to the dictionary.
+     * Used to restore a persisted dictionary; prefixes must be added in token order.
+     */
+    public void addPrefix(String prefix) {
+        tokens.put( prefix, prefixes.size() );
+        prefixes.add( prefix );
+    }
+
+    /** Return the number of prefixes in the dictionary. */
+    public int getPrefixCount() {
+        return prefixes.size();
+    }
+
+    /** Return the prefix with the specified token. */
+    public String getPrefix(int token) {
+        return prefixes.get( token );
+    }
+
+    /** Encode a list of command arguments. */
+    public byte[] encode(List args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write( Version );
+        if( args == null ) {
+            writeVarint( out, 0 );
+            return out.toByteArray();
+        }
+        writeVarint( out, args.size() );
+        for( Object arg : args ) {
+            if( arg == null ) {
+                out.write( TypeNull );
+            }
+            else if( arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte ) {
+                out.write( TypeInteger );
+                long value = ((Number)arg).longValue();
+                writeVarint( out, (value << 1) ^ (value >> 63) );
+            }
+            else if( arg instanceof Number ) {
+                out.write( TypeDouble );
+                long bits = Double.doubleToLongBits( ((Number)arg).doubleValue() );
+                for( int i = 56; i >= 0; i -= 8 ) {
+                    out.write( (int)(bits >>> i) & 0xFF );
+                }
+            }
+            else if( arg instanceof Boolean ) {
+                out.write( (Boolean)arg ? TypeTrue : TypeFalse );
+            }
+            else if( arg instanceof List || arg instanceof Map ) {
+                out.write( TypeJSON );
+                writeString( out, JSONValue.toJSONString( arg ) );
+            }
+            else {
+                // Strings, and any other values (e.g. File instances) in their string form.
+                String value = arg.toString();
+                int token = getPrefixToken( value );
+                if( token >= 0 ) {
+                    out.write( TypePrefixedString );
+                    writeVarint( out, token );
+                    writeString( out, value.substring( prefixes.get( token ).length() ) );
+                }
+                else {
+                    out.write( TypeString );
+                    writeString( out, value );
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a list of command arguments.
+     * @throws IllegalArgumentException If the data isn't valid.
+     */
+    public List decode(byte[] data) {
+        if( data.length == 0 || data[0] != Version ) {
+            throw new IllegalArgumentException("Unsupported args encoding");
+        }
+        int[] position = new int[]{ 1 };
+        int count = (int)readVarint( data, position );
+        List<Object> args = new ArrayList<>( count );
+        for( int i = 0; i < count; i++ ) {
+            byte type = data[position[0]++];
+            switch( type ) {
+            case TypeNull:
+                args.add( null );
+                break;
+            case TypeString:
+                args.add( readString( data, position ) );
+                break;
+            case TypePrefixedString:
+                int token = (int)readVarint( data, position );
+                if( token >= prefixes.size() ) {
+                    throw new IllegalArgumentException( String.format("Unknown prefix token %d", token ) );
+                }
+                args.add( prefixes.get( token ) + readString( data, position ) );
+                break;
+            case TypeInteger:
+                long value = readVarint( data, position );
+                args.add( (value >>> 1) ^ -(value & 1) );
+                break;
+            case TypeDouble:
+                long bits = 0;
+                for( int j = 0; j < 8; j++ ) {
+                    bits = (bits << 8) | (data[position[0]++] & 0xFF);
+                }
+                args.add( Double.longBitsToDouble( bits ) );
+                break;
+            case TypeTrue:
+                args.add( Boolean.TRUE );
+                break;
+            case TypeFalse:
+                args.add( Boolean.FALSE );
+                break;
+            case TypeJSON:
+                args.add( JSONValue.parse( readString( data, position ) ) );
+                break;
+            default:
+                throw new IllegalArgumentException( String.format("Unknown arg type %d", type ) );
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Return the token of a string's prefix, interning the prefix if necessary.
+     * Returns -1 if the string has no prefix suitable for interning.
+     */
+    private int getPrefixToken(String value) {
+        int idx = value.lastIndexOf('/');
+        if( idx + 1 < MinPrefixLength ) {
+            return -1;
+        }
+        String prefix = value.substring( 0, idx + 1 );
+        Integer token = tokens.get( prefix );
+        if( token == null ) {
+            if( prefixes.size() >= MaxPrefixes ) {
+                return -1;
+            }
+            token = prefixes.size();
+            addPrefix( prefix );
+        }
+        return token;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while( (value & ~0x7FL) != 0 ) {
+            out.write( (int)((value & 0x7F) | 0x80) );
+            value >>>= 7;
+        }
+        out.write( (int)value );
+    }
+
+    static long readVarint(byte[] data, int[] position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        }
+        while( (b & 0x80) != 0 );
+        return value;
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes( UTF8 );
+        writeVarint( out, bytes.length );
+        out.write( bytes, 0, bytes.length );
+    }
+
+    static String readString(byte[] data, int[] position) {
+        int length = (int)readVarint( data, position );
+        String value = new String( data, position[0], length, UTF8 );
+        position[0] += length;
+        return value;
+    }
+}
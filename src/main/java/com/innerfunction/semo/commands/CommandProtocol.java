@@ -12,10 +12,12 @@ import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
  * A command protocol.
  * A command implementation that supports multiple different named commands, useful for
  * defining protocols composed of a number of related commands.
+ * Protocol commands which implement CheckpointedCommand are passed their checkpoint; protocol
+ * commands which implement CancellableCommand are passed the checkpoint's cancellation signal.
  *
  * Attached by juliangoacher on 13/05/16.
  */
-public class CommandProtocol implements Command {
+public class CommandProtocol implements CheckpointedCommand {
 
     /** A map of the protocol's named commands. */
     private Map<String,Command> commands = new HashMap<>();
@@ -92,6 +94,11 @@ public class CommandProtocol implements Command {
 
     @Override
     public Q.Promise<List<CommandItem>> execute(String name, List args) {
+        return execute( name, args, null );
+    }
+
+    @Override
+    public Q.Promise<List<CommandItem>> execute(String name, List args, Checkpoint checkpoint) {
         // Split the protocol prefix from the name to get the actual command name.
         String[] nameParts = name.split("\\.");
         commandPrefix = nameParts[0]; // Hack to get the correct prefix used by the command protocol.
@@ -100,6 +107,12 @@ public class CommandProtocol implements Command {
         Command command = commands.get( commandName );
         if( command != null ) {
             try {
+                if( checkpoint != null && command instanceof CheckpointedCommand ) {
+                    return ((CheckpointedCommand)command).execute( name, args, checkpoint );
+                }
+                if( checkpoint != null && command instanceof CancellableCommand ) {
+                    return ((CancellableCommand)command).execute( name, args, checkpoint.getCancellationSignal() );
+                }
                 return command.execute( name, args );
             }
             catch(Exception e) {
@@ -0,0 +1,130 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * Persistent storage for a command scheduler's queue.
+ * All methods apart from setName(), setDeleteExecutedRecords() and setArchiveRetention() are
+ * called by the scheduler on its exec queue thread. Row IDs are assigned to commands by the scheduler before they are
+ * appended to the store.
+ *
+ * Queue order: pending commands are ordered by rank and then by row ID. A command's rank is set
+ * when it is queued - see CommandItem.rank - and never changes, so the queue order is fixed and
+ * a store can index it, reading a window of commands from any queue position without a scan. A
+ * command's rank is never lower than the rank of any of its dependencies, so a command always
+ * sorts after its dependencies.
+ *
+ * Durability: writes made outside of a group are durable once the write method returns. Writes
+ * made within a group - see beginGroup() - become durable when the group is committed; if the app
+ * is terminated before then, then either all or none of the group's writes are recovered. The
+ * scheduler writes command completions, together with their follow on commands, in groups; so a
+ * command whose completion wasn't committed may be executed again on restart, and commands should
+ * therefore be idempotent.
+ */
+public interface CommandQueueStore {
+
+    /** Set the name of the store; must be called before the store is opened. */
+    void setName(String name);
+
+    /**
+     * Set whether the records of executed commands are deleted.
+     * Stores which can't retain records of executed commands may ignore this setting.
+     */
+    void setDeleteExecutedRecords(boolean delete);
+
+    /**
+     * Set the retention of the records of executed commands, when these aren't deleted.
+     * Stores which can't retain records of executed commands may ignore this setting.
+     * @param maxRecords    The maximum number of records retained; 0 for no limit.
+     * @param maxAge        The maximum age, in ms, of records retained; 0 for no limit.
+     */
+    void setArchiveRetention(int maxRecords, long maxAge);
+
+    /** Open the store. */
+    void open();
+
+    /** Close the store. */
+    void close();
+
+    /**
+     * Read pending commands, in queue order.
+     * @param after Only commands ordered after this command are returned; if null then commands
+     *              are read from the head of the queue.
+     * @param limit The maximum number of commands to return.
+     */
+    List<CommandItem> readPending(CommandItem after, int limit);
+
+    /** Return the number of pending commands. */
+    int countPending();
+
+    /** Return the number of pending commands, keyed by command name. */
+    Map<String,Integer> countPendingByName();
+
+    /**
+     * Read pending commands in the order they were appended, regardless of queue order.
+     * @param name      Only read commands with this name; or null to read commands with any name.
+     * @param newest    If true then the most recently appended commands are read first; otherwise
+     *                  the oldest commands are read first.
+     * @param limit     The maximum number of commands to read.
+     */
+    List<CommandItem> readPendingByAge(String name, boolean newest, int limit);
+
+    /** Return the highest row ID of any command in the store, or 0 if the store is empty. */
+    long getMaxRowID();
+
+    /** Test whether a pending command with the same batch, name and args as a command exists. */
+    boolean containsPending(CommandItem item);
+
+    /** Append a pending command to the store. */
+    void append(CommandItem item);
+
+    /** Record that a command has been executed. */
+    void complete(CommandItem item);
+
+    /**
+     * Record a failed command's attempt count and the time of its next attempt.
+     * The command remains pending.
+     */
+    void reschedule(CommandItem item);
+
+    /**
+     * Record a running command's checkpoint cursor.
+     * The command remains pending; if it is executed again then it resumes from the checkpoint.
+     */
+    void checkpoint(CommandItem item);
+
+    /** Replace the args of a pending command. */
+    void updateArgs(CommandItem item);
+
+    /** Remove all pending commands, except for recurring commands. */
+    void purge();
+
+    /** Remove all pending commands in a batch, except for recurring commands. */
+    void purgeBatch(int batch);
+
+    /** Remove all pending commands with the specified name. */
+    void purgeCommands(String name);
+
+    /** Begin a group of writes; see the durability notes in the interface comment. */
+    void beginGroup();
+
+    /** Commit the current group of writes. */
+    void commitGroup();
+
+}
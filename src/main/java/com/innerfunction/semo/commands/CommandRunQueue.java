@@ -0,0 +1,32 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+/**
+ * A serial queue used by a command scheduler to manage command execution.
+ * Actions dispatched to the queue are run one at a time, in the order they were dispatched; all
+ * reads and writes of a scheduler's queue state are performed as actions on its run queue.
+ *
+ * Each scheduler has its own run queue. By default this is a ThreadRunQueue, which runs actions on
+ * a dedicated thread; alternatively, schedulers can share a SharedRunQueuePool.
+ */
+public interface CommandRunQueue {
+
+    /** Dispatch an action to the queue. */
+    void dispatch(Runnable action);
+
+    /** Test whether the current thread is running an action dispatched to the queue. */
+    boolean isRunningOnQueueThread();
+
+}
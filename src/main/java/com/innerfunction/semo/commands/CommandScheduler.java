@@ -14,26 +14,34 @@
 package com.innerfunction.semo.commands;
 
 import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Looper;
 import android.util.Log;
 
 import com.innerfunction.pttn.Service;
 import com.innerfunction.q.Q;
-import com.innerfunction.semo.db.Column;
-import com.innerfunction.semo.db.DB;
-import com.innerfunction.semo.db.Table;
-import com.innerfunction.util.RunQueue;
 
 import org.json.simple.JSONValue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * A command scheduler with guarantees on command execution.
+ * A command scheduler with guarantees on command execution: commands are persisted in a queue
+ * store, and executed in priority order in execution lanes, with dependencies, retries and timeouts.
  *
  * Attached by juliangoacher on 07/05/16.
  */
@@ -41,330 +49,2071 @@ public class CommandScheduler implements Service {
 
     static final String Tag = CommandScheduler.class.getSimpleName();
 
+    /** Empty command list, used to indicate that a command has no follow on commands. */
+    public static final List<CommandItem> NoFollowOns = Collections.emptyList();
+
+    /** Lane for commands which make network requests. */
+    public static final String NetworkLane = "network";
+    /** Lane for commands which read or write the file system. */
+    public static final String DiskLane = "disk";
+    /** Lane for commands which read or write a database. */
+    public static final String DBLane = "db";
+    /** Lane for computationally intensive commands. */
+    public static final String CPULane = "cpu";
+    /** Lane for commands which don't declare a lane. */
+    public static final String DefaultLane = "default";
+
+    /** The default command priority. */
+    public static final int DefaultPriority = 0;
+    /** Priority for commands triggered directly by the user, e.g. fetching content being viewed. */
+    public static final int UserPriority = -10;
+
+    /** Queue limit policy: block the caller until the queue has space for the new command. */
+    public static final String BlockPolicy = "block";
+    /** Queue limit policy: drop the oldest pending command to make space for the new command. */
+    public static final String DropOldestPolicy = "drop-oldest";
+    /** Queue limit policy: drop the new command. */
+    public static final String DropNewPolicy = "drop-new";
+    /** Queue limit policy: merge the new command's args into the newest pending command with the same name. */
+    public static final String MergePolicy = "merge";
+
+    /** The queue store. */
+    private CommandQueueStore store;
+    /** The name of the queue store; null if the store's default name should be used. */
+    private String queueName;
+    /** The queue order; see CommandQueueStore. */
+    static final Comparator<CommandItem> QueueOrder = new Comparator<CommandItem>() {
+        @Override
+        public int compare(CommandItem item0, CommandItem item1) {
+            if( item0.rank != item1.rank ) {
+                return item0.rank < item1.rank ? -1 : 1;
+            }
+            long id0 = Long.parseLong( item0.rowID ), id1 = Long.parseLong( item1.rowID );
+            return id0 < id1 ? -1 : (id0 == id1 ? 0 : 1);
+        }
+    };
+
+    /**
+     * A window of pending commands read from the queue store and waiting to be executed, in queue order.
+     * Refilled from the store as commands are executed, reading forward from windowEnd. Commands
+     * written by the scheduler which sort before the end of the window - e.g. high priority
+     * commands - are merged directly into the window. Because a command always sorts after its
+     * dependencies, the window always contains any incomplete dependencies of the commands it holds.
+     */
+    private List<CommandItem> execQueue = new ArrayList<>();
+    /** The maximum number of commands read into the exec queue from the queue store. */
+    private int queueWindowSize = 200;
+    /** The last command read into the exec queue from the queue store; null if none read. */
+    private CommandItem windowEnd;
+    /**
+     * Flag indicating that the queue store has no pending commands after windowEnd, other than
+     * commands already merged into the exec queue.
+     */
+    private boolean windowExhausted;
+    /** Executions of the commands currently running, keyed by row ID. */
+    private Map<String,Execution> running = new HashMap<>();
+    /**
+     * The maximum number of commands which may execute concurrently in each lane.
+     * Each lane has its own limit, so that e.g. a slow download doesn't block file system commands
+     * queued behind it.
+     */
+    private Map<String,Integer> laneConcurrency = new HashMap<>();
+    /** The number of commands currently executing in each lane. */
+    private Map<String,Integer> laneRunCounts = new HashMap<>();
+    /**
+     * A queue used to manage command execution.
+     * All reads and writes of the scheduler's queue state are performed as actions on this queue,
+     * so separate schedulers make progress independently. Commands are started on the executor of
+     * their execution lane. Created when first needed, with a dedicated thread, if not set using
+     * setRunQueue() or setRunQueuePool().
+     */
+    private CommandRunQueue runQueue;
+    /** Executors used to start commands, keyed by lane name. */
+    private Map<String,ExecutorService> laneExecutors = new HashMap<>();
+    /** Executors set using setLaneExecutor(), keyed by lane name. Not shut down by the scheduler. */
+    private Map<String,Executor> customLaneExecutors = new HashMap<>();
+    /**
+     * Lane assignments keyed by command name.
+     * Overrides the lane declared by the command. A protocol name can be used to assign a lane to
+     * all of the protocol's commands.
+     */
+    private Map<String,String> commandLanes = new HashMap<>();
+    /**
+     * The maximum number of command completions written in a single group commit.
+     * Each completion is written with its follow on commands in a group shared with other
+     * completions, which is committed once groupCommitSize completions have been written, once
+     * groupCommitInterval ms have elapsed, or when the queue becomes idle. Commands appended using
+     * appendCommand() are committed immediately. See CommandQueueStore for the durability this gives.
+     */
+    private int groupCommitSize = 50;
+    /** The maximum time, in ms, between the first completion in a group and the group's commit. */
+    private long groupCommitInterval = 200;
+    /** Whether a group commit is currently open on the queue store. */
+    private boolean groupTransactionOpen;
+    /** The number of the current group commit. */
+    private int groupNumber;
+    /** The number of command completions written in the current group commit. */
+    private int groupCompletionCount;
+    /** The timer wheel's tick duration, in ms. */
+    static final long TimerTickDuration = 50;
+    /** The number of previous executions of a rate limited command used to calculate its rate. */
+    static final int RateLimitWindowSize = 5;
+
+    /** The scheduler's source of time; used to wake the exec queue when the next timer is due. */
+    private CommandSchedulerClock clock = new HandlerClock();
+    /**
+     * Timers used by the scheduler. Only accessed on the exec queue thread.
+     * All of the scheduler's timing - delayed and rate limited commands, retry backoff, command
+     * timeouts and group commits - uses this single wheel; a single wake up is scheduled for the
+     * wheel's next due time.
+     */
+    private TimerWheel timers = new TimerWheel( TimerTickDuration, clock.currentTimeMillis() );
+    /** The time of the next scheduled timer wheel wake up; Long.MAX_VALUE if none scheduled. */
+    private long timerWakeUpTime = Long.MAX_VALUE;
+    /** The time of the next scheduled call to dispatchCommands(); 0 if none scheduled. */
+    private long dispatchTime;
+    /**
+     * Rate limits, in executions per minute, keyed by command name.
+     * A protocol name can be used to assign a shared rate limit to all of the protocol's commands.
+     */
+    private Map<String,Float> commandRateLimits = new HashMap<>();
+    /**
+     * The maximum number of pending commands; 0 if the queue is unbounded.
+     * The queue limit settings are read by producers checking the queue pressure or waiting for
+     * queue space, so access to them is synchronized on pendingCounts.
+     */
+    private int maxQueueSize;
+    /**
+     * The maximum number of pending commands, keyed by command name.
+     * A protocol name can be used to assign a shared limit to all of the protocol's commands.
+     */
+    private Map<String,Integer> commandQueueLimits = new HashMap<>();
+    /** The policies applied when a queue limit is reached, keyed by command or protocol name. */
+    private Map<String,String> queueLimitPolicies = new HashMap<>();
+    /** The policy applied when a queue limit is reached, for commands without a policy of their own. */
+    private String defaultQueueLimitPolicy = DropNewPolicy;
+    /**
+     * The number of pending commands, keyed by command name. Updated on the run queue; access is
+     * synchronized on the map, which is also used to signal producers blocked by a queue limit.
+     */
+    private Map<String,Integer> pendingCounts = new HashMap<>();
+    /** The total number of pending commands. Access is synchronized on pendingCounts. */
+    private int pendingTotal;
+    /** The start times of the most recent executions of rate limited commands, keyed by rate limit name. */
+    private Map<String,List<Long>> rateLimitWindows = new HashMap<>();
+    /**
+     * Retry policies keyed by command name.
+     * Overrides the policy declared by the command. A protocol name can be used to assign a
+     * policy to all of the protocol's commands.
+     */
+    private Map<String,RetryPolicy> retryPolicies = new HashMap<>();
+    /** The retry policy for commands without a declared or assigned policy; null if not retried. */
+    private RetryPolicy defaultRetryPolicy;
+    /**
+     * Command timeouts in ms, keyed by command name.
+     * A protocol name can be used to assign a timeout to all of the protocol's commands.
+     */
+    private Map<String,Long> commandTimeouts = new HashMap<>();
+    /** The timeout, in ms, of commands without an assigned timeout; 0 if no timeout. */
+    private long defaultCommandTimeout;
+    /** The ID to assign to the next command record written to the queue DB; 0 until read from the DB. */
+    private long nextRowID;
+    /** The time, in ms, a command waits on the queue for each level its priority is raised by aging. */
+    private long priorityAgingInterval = 60000;
+    /** Current batch number. */
+    private int currentBatch = 0;
+    /**
+     * A map of command instances, keyed by name.
+     * Commands which are protocol instances (i.e. CommandProtocol subclasses) have each of their
+     * protocol commands mapped into the command namespace with the protocol command name as
+     * a prefix, so e.g. { name => protocol } --> name.command1, name.command2 etc.
+     */
+    private Map<String,Command> commands = new HashMap<>();
+    /**
+     * Whether to delete queue records after processing.
+     * Defaults to true. When false, records of executed commands are retained by stores which
+     * support this; this mode is primarily useful for debugging.
+     */
+    private boolean deleteExecutedQueueRecords = true;
+    /** The maximum number of retained records of executed commands; 0 for no limit. */
+    private int maxQueueArchiveSize = 10000;
+    /** The maximum age, in ms, of retained records of executed commands; 0 for no limit. */
+    private long maxQueueArchiveAge = 7L * 24 * 60 * 60 * 1000;
+    /** The scheduler's execution metrics. */
+    private CommandSchedulerMetrics metrics = new CommandSchedulerMetrics();
+    /** The minimum interval, in ms, between queue metric samples. */
+    private long metricsSampleInterval = 5000;
+    /** The time the last queue metric sample was taken. */
+    private long lastSampleTime;
+
+    /** An object representing a command item on the execution queue. */
+    public static class CommandItem {
+        /** The ID of the command's queue record. */
+        String rowID;
+        /** The command's batch number. */
+        int batch;
+        /** The command name. */
+        String name;
+        /** A list of the command arguments. */
+        List args;
+        /** The command's execution priority; lower values execute first. Null if not set. */
+        Integer priority;
+        /**
+         * The command's position in the queue order; the time the command was queued, adjusted by
+         * its priority. See getRank().
+         */
+        long rank;
+        /**
+         * The row IDs of commands which must complete before this command can execute.
+         * Recorded in the queue store, so the dependency graph is preserved across app restarts.
+         * Note that a command whose dependency fails or is cancelled is still executed.
+         */
+        List<String> deps = Collections.emptyList();
+        /**
+         * Commands which must complete before this command can execute, as declared using
+         * dependsOn(). Null if no dependencies have been declared.
+         */
+        List<CommandItem> dependencies;
+        /**
+         * The time the command was queued. Not persisted; for commands read from the queue store,
+         * this is the time the command was read.
+         */
+        long queuedTime;
+        /** The number of failed attempts to execute the command. */
+        int attempts;
+        /** The earliest time, in ms, that the command may next be executed; 0 if not delayed. */
+        long notBefore;
+        /** For recurring commands, the interval in ms between each execution; otherwise 0. */
+        long repeatInterval;
+        /**
+         * Flag indicating whether the command may be coalesced with other commands. Cleared when
+         * a coalesced batch containing the command fails. Not persisted.
+         */
+        boolean coalescable = true;
+        /** The cursor of the command's last checkpoint; null if no checkpoint has been saved. */
+        String checkpoint;
+        /** For follow on commands, a delay in ms before the command may execute. Not persisted. */
+        long delay;
+        /** Instantiate an empty command item. */
+        CommandItem() {}
+        /**
+         * Return a key for detecting duplicate commands.
+         * The key is a 64 bit FNV-1a hash of the command's batch, name and JSON encoded args, and
+         * of its repeat interval if it is a recurring command.
+         * Commands with different keys are never duplicates, but commands with the same key must
+         * still be compared in full.
+         */
+        long getDedupKey(String argsJSON) {
+            long hash = 0xcbf29ce484222325L;
+            hash = (hash ^ batch) * 0x100000001b3L;
+            for( int i = 0; i < name.length(); i++ ) {
+                hash = (hash ^ name.charAt( i )) * 0x100000001b3L;
+            }
+            hash = (hash ^ 0) * 0x100000001b3L;
+            for( int i = 0; i < argsJSON.length(); i++ ) {
+                hash = (hash ^ argsJSON.charAt( i )) * 0x100000001b3L;
+            }
+            if( repeatInterval > 0 ) {
+                // Recurring commands are distinct from non-recurring commands with the same args.
+                hash = (hash ^ repeatInterval) * 0x100000001b3L;
+            }
+            return hash;
+        }
+        /** Return the command's args encoded as JSON. */
+        String getArgsJSON() {
+            return JSONValue.toJSONString( args );
+        }
+        /** Instantiate a new command item with a command name and list of arguments. */
+        public CommandItem(String name, Object... args) {
+            this.name = name;
+            this.args = Arrays.asList( args );
+        }
+        /** Return the command's priority, or the default priority if not set. */
+        int getPriority() {
+            return priority != null ? priority : DefaultPriority;
+        }
+        /**
+         * Set the command's execution priority. Lower values execute first.
+         * @return This command item.
+         */
+        public CommandItem withPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+        /** Set a delay, in ms, before a follow on command may execute. */
+        public CommandItem withDelay(long delay) {
+            this.delay = delay;
+            return this;
+        }
+        /**
+         * Declare commands which must complete before this command can execute.
+         * Replaces the default dependency on the previous command in a follow on list. Each
+         * dependency must appear before this command in the same follow on list, or be a command
+         * already on the queue. Calling this method with no arguments declares that the command
+         * has no dependencies.
+         * @return This command item.
+         */
+        public CommandItem dependsOn(CommandItem... items) {
+            if( dependencies == null ) {
+                dependencies = new ArrayList<>();
+            }
+            dependencies.addAll( Arrays.asList( items ) );
+            return this;
+        }
+    }
+
+    /** The state of a single execution of a command. */
+    static class Execution {
+        /** The command being executed; or the first command of a coalesced batch. */
+        CommandItem commandItem;
+        /** All of the commands of a coalesced batch, in queue order; null if not coalesced. */
+        List<CommandItem> coalesced;
+        /** The command implementation. */
+        Command command;
+        /** The lane the command is executing in. */
+        String lane;
+        /** The time execution started. */
+        long startTime;
+        /** A signal cancelled when the execution is cancelled or times out. */
+        CancellationSignal cancellation = new CancellationSignal();
+        /** A timer scheduled to time out the execution; null if the command has no timeout. */
+        TimerWheel.Timer watchdog;
+        /** Flag indicating that the execution has completed, failed, timed out or been cancelled. */
+        boolean finished;
+        /**
+         * Flag indicating that the call to the command on the lane's executor has returned.
+         * Until then the execution keeps its lane slot, even once finished; a synchronous command
+         * which has timed out or been cancelled still occupies a thread of the lane.
+         */
+        boolean returned;
+        /** Flag indicating that the execution's lane slot is to be released when its call returns. */
+        boolean releaseOnReturn;
+
+        Execution(CommandItem commandItem, Command command, String lane) {
+            this.commandItem = commandItem;
+            this.command = command;
+            this.lane = lane;
+        }
+    }
+
+    public CommandScheduler(Context androidContext) {
+        // Default command queue store.
+        this( new SQLiteCommandQueueStore( androidContext ) );
+        commands.put("unzip", new UnzipCommand( androidContext ) );
+    }
+
+    /**
+     * Create a scheduler using the specified queue store.
+     * Doesn't require an Android context; note that the built-in unzip command, which does, isn't
+     * registered.
+     */
+    public CommandScheduler(CommandQueueStore store) {
+        this.store = store;
+
+        // Default lane concurrency.
+        laneConcurrency.put( NetworkLane, 4 );
+        laneConcurrency.put( DiskLane, 2 );
+        laneConcurrency.put( DBLane, 1 );
+        laneConcurrency.put( CPULane, Runtime.getRuntime().availableProcessors() );
+        laneConcurrency.put( DefaultLane, 1 );
+
+        // Standard built-in command mappings.
+        commands = new HashMap<>();
+        commands.put("rm", new RmFileCommand() );
+        commands.put("mv", new MvFileCommand() );
+    }
+
+    /**
+     * The name of the command queue database.
+     */
+    public void setQueueDBName(String name) {
+        this.queueName = name;
+    }
+
+    /**
+     * Set the run queue used to manage command execution. Must be set before the scheduler is started.
+     * Each scheduler must have its own run queue.
+     */
+    public synchronized void setRunQueue(CommandRunQueue runQueue) {
+        this.runQueue = runQueue;
+    }
+
+    /**
+     * Set a thread pool shared with other schedulers; the scheduler's run queue is created using
+     * the pool, which shares its threads fairly between the schedulers. Must be set before the
+     * scheduler is started.
+     */
+    public void setRunQueuePool(SharedRunQueuePool pool) {
+        setRunQueue( pool.newRunQueue( queueName != null ? queueName : Tag ) );
+    }
+
+    /**
+     * Set the scheduler's source of time. Must be set before the scheduler is started.
+     * The default clock uses the system time; a simulated clock allows the scheduler to be run
+     * deterministically, e.g. in unit tests.
+     */
+    public void setClock(CommandSchedulerClock clock) {
+        this.clock = clock;
+        this.timers = new TimerWheel( TimerTickDuration, clock.currentTimeMillis() );
+        metrics.setClock( clock );
+    }
+
+    /**
+     * Set the executor used to start commands in a lane, in place of the lane's default thread
+     * pool. The lane's concurrency limit still applies. Must be set before the scheduler is started.
+     */
+    public void setLaneExecutor(String lane, Executor executor) {
+        customLaneExecutors.put( lane, executor );
+    }
+
+    /**
+     * Set the store used to persist the command queue; the default store is a SQLite database.
+     * Must be set before the scheduler is started.
+     */
+    public void setQueueStore(CommandQueueStore store) {
+        this.store = store;
+    }
+
+    public CommandQueueStore getQueueStore() {
+        return store;
+    }
+
+    public void setCommands(Map<String,Command> commands) {
+        for( String name : commands.keySet() ) {
+            Command command = commands.get( name );
+            setCommand( name, command );
+        }
+    }
+
+    public void setCommand(String name, Command command) {
+        if( command instanceof CommandProtocol ) {
+            CommandProtocol protocol = (CommandProtocol)command;
+            protocol.setCommandPrefix( name );
+            // Iterate over the protocol's supported commands and add to the command
+            // namespace under a fully qualified name.
+            Map<String,Command> protocolCommands = protocol.getCommands();
+            for( String subname : protocolCommands.keySet() ) {
+                String qualifiedName = String.format("%s.%s", name, subname );
+                this.commands.put( qualifiedName, command );
+            }
+        }
+        else {
+            this.commands.put( name, command );
+        }
+    }
+
+    public void setDeleteExecutedQueueRecords(boolean delete) {
+        this.deleteExecutedQueueRecords = delete;
+    }
+
+    /**
+     * Set the maximum number of records of executed commands retained when executed queue records
+     * aren't deleted; 0 for no limit. Older records are discarded first.
+     */
+    public void setMaxQueueArchiveSize(int size) {
+        this.maxQueueArchiveSize = Math.max( size, 0 );
+    }
+
+    /**
+     * Set the maximum age, in ms, of records of executed commands retained when executed queue
+     * records aren't deleted; 0 for no limit.
+     */
+    public void setMaxQueueArchiveAge(long age) {
+        this.maxQueueArchiveAge = Math.max( age, 0 );
+    }
+
+    /**
+     * Set the maximum number of commands which may execute concurrently in each lane.
+     * Should be set before the scheduler is started.
+     */
+    public void setLaneConcurrency(Map<String,Number> concurrency) {
+        for( String lane : concurrency.keySet() ) {
+            setConcurrencyForLane( lane, concurrency.get( lane ).intValue() );
+        }
+    }
+
+    /** Set the maximum number of commands which may execute concurrently in a lane. */
+    public void setConcurrencyForLane(String lane, int concurrency) {
+        laneConcurrency.put( lane, Math.max( concurrency, 1 ) );
+    }
+
+    /**
+     * Assign commands to execution lanes.
+     * The map is keyed by command or protocol name, with lane names as values. Overrides the lane
+     * declared by a command implementing ExecutionLaneAware; other commands run in DefaultLane.
+     */
+    public void setCommandLanes(Map<String,String> lanes) {
+        commandLanes.putAll( lanes );
+    }
+
+    /**
+     * Assign retry policies to commands.
+     * The map is keyed by command or protocol name, with retry policies as values; an assigned
+     * policy overrides a policy declared by a command implementing RetryPolicyAware. A command
+     * waiting to be retried keeps its queue position, with the time of its next attempt recorded
+     * in the queue store; its dependents don't execute until it has either succeeded or used all of
+     * its attempts.
+     */
+    public void setRetryPolicies(Map<String,RetryPolicy> policies) {
+        retryPolicies.putAll( policies );
+    }
+
+    /** Set the retry policy for commands without a declared or assigned policy. */
+    public void setDefaultRetryPolicy(RetryPolicy policy) {
+        this.defaultRetryPolicy = policy;
+    }
+
+    /**
+     * Assign timeouts to commands.
+     * The map is keyed by command or protocol name, with timeouts in ms as values. A timeout of
+     * 0 means that the command never times out. A command which hasn't completed by its deadline
+     * is treated as failed - and so may be retried - and any later result from it is ignored.
+     * The command keeps its lane slot until its call on the lane's executor returns, so a timeout
+     * doesn't free the slot of a command which is blocked in a synchronous call.
+     */
+    public void setCommandTimeouts(Map<String,Number> timeouts) {
+        for( String name : timeouts.keySet() ) {
+            commandTimeouts.put( name, timeouts.get( name ).longValue() );
+        }
+    }
+
+    /** Set the timeout, in ms, of commands without an assigned timeout; 0, the default, means no timeout. */
+    public void setDefaultCommandTimeout(long timeout) {
+        this.defaultCommandTimeout = timeout;
+    }
+
+    /**
+     * Limit the rate at which commands execute.
+     * The map is keyed by command or protocol name, with the maximum number of executions per
+     * minute as values. A limit assigned to a protocol is shared by all of the protocol's commands.
+     */
+    public void setCommandRateLimits(Map<String,Number> limits) {
+        for( String name : limits.keySet() ) {
+            setRateLimitForCommand( name, limits.get( name ).floatValue() );
+        }
+    }
+
+    /** Limit the number of executions per minute of a command or protocol. */
+    public void setRateLimitForCommand(String name, float maxPerMinute) {
+        if( maxPerMinute > 0 ) {
+            commandRateLimits.put( name, maxPerMinute );
+        }
+        else {
+            commandRateLimits.remove( name );
+        }
+    }
+
+    /**
+     * Set the maximum number of pending commands on the queue; 0 for an unbounded queue.
+     * When the limit is reached, new commands are handled according to the queue limit policy of
+     * the new command; see BlockPolicy, DropOldestPolicy, DropNewPolicy and MergePolicy. Producers
+     * can use getQueuePressure() to slow down before a limit is reached.
+     */
+    public void setMaxQueueSize(int max) {
+        synchronized( pendingCounts ) {
+            this.maxQueueSize = Math.max( max, 0 );
+            // Wake any producers blocked by the previous limit.
+            pendingCounts.notifyAll();
+        }
+    }
+
+    /**
+     * Limit the number of pending commands.
+     * The map is keyed by command or protocol name, with the maximum number of pending commands as
+     * values. A limit assigned to a protocol is shared by all of the protocol's commands.
+     */
+    public void setCommandQueueLimits(Map<String,Number> limits) {
+        synchronized( pendingCounts ) {
+            for( String name : limits.keySet() ) {
+                commandQueueLimits.put( name, limits.get( name ).intValue() );
+            }
+            pendingCounts.notifyAll();
+        }
+    }
+
+    /**
+     * Limit the number of pending commands with the specified name, or of a protocol's commands.
+     * @param maxPending    The maximum number of pending commands; or 0 to remove the limit.
+     * @param policy        The policy applied when the limit is reached; or null for the default.
+     */
+    public void setQueueLimitForCommand(String name, int maxPending, String policy) {
+        synchronized( pendingCounts ) {
+            if( maxPending > 0 ) {
+                commandQueueLimits.put( name, maxPending );
+            }
+            else {
+                commandQueueLimits.remove( name );
+            }
+            if( policy != null ) {
+                queueLimitPolicies.put( name, policy );
+            }
+            else {
+                queueLimitPolicies.remove( name );
+            }
+            pendingCounts.notifyAll();
+        }
+    }
+
+    /**
+     * Set the policies applied when a queue limit is reached.
+     * The map is keyed by command or protocol name, with one of the queue limit policy names
+     * (block, drop-oldest, drop-new or merge) as values.
+     */
+    public void setQueueLimitPolicies(Map<String,String> policies) {
+        synchronized( pendingCounts ) {
+            queueLimitPolicies.putAll( policies );
+        }
+    }
+
+    /** Set the policy applied when a queue limit is reached, for commands without a policy of their own. */
+    public void setDefaultQueueLimitPolicy(String policy) {
+        synchronized( pendingCounts ) {
+            this.defaultQueueLimitPolicy = policy;
+        }
+    }
+
+    /**
+     * Return the pressure on the queue: the number of pending commands as a proportion of the
+     * queue's maximum size. Returns 0 if the queue is unbounded. Can be greater than 1 if commands
+     * have been accepted over the limit.
+     */
+    public float getQueuePressure() {
+        synchronized( pendingCounts ) {
+            return maxQueueSize > 0 ? (float)pendingTotal / maxQueueSize : 0;
+        }
+    }
+
+    /**
+     * Return the queue pressure for new commands with the specified name: the higher of the
+     * overall queue pressure, and the number of pending commands as a proportion of the command's
+     * own queue limit. Producers of large numbers of commands can use this to slow down before
+     * their commands are dropped or blocked.
+     */
+    public float getQueuePressure(String name) {
+        synchronized( pendingCounts ) {
+            float pressure = getQueuePressure();
+            String limitName = findConfigName( name, commandQueueLimits );
+            if( limitName != null ) {
+                int limit = commandQueueLimits.get( limitName );
+                if( limit > 0 ) {
+                    pressure = Math.max( pressure, (float)countPending( limitName ) / limit );
+                }
+            }
+            return pressure;
+        }
+    }
+
+    /**
+     * Set the maximum number of command completions written in a single group commit.
+     * A value of 1 commits each completion separately.
+     */
+    public void setGroupCommitSize(int size) {
+        this.groupCommitSize = Math.max( size, 1 );
+    }
+
+    /** Set the maximum time, in ms, that a command completion can wait to be committed. */
+    public void setGroupCommitInterval(long interval) {
+        this.groupCommitInterval = interval;
+    }
+
+    /** Set the maximum number of pending commands held in memory. */
+    public void setQueueWindowSize(int size) {
+        this.queueWindowSize = Math.max( size, 1 );
+    }
+
+    /**
+     * Set the priority aging interval, in ms.
+     * A queued command's priority is raised by one level for each interval it spends waiting to
+     * execute.
+     */
+    public void setPriorityAgingInterval(long interval) {
+        this.priorityAgingInterval = Math.max( interval, 1 );
+    }
+
+    /**
+     * Return the rank of a command with the specified priority, queued now.
+     * Commands execute in rank order, which is the same as ordering them by priority after
+     * reducing each command's priority by one level for each aging interval spent waiting on the
+     * queue; so a high priority command jumps ahead of recently queued background commands, but
+     * background commands which have waited long enough are never starved.
+     */
+    private long getRank(int priority) {
+        return clock.currentTimeMillis() + priority * priorityAgingInterval;
+    }
+
+    /** Set the minimum interval, in ms, between samples of the queue's depth and throughput. */
+    public void setMetricsSampleInterval(long interval) {
+        this.metricsSampleInterval = interval;
+    }
+
+    /**
+     * Return the scheduler's execution metrics: per-command latency, queue wait time, failures and
+     * retries, and samples of queue depth and throughput.
+     */
+    public CommandSchedulerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Execute all commands currently on the queue. */
+    public void executeQueue() {
+        getRunQueue().dispatch( new Runnable() {
+            @Override
+            public void run() {
+                dispatchCommands();
+            }
+        } );
+    }
+
+    /**
+     * Read pending commands from the queue store into the exec queue.
+     * Commands are read from after the end of the current window. Commands which are currently
+     * executing are skipped.
+     */
+    private void fillWindow() {
+        int limit = queueWindowSize - execQueue.size();
+        if( limit <= 0 || windowExhausted ) {
+            return;
+        }
+        List<CommandItem> queueItems = store.readPending( windowEnd, limit );
+        long now = clock.currentTimeMillis();
+        for( CommandItem commandItem : queueItems ) {
+            commandItem.queuedTime = now;
+            if( !running.containsKey( commandItem.rowID ) ) {
+                execQueue.add( commandItem );
+            }
+            windowEnd = commandItem;
+        }
+        windowExhausted = queueItems.size() < limit;
+    }
+
+    /**
+     * Merge a command written to the queue store into the exec queue, if it falls within the
+     * current window.
+     */
+    private void addToWindow(CommandItem commandItem) {
+        if( windowEnd != null && QueueOrder.compare( commandItem, windowEnd ) < 0 ) {
+            insertIntoExecQueue( commandItem );
+        }
+        else if( windowExhausted && execQueue.size() < queueWindowSize ) {
+            // All pending commands after the window end are already in the exec queue, so the
+            // command can be added without a store read.
+            insertIntoExecQueue( commandItem );
+            windowEnd = commandItem;
+        }
+        else {
+            windowExhausted = false;
+        }
+    }
+
+    /** Insert a command into the exec queue in queue order. */
+    private void insertIntoExecQueue(CommandItem commandItem) {
+        int idx = Collections.binarySearch( execQueue, commandItem, QueueOrder );
+        if( idx < 0 ) {
+            execQueue.add( -(idx + 1), commandItem );
+        }
+    }
+
+    /** Remove a command from the exec queue. Returns the command removed, or null if not found. */
+    private CommandItem removeFromWindow(String rowID) {
+        Iterator<CommandItem> it = execQueue.iterator();
+        while( it.hasNext() ) {
+            CommandItem commandItem = it.next();
+            if( commandItem.rowID.equals( rowID ) ) {
+                it.remove();
+                return commandItem;
+            }
+        }
+        return null;
+    }
+
+    /** Reset the exec queue window, so that the next fill reads from the head of the queue. */
+    private void resetWindow() {
+        execQueue.clear();
+        windowEnd = null;
+        windowExhausted = false;
+    }
+
+    /**
+     * Return the ID to use for a new queue record.
+     * IDs are assigned by the scheduler, rather than by the store, so that the IDs of follow on
+     * commands are known when recording dependencies between them.
+     */
+    private String newRowID() {
+        if( nextRowID == 0 ) {
+            nextRowID = store.getMaxRowID() + 1;
+        }
+        return String.valueOf( nextRowID++ );
+    }
+
+    /** Append a new command to the queue. */
+    public void appendCommand(String name, List args) {
+        appendCommand( name, args, DefaultPriority );
+    }
+
+    /** Append a new command to the queue with the specified priority. */
+    public void appendCommand(String name, List args, int priority) {
+        appendCommand( name, args, priority, null, 0, 0 );
+    }
+
+    /**
+     * Append a new command to the queue with the specified priority and queue limit policy.
+     * @param limitPolicy   The policy to apply if a queue limit has been reached; overrides the
+     *                      command's configured policy. Note that the block policy blocks the
+     *                      calling thread, unless called on the main thread or the scheduler's
+     *                      run queue, in which case the command is accepted over the limit.
+     */
+    public void appendCommand(String name, List args, int priority, String limitPolicy) {
+        appendCommand( name, args, priority, limitPolicy, 0, 0 );
+    }
+
+    /** Append a new command to the queue, to be executed once the specified delay, in ms, has elapsed. */
+    public void appendDelayedCommand(String name, List args, long delay) {
+        appendCommand( name, args, DefaultPriority, null, delay, 0 );
+    }
+
+    /**
+     * Append a recurring command to the queue.
+     * The command is executed as soon as possible, and then again each time the specified interval,
+     * in ms, has elapsed after its previous execution completed. The command isn't appended if the
+     * same recurring command is already on the queue. Recurring commands aren't removed when the
+     * queue or a batch is purged.
+     */
+    public void appendRecurringCommand(String name, List args, long interval) {
+        appendCommand( name, args, DefaultPriority, null, 0, interval );
+    }
+
+    /**
+     * Append a new command to the queue.
+     * Queue limits are enforced on the run queue. Under the block policy, a producer waits until
+     * there appears to be space on the queue, and then for the run queue to accept its command; if
+     * the run queue finds that the limit has been reached again in the meantime, e.g. by another
+     * producer, then the producer goes back to waiting.
+     */
+    private void appendCommand(final String name, final List args, final int priority, final String limitPolicy, final long delay, final long repeatInterval) {
+        Log.d( Tag, String.format("Appending %s %s", name, args ) );
+        final boolean block = repeatInterval == 0
+            && BlockPolicy.equals( limitPolicy != null ? limitPolicy : getQueueLimitPolicy( name ) )
+            && canBlockProducer();
+        // Set on the run queue to whether the append should be retried; only used when blocking.
+        final boolean[] retry = new boolean[1];
+        do {
+            // If the producer is interrupted whilst waiting then its command is accepted over the limit.
+            final boolean waited = block && waitForQueueSpace( name );
+            final CountDownLatch appended = new CountDownLatch( 1 );
+            getRunQueue().dispatch( new Runnable() {
+                public void run() {
+                    CommandItem commandItem = new CommandItem();
+                    commandItem.batch = currentBatch;
+                    commandItem.name = name;
+                    commandItem.args = args;
+                    commandItem.priority = priority;
+                    commandItem.repeatInterval = repeatInterval;
+                    // Only one pending command with the same name and args should exist for the same
+                    // batch at any time, so only insert record if no matching record found.
+                    if( store.containsPending( commandItem ) ) {
+                        retry[0] = false;
+                    }
+                    else if( waited && isQueueLimitReached( name ) ) {
+                        // Another producer has taken the space; the producer waits again.
+                        retry[0] = true;
+                    }
+                    else {
+                        retry[0] = false;
+                        if( repeatInterval > 0 || applyQueueLimits( commandItem, limitPolicy ) ) {
+                            queueCommand( commandItem, delay );
+                            // Commit any open group, so that the new command is persisted immediately.
+                            commitGroupTransaction();
+                        }
+                    }
+                    appended.countDown();
+                }
+            } );
+            if( !block ) {
+                return;
+            }
+            try {
+                appended.await();
+            }
+            catch(InterruptedException e) {
+                // Interrupted; the command is only appended if the run queue finds space for it.
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        while( retry[0] );
+    }
+
+    /**
+     * Write a new command to the queue store.
+     * @param delay The time, in ms, before the command may be executed. The command's rank is
+     *              calculated from the time it becomes due.
+     */
+    private void queueCommand(CommandItem commandItem, long delay) {
+        long now = clock.currentTimeMillis();
+        commandItem.rowID = newRowID();
+        commandItem.rank = getRank( commandItem.getPriority() ) + delay;
+        commandItem.notBefore = delay > 0 ? now + delay : 0;
+        commandItem.queuedTime = now;
+        store.append( commandItem );
+        countAppended( commandItem.name );
+        addToWindow( commandItem );
+    }
+
+    /** Queue the next execution of a recurring command. */
+    private void queueRecurrence(CommandItem commandItem) {
+        if( commandItem.repeatInterval > 0 ) {
+            CommandItem next = new CommandItem();
+            next.batch = currentBatch;
+            next.name = commandItem.name;
+            next.args = commandItem.args;
+            next.priority = commandItem.priority;
+            next.repeatInterval = commandItem.repeatInterval;
+            queueCommand( next, commandItem.repeatInterval );
+        }
+    }
+
+    /** Append a new command to the queue. */
+    public void appendCommand(String command, String... args) {
+        String commandLine = String.format( command, args );
+        CommandItem commandItem = parseCommandItem( commandLine );
+        if( commandItem != null ) {
+            appendCommand( commandItem.name, commandItem.args );
+        }
+    }
+
+    /**
+     * Cancel the command with the specified row ID, whether pending or running.
+     * A running command which implements CancellableCommand or CheckpointedCommand is signalled.
+     * As with failed commands, the dependents of a cancelled command are still executed.
+     */
+    public void cancelCommand(final String rowID) {
+        runOnExecQueue( new Runnable() {
+            public void run() {
+                Execution execution = running.get( rowID );
+                if( execution != null && execution.coalesced != null ) {
+                    // A coalesced batch can't be partially cancelled, so the batch is abandoned
+                    // and its other commands are executed individually.
+                    Log.i( Tag, String.format("Cancelling %s; splitting coalesced batch", rowID ) );
+                    finishExecution( execution );
+                    beginGroupTransaction();
+                    splitCoalescedExecution( execution, rowID );
+                    return;
+                }
+                if( execution != null ) {
+                    cancelExecution( execution );
+                    return;
+                }
+                CommandItem commandItem = removeFromWindow( rowID );
+                beginGroupTransaction();
+                if( commandItem != null ) {
+                    store.complete( commandItem );
+                    countRemoved( commandItem.name );
+                }
+                else {
+                    // The command isn't in the exec queue window, so its name isn't known.
+                    commandItem = new CommandItem();
+                    commandItem.rowID = rowID;
+                    store.complete( commandItem );
+                    recountPending();
+                }
+                dispatchCommands();
+            }
+        } );
+    }
+
+    /** Cancel all pending and running commands with the specified name. */
+    public void cancelCommands(final String name) {
+        runOnExecQueue( new Runnable() {
+            public void run() {
+                Iterator<CommandItem> it = execQueue.iterator();
+                while( it.hasNext() ) {
+                    if( it.next().name.equals( name ) ) {
+                        it.remove();
+                    }
+                }
+                beginGroupTransaction();
+                store.purgeCommands( name );
+                recountPending();
+                for( Execution execution : new ArrayList<>( running.values() ) ) {
+                    if( execution.commandItem.name.equals( name ) ) {
+                        cancelExecution( execution );
+                    }
+                }
+                dispatchCommands();
+            }
+        } );
+    }
+
+    /** Cancel all pending and running commands in the specified batch. */
+    public void cancelBatch(final int batch) {
+        runOnExecQueue( new Runnable() {
+            public void run() {
+                Iterator<CommandItem> it = execQueue.iterator();
+                while( it.hasNext() ) {
+                    if( it.next().batch == batch ) {
+                        it.remove();
+                    }
+                }
+                beginGroupTransaction();
+                store.purgeBatch( batch );
+                recountPending();
+                for( Execution execution : new ArrayList<>( running.values() ) ) {
+                    if( execution.commandItem.batch == batch ) {
+                        cancelExecution( execution );
+                    }
+                }
+                dispatchCommands();
+            }
+        } );
+    }
+
+    /**
+     * Run an action on the exec queue.
+     * If already running on the exec queue then the action is run synchronously; else it is added
+     * to the end of the queue.
+     */
+    private void runOnExecQueue(Runnable action) {
+        if( getRunQueue().isRunningOnQueueThread() ) {
+            action.run();
+        }
+        else {
+            getRunQueue().dispatch( action );
+        }
+    }
+
+    /**
+     * Purge the current execution queue.
+     * The queue store is purged and the exec queue window reset in a single action on the run
+     * queue, so that the window is never reset while the run queue is reading or refilling it.
+     */
+    public void purgeQueue() {
+        runOnExecQueue( new Runnable() {
+            public void run() {
+                // Clear the execution queue, delete all queued commands.
+                resetWindow();
+                currentBatch = 0;
+                store.purge();
+                recountPending();
+            }
+        } );
+    }
+
+    /** Purge the current command batch. See purgeQueue(). */
+    public void purgeCurrentBatch() {
+        runOnExecQueue( new Runnable() {
+            public void run() {
+                resetWindow();
+                store.purgeBatch( currentBatch );
+                recountPending();
+            }
+        } );
+    }
+
+    /**
+     * Start any commands on the exec queue which are ready to execute.
+     * A command is ready when all of the commands it depends on have completed, its due time or
+     * retry time (if any) has passed, its rate limit (if any) allows it to start, and its execution
+     * lane has a free slot. Ready commands are started in queue order. Must be called on the exec
+     * run queue.
+     */
+    private void dispatchCommands() {
+        long now = clock.currentTimeMillis();
+        // The earliest time at which a delayed or rate limited command may start.
+        long nextStartTime = 0;
+        if( execQueue.size() <= queueWindowSize / 2 ) {
+            // Read more commands from the store.
+            fillWindow();
+        }
+        // The row IDs of all commands which haven't yet completed.
+        Set<String> incomplete = new HashSet<>( running.keySet() );
+        for( CommandItem commandItem : execQueue ) {
+            incomplete.add( commandItem.rowID );
+        }
+        // The row IDs of commands coalesced into a batch started during this dispatch.
+        Set<String> coalesced = new HashSet<>();
+        Iterator<CommandItem> it = execQueue.iterator();
+        while( it.hasNext() ) {
+            CommandItem commandItem = it.next();
+            if( coalesced.contains( commandItem.rowID ) ) {
+                it.remove();
+                continue;
+            }
+            if( hasIncompleteDependency( commandItem, incomplete ) ) {
+                continue;
+            }
+            long startTime = Math.max( commandItem.notBefore, getRateLimitedStartTime( commandItem.name ) );
+            if( startTime > now ) {
+                if( nextStartTime == 0 || startTime < nextStartTime ) {
+                    nextStartTime = startTime;
+                }
+                continue;
+            }
+            Command command = commands.get( commandItem.name );
+            if( command == null ) {
+                Log.e( Tag, String.format("Command not found: %s", commandItem.name ) );
+                purgeQueue();
+                return;
+            }
+            String lane = getLane( commandItem.name, command );
+            if( getRunCount( lane ) >= laneConcurrency.get( lane ) ) {
+                continue;
+            }
+            it.remove();
+            recordRateLimitedStart( commandItem.name, now );
+            List<CommandItem> batch = coalesceCommands( commandItem, command, incomplete, now );
+            if( batch != null ) {
+                for( CommandItem batchItem : batch ) {
+                    coalesced.add( batchItem.rowID );
+                }
+                executeCommands( batch, (BatchCommand)command, lane );
+            }
+            else {
+                executeCommand( commandItem, command, lane );
+            }
+        }
+        if( nextStartTime > 0 ) {
+            scheduleDispatch( nextStartTime );
+        }
+        sampleQueueMetrics();
+    }
+
+    /**
+     * Save a running command's checkpoint.
+     * The checkpoint's cursor and follow on commands are written to the queue store in the same
+     * group. Ignored if the command's execution has finished, e.g. because it timed out.
+     */
+    void saveCheckpoint(final CommandItem commandItem, final String cursor, final List<CommandItem> commands) {
+        getRunQueue().dispatch( new Runnable() {
+            @Override
+            public void run() {
+                Execution execution = running.get( commandItem.rowID );
+                if( execution == null || execution.finished ) {
+                    Log.w( Tag, String.format("Ignoring checkpoint of %s %s; execution already finished", commandItem.name, commandItem.args ) );
+                    return;
+                }
+                Log.d( Tag, String.format("Checkpoint %s %s at %s", commandItem.name, commandItem.args, cursor ) );
+                beginGroupTransaction();
+                queueFollowOnCommands( commandItem, commands );
+                commandItem.checkpoint = cursor;
+                store.checkpoint( commandItem );
+                // Start any follow on commands which are ready.
+                dispatchCommands();
+            }
+        } );
+    }
+
+    /**
+     * Find commands on the exec queue which can be coalesced with a command which is about to be
+     * executed; see BatchCommand. A command can be coalesced if it has the same name and batch, and
+     * is itself ready to execute. Recurring and rate limited commands aren't coalesced.
+     * Returns the batch of coalesced commands, starting with the command being executed; or null
+     * if no commands can be coalesced.
+     */
+    private List<CommandItem> coalesceCommands(CommandItem commandItem, Command command, Set<String> incomplete, long now) {
+        if( !(command instanceof BatchCommand) || !commandItem.coalescable || commandItem.repeatInterval > 0 ) {
+            return null;
+        }
+        if( getRateLimitName( commandItem.name ) != null ) {
+            return null;
+        }
+        int maxBatchSize = ((BatchCommand)command).getMaxBatchSize( commandItem.name );
+        List<CommandItem> batch = new ArrayList<>();
+        batch.add( commandItem );
+        for( CommandItem other : execQueue ) {
+            if( batch.size() >= maxBatchSize ) {
+                break;
+            }
+            // Note that the command being executed is still in the incomplete set, so any command
+            // depending on a command in the batch is excluded.
+            if( other != commandItem
+             && other.name.equals( commandItem.name )
+             && other.batch == commandItem.batch
+             && other.coalescable
+             && other.repeatInterval == 0
+             && other.notBefore <= now
+             && !hasIncompleteDependency( other, incomplete ) ) {
+                batch.add( other );
+            }
+        }
+        return batch.size() > 1 ? batch : null;
+    }
+
+    /** Schedule a call to dispatchCommands() at the specified time. */
+    private void scheduleDispatch(final long time) {
+        if( dispatchTime != 0 && dispatchTime <= time ) {
+            // An earlier dispatch is already scheduled.
+            return;
+        }
+        dispatchTime = time;
+        scheduleTimer( time, new Runnable() {
+            @Override
+            public void run() {
+                if( dispatchTime == time ) {
+                    dispatchTime = 0;
+                }
+                dispatchCommands();
+            }
+        } );
+    }
+
+    /**
+     * Schedule a task to run on the exec queue at the specified time.
+     * Must be called on the exec queue.
+     */
+    private TimerWheel.Timer scheduleTimer(long time, Runnable task) {
+        TimerWheel.Timer timer = timers.schedule( time, task );
+        scheduleTimerWakeUp();
+        return timer;
+    }
+
+    /** Ensure that a wake up is scheduled for the timer wheel's next due time. */
+    private void scheduleTimerWakeUp() {
+        final long time = timers.getNextTime();
+        if( time < timerWakeUpTime ) {
+            timerWakeUpTime = time;
+            clock.runAt( time, new Runnable() {
+                @Override
+                public void run() {
+                    getRunQueue().dispatch( new Runnable() {
+                        @Override
+                        public void run() {
+                            if( timerWakeUpTime == time ) {
+                                timerWakeUpTime = Long.MAX_VALUE;
+                            }
+                            timers.advance( clock.currentTimeMillis() );
+                            scheduleTimerWakeUp();
+                        }
+                    } );
+                }
+            } );
+        }
+    }
+
+    /** Return the name a command's rate limit is assigned to; null if the command isn't rate limited. */
+    private String getRateLimitName(String name) {
+        return findConfigName( name, commandRateLimits );
+    }
+
+    /**
+     * Return the name a configuration setting for a command is assigned to in a configuration map;
+     * either the command's name, or its protocol's name. Returns null if the map has no setting
+     * for the command.
+     */
+    private static String findConfigName(String name, Map<String,?> config) {
+        if( config.containsKey( name ) ) {
+            return name;
+        }
+        // Check for a setting assigned to the command's protocol.
+        int idx = name.indexOf('.');
+        if( idx > 0 && config.containsKey( name.substring( 0, idx ) ) ) {
+            return name.substring( 0, idx );
+        }
+        return null;
+    }
+
+    /** Return the queue limit policy for a command. */
+    private String getQueueLimitPolicy(String name) {
+        synchronized( pendingCounts ) {
+            String policyName = findConfigName( name, queueLimitPolicies );
+            return policyName != null ? queueLimitPolicies.get( policyName ) : defaultQueueLimitPolicy;
+        }
+    }
+
     /**
-     * A queue used to run commands.
-     * All commands are run sequentially on the same background thread.
+     * Return the number of pending commands counted against a queue limit.
+     * @param limitName A command name, or a protocol name.
      */
-    static final RunQueue ExecRunQueue = new RunQueue( Tag );
+    private int countPending(String limitName) {
+        synchronized( pendingCounts ) {
+            Integer count = pendingCounts.get( limitName );
+            if( count != null ) {
+                return count;
+            }
+            // Count the commands of a protocol.
+            int total = 0;
+            String prefix = limitName.concat(".");
+            for( String name : pendingCounts.keySet() ) {
+                if( name.startsWith( prefix ) ) {
+                    total += pendingCounts.get( name );
+                }
+            }
+            return total;
+        }
+    }
 
-    /** Empty command list, used to indicate that a command has no follow on commands. */
-    public static final List<CommandItem> NoFollowOns = Collections.emptyList();
+    /** Test whether a queue limit applying to new commands with the specified name has been reached. */
+    private boolean isQueueLimitReached(String name) {
+        synchronized( pendingCounts ) {
+            return isCommandQueueLimitReached( name ) || (maxQueueSize > 0 && pendingTotal >= maxQueueSize);
+        }
+    }
+
+    /** Test whether the queue limit of the command or protocol with the specified name has been reached. */
+    private boolean isCommandQueueLimitReached(String name) {
+        synchronized( pendingCounts ) {
+            String limitName = findConfigName( name, commandQueueLimits );
+            return limitName != null && countPending( limitName ) >= commandQueueLimits.get( limitName );
+        }
+    }
 
-    /** The queue database. */
-    private DB db;
-    /** A list of commands currently being executed. */
-    private List<CommandItem> execQueue;
-    /** Pointer into the exec queue to the command currently being executed. */
-    private int execIdx;
-    /** Current batch number. */
-    private int currentBatch = 0;
     /**
-     * A map of command instances, keyed by name.
-     * Commands which are protocol instances (i.e. CommandProtocol subclasses) have each of their
-     * protocol commands mapped into the command namespace with the protocol command name as
-     * a prefix, so e.g. { name => protocol } --> name.command1, name.command2 etc.
+     * Test whether the calling thread can be blocked by the block queue limit policy.
+     * The main thread and the run queue can't be blocked, as blocking them would freeze the app or
+     * deadlock the scheduler.
      */
-    private Map<String,Command> commands = new HashMap<>();
+    private boolean canBlockProducer() {
+        return Looper.myLooper() != Looper.getMainLooper() && !getRunQueue().isRunningOnQueueThread();
+    }
+
     /**
-     * Whether to delete queue database records after processing.
-     * Defaults to true. When false, the 'status' field is used to track pending vs. executed
-     * records; this mode is primarily useful for debugging.
+     * Block the calling thread until no queue limit applying to new commands with the specified
+     * name has been reached. Must only be called on a thread which can be blocked; see
+     * canBlockProducer().
+     * @return false if the thread was interrupted whilst waiting.
      */
-    private boolean deleteExecutedQueueRecords = true;
+    private boolean waitForQueueSpace(String name) {
+        synchronized( pendingCounts ) {
+            while( isQueueLimitReached( name ) ) {
+                try {
+                    pendingCounts.wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
 
-    /** An object representing a command item on the execution queue. */
-    public static class CommandItem {
-        /** The ID of the command's DB record. */
-        String rowID;
-        /** The command name. */
-        String name;
-        /** A list of the command arguments. */
-        List args;
-        /** The command's execution priority. */
-        Integer priority;
-        /** Instantiate an empty command item. */
-        CommandItem() {}
-        /** Instantiate a new command item from a db record. */
-        CommandItem(Map<String,?> record) {
-            this.rowID = record.get("id").toString();
-            this.name = (String)record.get("command");
-            try {
-                String json = (String)record.get("args");
-                this.args = (List)JSONValue.parseWithException( json );
+    /**
+     * Apply queue limits to a new command, before it is written to the queue store.
+     * Returns true if the command should be written; or false if the command has been dropped, or
+     * merged into a pending command, in which case the command takes the merged command's row ID,
+     * so that commands depending on it depend on the merged command. Must be called on the run
+     * queue.
+     * @param policy    The policy to apply if a limit has been reached; or null to apply the
+     *                  command's configured policy.
+     */
+    private boolean applyQueueLimits(CommandItem commandItem, String policy) {
+        boolean commandLimitReached = isCommandQueueLimitReached( commandItem.name );
+        if( !(commandLimitReached || isQueueLimitReached( commandItem.name )) ) {
+            return true;
+        }
+        if( policy == null ) {
+            policy = getQueueLimitPolicy( commandItem.name );
+        }
+        if( BlockPolicy.equals( policy ) ) {
+            // Blocked producers only append once the run queue has found space for their command
+            // (see appendCommand()); commands reaching this point were appended from a thread
+            // which can't block, or are follow on commands, and are accepted over the limit.
+            Log.w( Tag, String.format("Queue limit reached; accepting %s %s", commandItem.name, commandItem.args ) );
+            return true;
+        }
+        if( DropOldestPolicy.equals( policy ) ) {
+            // If the command's own limit has been reached then the oldest command with the same
+            // name is dropped; otherwise the oldest command on the queue.
+            if( dropOldestCommand( commandLimitReached ? commandItem.name : null ) ) {
+                return true;
             }
-            catch(org.json.simple.parser.ParseException e) {
-                Log.e(Tag, "Parsing JSON args", e );
+        }
+        else if( MergePolicy.equals( policy ) ) {
+            if( mergeCommand( commandItem ) ) {
+                return false;
             }
         }
-        /** Instantiate a new command item with a command name and list of arguments. */
-        public CommandItem(String name, Object... args) {
-            this.name = name;
-            this.args = Arrays.asList( args );
+        Log.w( Tag, String.format("Queue limit reached; dropping %s %s", commandItem.name, commandItem.args ) );
+        metrics.recordDropped( commandItem.name );
+        return false;
+    }
+
+    /**
+     * Drop the oldest pending command which isn't running and isn't a recurring command.
+     * @param name  Only drop a command with this name; or null to drop a command with any name.
+     * Returns false if no command could be dropped.
+     */
+    private boolean dropOldestCommand(String name) {
+        for( CommandItem commandItem : store.readPendingByAge( name, false, running.size() + 1 ) ) {
+            if( !running.containsKey( commandItem.rowID ) && commandItem.repeatInterval == 0 ) {
+                Log.w( Tag, String.format("Queue limit reached; dropping %s %s", commandItem.name, commandItem.args ) );
+                removeFromWindow( commandItem.rowID );
+                store.complete( commandItem );
+                countRemoved( commandItem.name );
+                metrics.recordDropped( commandItem.name );
+                return true;
+            }
         }
+        return false;
     }
 
-    public CommandScheduler(Context androidContext) {
-        // Command database setup.
-        db = new DB();
-        db.setAndroidContext( androidContext );
-        db.setName("com.innerfunction.semo.command-scheduler");
-        db.setVersion( 1 );
-        db.setTableSchema(
-            new Table("queue",
-                new Column("id",     "INTEGER PRIMARY KEY", "id"),
-                new Column("batch",  "INTEGER"),
-                new Column("command","TEXT"),
-                new Column("args",   "TEXT"),
-                new Column("status", "TEXT")));
+    /**
+     * Merge a new command into the newest pending command with the same name and batch, which
+     * isn't running and has no dependencies, by appending the new command's args to the pending
+     * command's args. Intended for commands whose args are a list of independent operands, e.g.
+     * the paths of the rm command. Commands with dependencies aren't merged.
+     * Returns false if no command could be merged.
+     */
+    private boolean mergeCommand(CommandItem commandItem) {
+        if( commandItem.deps != null && commandItem.deps.size() > 0 ) {
+            return false;
+        }
+        for( CommandItem pending : store.readPendingByAge( commandItem.name, true, running.size() + 1 ) ) {
+            if( running.containsKey( pending.rowID ) || pending.repeatInterval > 0 || pending.batch != commandItem.batch ) {
+                continue;
+            }
+            if( pending.deps != null && pending.deps.size() > 0 ) {
+                continue;
+            }
+            List<Object> args = new ArrayList<>( pending.args );
+            for( Object arg : commandItem.args ) {
+                if( !args.contains( arg ) ) {
+                    args.add( arg );
+                }
+            }
+            pending.args = args;
+            store.updateArgs( pending );
+            // Update the copy of the command in the exec queue window, if any.
+            for( CommandItem queued : execQueue ) {
+                if( queued.rowID.equals( pending.rowID ) ) {
+                    queued.args = args;
+                }
+            }
+            Log.d( Tag, String.format("Queue limit reached; merged %s %s into %s", commandItem.name, commandItem.args, pending.rowID ) );
+            metrics.recordDropped( commandItem.name );
+            commandItem.rowID = pending.rowID;
+            commandItem.rank = pending.rank;
+            return true;
+        }
+        return false;
+    }
 
-        // Standard built-in command mappings.
-        commands = new HashMap<>();
-        commands.put("rm", new RmFileCommand() );
-        commands.put("mv", new MvFileCommand() );
-        commands.put("unzip", new UnzipCommand( androidContext ) );
+    /** Record a command written to the queue store in the pending counts. */
+    private void countAppended(String name) {
+        synchronized( pendingCounts ) {
+            Integer count = pendingCounts.get( name );
+            pendingCounts.put( name, count == null ? 1 : count + 1 );
+            pendingTotal++;
+        }
+    }
+
+    /** Record a command removed from the queue store in the pending counts, and wake any blocked producers. */
+    private void countRemoved(String name) {
+        synchronized( pendingCounts ) {
+            Integer count = pendingCounts.get( name );
+            if( count != null && count > 1 ) {
+                pendingCounts.put( name, count - 1 );
+            }
+            else {
+                pendingCounts.remove( name );
+            }
+            pendingTotal = Math.max( pendingTotal - 1, 0 );
+            pendingCounts.notifyAll();
+        }
+    }
+
+    /** Reload the pending counts from the queue store, e.g. after commands are purged. */
+    private void recountPending() {
+        Map<String,Integer> counts = store.countPendingByName();
+        synchronized( pendingCounts ) {
+            pendingCounts.clear();
+            pendingCounts.putAll( counts );
+            pendingTotal = 0;
+            for( Integer count : counts.values() ) {
+                pendingTotal += count;
+            }
+            pendingCounts.notifyAll();
+        }
     }
 
     /**
-     * The name of the command queue database.
+     * Return the earliest time a command can start without exceeding its rate limit.
+     * A rate limited command can start once its rate limit window - the start times of the limit's
+     * most recent executions - spans a period long enough for the limit's rate; this allows short
+     * bursts of executions, whilst keeping the average rate within the limit.
      */
-    public void setQueueDBName(String name) {
-        db.setName( name );
+    private long getRateLimitedStartTime(String name) {
+        String limitName = getRateLimitName( name );
+        if( limitName == null ) {
+            return 0;
+        }
+        List<Long> window = rateLimitWindows.get( limitName );
+        if( window == null || window.size() < RateLimitWindowSize ) {
+            return 0;
+        }
+        float msecsPerExecution = 60000.0f / commandRateLimits.get( limitName );
+        return window.get( 0 ) + (long)(msecsPerExecution * RateLimitWindowSize);
     }
 
-    public void setCommands(Map<String,Command> commands) {
-        for( String name : commands.keySet() ) {
-            Command command = commands.get( name );
-            setCommand( name, command );
+    /** Record the start time of a rate limited command. */
+    private void recordRateLimitedStart(String name, long time) {
+        String limitName = getRateLimitName( name );
+        if( limitName != null ) {
+            List<Long> window = rateLimitWindows.get( limitName );
+            if( window == null ) {
+                window = new ArrayList<>();
+                rateLimitWindows.put( limitName, window );
+            }
+            window.add( time );
+            if( window.size() > RateLimitWindowSize ) {
+                window.remove( 0 );
+            }
         }
     }
 
-    public void setCommand(String name, Command command) {
-        if( command instanceof CommandProtocol ) {
-            CommandProtocol protocol = (CommandProtocol)command;
-            protocol.setCommandPrefix( name );
-            // Iterate over the protocol's supported commands and add to the command
-            // namespace under a fully qualified name.
-            Map<String,Command> protocolCommands = protocol.getCommands();
-            for( String subname : protocolCommands.keySet() ) {
-                String qualifiedName = String.format("%s.%s", name, subname );
-                this.commands.put( qualifiedName, command );
+    /** Record a sample of the queue's depth, if the sample interval has elapsed since the last sample. */
+    private void sampleQueueMetrics() {
+        long now = clock.currentTimeMillis();
+        if( now - lastSampleTime >= metricsSampleInterval ) {
+            Set<Integer> batches = new HashSet<>();
+            for( CommandItem commandItem : execQueue ) {
+                batches.add( commandItem.batch );
+            }
+            for( Execution execution : running.values() ) {
+                batches.add( execution.commandItem.batch );
+            }
+            int depth;
+            synchronized( pendingCounts ) {
+                depth = pendingTotal;
             }
+            metrics.recordQueueSample( depth, batches.size() );
+            lastSampleTime = now;
         }
-        else {
-            this.commands.put( name, command );
+    }
+
+    /** Test whether a command depends on any incomplete command. */
+    private boolean hasIncompleteDependency(CommandItem commandItem, Set<String> incomplete) {
+        for( String rowID : commandItem.deps ) {
+            if( incomplete.contains( rowID ) ) {
+                return true;
+            }
         }
+        return false;
     }
 
-    public void setDeleteExecutedQueueRecords(boolean delete) {
-        this.deleteExecutedQueueRecords = delete;
+    /** Return the name of the lane to execute a command in. */
+    private String getLane(String name, Command command) {
+        String lane = commandLanes.get( name );
+        if( lane == null ) {
+            // Check for a lane assigned to the command's protocol.
+            int idx = name.indexOf('.');
+            if( idx > 0 ) {
+                lane = commandLanes.get( name.substring( 0, idx ) );
+            }
+        }
+        if( lane == null && command instanceof ExecutionLaneAware ) {
+            lane = ((ExecutionLaneAware)command).getExecutionLane( name );
+        }
+        if( lane == null || !laneConcurrency.containsKey( lane ) ) {
+            lane = DefaultLane;
+        }
+        return lane;
     }
 
-    /** Execute all commands currently on the queue. */
-    public void executeQueue() {
-        if( execIdx > 0 ) {
-            // Commands currently being executed from queue, leave these to be completed.
-            return;
+    /** Return the retry policy for a command; null if the command shouldn't be retried. */
+    private RetryPolicy getRetryPolicy(String name, Command command) {
+        RetryPolicy policy = retryPolicies.get( name );
+        if( policy == null ) {
+            // Check for a policy assigned to the command's protocol.
+            int idx = name.indexOf('.');
+            if( idx > 0 ) {
+                policy = retryPolicies.get( name.substring( 0, idx ) );
+            }
+        }
+        if( policy == null && command instanceof RetryPolicyAware ) {
+            policy = ((RetryPolicyAware)command).getRetryPolicy( name );
+        }
+        if( policy == null ) {
+            policy = defaultRetryPolicy;
+        }
+        return policy;
+    }
+
+    /** Return a command's timeout in ms; 0 if the command has no timeout. */
+    private long getTimeout(String name) {
+        Long timeout = commandTimeouts.get( name );
+        if( timeout == null ) {
+            // Check for a timeout assigned to the command's protocol.
+            int idx = name.indexOf('.');
+            if( idx > 0 ) {
+                timeout = commandTimeouts.get( name.substring( 0, idx ) );
+            }
+        }
+        return timeout != null ? timeout : defaultCommandTimeout;
+    }
+
+    /** Return the number of commands currently executing in a lane. */
+    private int getRunCount(String lane) {
+        Integer count = laneRunCounts.get( lane );
+        return count != null ? count : 0;
+    }
+
+    /** Return the scheduler's run queue, creating a queue with a dedicated thread if none set. */
+    private synchronized CommandRunQueue getRunQueue() {
+        if( runQueue == null ) {
+            String name = queueName != null ? String.format("%s-%s", Tag, queueName ) : Tag;
+            runQueue = new ThreadRunQueue( name );
+        }
+        return runQueue;
+    }
+
+    /** Return the executor for a lane, creating it if necessary. */
+    private Executor getLaneExecutor(final String lane) {
+        Executor customExecutor = customLaneExecutors.get( lane );
+        if( customExecutor != null ) {
+            return customExecutor;
+        }
+        ExecutorService executor = laneExecutors.get( lane );
+        if( executor == null ) {
+            executor = Executors.newFixedThreadPool( laneConcurrency.get( lane ), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread( runnable, String.format("%s-%s", Tag, lane ) );
+                }
+            } );
+            laneExecutors.put( lane, executor );
+        }
+        return executor;
+    }
+
+    /** Execute a command on its lane's executor. */
+    private void executeCommand(final CommandItem commandItem, final Command command, final String lane) {
+        final Execution execution = new Execution( commandItem, command, lane );
+        execution.startTime = clock.currentTimeMillis();
+        running.put( commandItem.rowID, execution );
+        laneRunCounts.put( lane, getRunCount( lane ) + 1 );
+        Log.d( Tag, String.format("Executing %s %s [%s]", commandItem.name, commandItem.args, lane ) );
+        long timeout = getTimeout( commandItem.name );
+        if( timeout > 0 ) {
+            execution.watchdog = scheduleTimer( execution.startTime + timeout, new Runnable() {
+                @Override
+                public void run() {
+                    timeoutExecution( execution );
+                }
+            } );
         }
-        ExecRunQueue.dispatch( new Runnable() {
+        getLaneExecutor( lane ).execute( new Runnable() {
             @Override
             public void run() {
-                // NOTE performQuery(String sql, Object... params);
-                List<Map<String,Object>> queueItems = db.performQuery("SELECT * FROM queue WHERE status='P' ORDER BY batch, id ASC");
-                execQueue = new ArrayList<>();
-                for( Map<String,?> queueItem : queueItems ) {
-                    execQueue.add( new CommandItem( queueItem ) );
+                try {
+                    Q.Promise<List<CommandItem>> promise;
+                    try {
+                        if( command instanceof CheckpointedCommand ) {
+                            Checkpoint checkpoint = new Checkpoint( CommandScheduler.this, commandItem, execution.cancellation );
+                            promise = ((CheckpointedCommand)command).execute( commandItem.name, commandItem.args, checkpoint );
+                        }
+                        else if( command instanceof CancellableCommand ) {
+                            promise = ((CancellableCommand)command).execute( commandItem.name, commandItem.args, execution.cancellation );
+                        }
+                        else {
+                            promise = command.execute( commandItem.name, commandItem.args );
+                        }
+                    }
+                    catch(Exception e) {
+                        promise = Q.reject( e );
+                    }
+                    promise
+                        .then( new Q.Promise.Callback<List<CommandItem>, Object>() {
+                            public Object result(final List<CommandItem> commands) {
+                                final long latency = clock.currentTimeMillis() - execution.startTime;
+                                getRunQueue().dispatch( new Runnable() {
+                                    public void run() {
+                                        if( !finishExecution( execution ) ) {
+                                            return;
+                                        }
+                                        metrics.recordExecution( commandItem.name, execution.startTime - commandItem.queuedTime, latency, false );
+                                        beginGroupTransaction();
+                                        queueFollowOnCommands( commandItem, commands );
+                                        queueRecurrence( commandItem );
+                                        continueQueueProcessingAfterCommand( execution );
+                                    }
+                                } );
+                                return null;
+                            }
+                        } )
+                        .error( new Q.Promise.ErrorCallback() {
+                            public void error(Exception e) {
+                                Log.e( Tag, String.format("Error executing command %s %s", commandItem.name, commandItem.args ), e );
+                                // TODO: Review whether queue should be purged or not. Removed for now.
+                                // Commands should detect errors caused by previous command failures and
+                                // deal with accordingly.
+                                // purgeQueue();
+                                final long latency = clock.currentTimeMillis() - execution.startTime;
+                                getRunQueue().dispatch( new Runnable() {
+                                    public void run() {
+                                        if( !finishExecution( execution ) ) {
+                                            return;
+                                        }
+                                        metrics.recordExecution( commandItem.name, execution.startTime - commandItem.queuedTime, latency, true );
+                                        beginGroupTransaction();
+                                        continueQueueProcessingAfterFailure( execution );
+                                    }
+                                } );
+                            }
+                        } );
+                }
+                finally {
+                    returnExecution( execution );
                 }
-                execIdx = 0;
-                executeNextCommand();
             }
         } );
     }
 
-    /** Append a new command to the queue. */
-    public void appendCommand(final String name, final List args) {
-        Log.d( Tag, String.format("Appending %s %s", name, args ) );
-        ExecRunQueue.dispatch( new Runnable() {
+    /** Execute a coalesced batch of commands, using a single call to the batch command. */
+    private void executeCommands(final List<CommandItem> batch, final BatchCommand command, final String lane) {
+        final CommandItem commandItem = batch.get( 0 );
+        final Execution execution = new Execution( commandItem, command, lane );
+        execution.coalesced = batch;
+        execution.startTime = clock.currentTimeMillis();
+        final List<List> argsList = new ArrayList<>( batch.size() );
+        for( CommandItem batchItem : batch ) {
+            running.put( batchItem.rowID, execution );
+            argsList.add( batchItem.args );
+        }
+        laneRunCounts.put( lane, getRunCount( lane ) + 1 );
+        Log.d( Tag, String.format("Executing %d coalesced %s commands [%s]", batch.size(), commandItem.name, lane ) );
+        // The timeout applies to each command in the batch.
+        long timeout = getTimeout( commandItem.name );
+        if( timeout > 0 ) {
+            execution.watchdog = scheduleTimer( execution.startTime + timeout * batch.size(), new Runnable() {
+                @Override
+                public void run() {
+                    timeoutExecution( execution );
+                }
+            } );
+        }
+        getLaneExecutor( lane ).execute( new Runnable() {
+            @Override
             public void run() {
-                String argsJSON = JSONValue.toJSONString( args );
-                Map values = new HashMap<>();
-                values.put("batch", currentBatch );
-                values.put("command", name );
-                values.put("args", argsJSON );
-                values.put("status", "P" );
-                // Only one pending command with the same name and args should exist for the same
-                // batch at any time, so only insert record if no matching record found.
-                // public int countInTable(String tableName, String where, Object... params)
-                String batch = String.valueOf( currentBatch );
-                int count = db.countInTable("queue","batch=? AND command=? AND args=? AND status=?", batch, name, argsJSON, "P" );
-                if( count == 0 ) {
-                    db.upsert("queue", values );
+                try {
+                    Q.Promise<List<CommandItem>> promise;
+                    try {
+                        promise = command.executeBatch( commandItem.name, argsList );
+                    }
+                    catch(Exception e) {
+                        promise = Q.reject( e );
+                    }
+                    promise
+                        .then( new Q.Promise.Callback<List<CommandItem>, Object>() {
+                            public Object result(final List<CommandItem> commands) {
+                                final long latency = clock.currentTimeMillis() - execution.startTime;
+                                getRunQueue().dispatch( new Runnable() {
+                                    public void run() {
+                                        if( !finishExecution( execution ) ) {
+                                            return;
+                                        }
+                                        for( CommandItem batchItem : batch ) {
+                                            metrics.recordExecution( batchItem.name, execution.startTime - batchItem.queuedTime, latency, false );
+                                        }
+                                        beginGroupTransaction();
+                                        queueFollowOnCommands( commandItem, commands );
+                                        completeCoalescedCommands( execution );
+                                        continueQueueProcessingAfterCommand( execution );
+                                    }
+                                } );
+                                return null;
+                            }
+                        } )
+                        .error( new Q.Promise.ErrorCallback() {
+                            public void error(Exception e) {
+                                Log.e( Tag, String.format("Error executing %d coalesced %s commands", batch.size(), commandItem.name ), e );
+                                getRunQueue().dispatch( new Runnable() {
+                                    public void run() {
+                                        if( !finishExecution( execution ) ) {
+                                            return;
+                                        }
+                                        beginGroupTransaction();
+                                        continueQueueProcessingAfterFailure( execution );
+                                    }
+                                } );
+                            }
+                        } );
+                }
+                finally {
+                    returnExecution( execution );
                 }
             }
         } );
     }
 
-    /** Append a new command to the queue. */
-    public void appendCommand(String command, String... args) {
-        String commandLine = String.format( command, args );
-        CommandItem commandItem = parseCommandItem( commandLine );
-        if( commandItem != null ) {
-            appendCommand( commandItem.name, commandItem.args );
+    /**
+     * Complete all commands of a coalesced batch, other than the batch's first command.
+     * The first command is completed by continueQueueProcessingAfterCommand().
+     */
+    private void completeCoalescedCommands(Execution execution) {
+        if( execution.coalesced != null ) {
+            for( CommandItem batchItem : execution.coalesced ) {
+                if( batchItem != execution.commandItem ) {
+                    store.complete( batchItem );
+                    countRemoved( batchItem.name );
+                    running.remove( batchItem.rowID );
+                    groupCompletionCount++;
+                }
+            }
         }
     }
 
-    /** Purge the current execution queue. */
-    public void purgeQueue() {
-        // Clear the execution queue, delete all queued commands.
-        execQueue.clear();
-        execIdx = 0;
-        currentBatch = 0;
-        Runnable purge = new Runnable() {
-            public void run() {
-                if( deleteExecutedQueueRecords ) {
-                    db.deleteWhere("queue", "1=1" );
-                }
-                else {
-                    db.performUpdate("UPDATE queue SET status='X' WHERE status='P'");
-                }
-                db.commitTransaction();
+    /**
+     * Split up a coalesced batch which has failed, timed out or been partially cancelled, and
+     * return its commands to the queue to be executed individually.
+     * @param cancelledRowID    The row ID of a command in the batch which has been cancelled, and
+     *                          which is completed rather than returned to the queue; or null.
+     */
+    private void splitCoalescedExecution(Execution execution, String cancelledRowID) {
+        for( CommandItem batchItem : execution.coalesced ) {
+            running.remove( batchItem.rowID );
+            if( batchItem.rowID.equals( cancelledRowID ) ) {
+                store.complete( batchItem );
+                countRemoved( batchItem.name );
+            }
+            else {
+                batchItem.coalescable = false;
+                addToWindow( batchItem );
             }
-        };
-        // If already running on the exec queue the run the purge synchronously; else add to end of
-        // queue.
-        if( ExecRunQueue.isRunningOnQueueThread() ) {
-            purge.run();
         }
-        else {
-            ExecRunQueue.dispatch( purge );
+        continueQueueProcessing( execution );
+    }
+
+    /**
+     * Mark a command execution as finished, and cancel its watchdog.
+     * Returns false if the execution had already finished - e.g. because it timed out or was
+     * cancelled - in which case the execution's result should be ignored.
+     */
+    private boolean finishExecution(Execution execution) {
+        if( execution.finished ) {
+            CommandItem commandItem = execution.commandItem;
+            Log.d( Tag, String.format("Ignoring result of %s %s; execution already finished", commandItem.name, commandItem.args ) );
+            return false;
+        }
+        execution.finished = true;
+        if( execution.watchdog != null ) {
+            execution.watchdog.cancel();
         }
+        return true;
     }
 
-    /** Purge the current command batch. */
-    public void purgeCurrentBatch() {
-        execQueue.clear();
-        execIdx = 0;
-        Runnable purge = new Runnable() {
+    /**
+     * Record the return of a command's call on its lane executor. Releases the execution's lane
+     * slot if the execution finished before the call returned.
+     */
+    private void returnExecution(final Execution execution) {
+        getRunQueue().dispatch( new Runnable() {
+            @Override
             public void run() {
-                String batch = String.valueOf( currentBatch );
-                if( deleteExecutedQueueRecords ) {
-                    db.deleteWhere("queue", "batch=?", batch );
-                }
-                else {
-                    db.performUpdate("UPDATE queue SET status='X' WHERE status='P' AND batch=?", batch );
+                execution.returned = true;
+                if( execution.releaseOnReturn ) {
+                    laneRunCounts.put( execution.lane, getRunCount( execution.lane ) - 1 );
+                    dispatchCommands();
                 }
-                db.commitTransaction();
             }
-        };
-        // If already running on the exec queue the run the purge synchronously; else add to end of
-        // queue.
-        if( ExecRunQueue.isRunningOnQueueThread() ) {
-            purge.run();
+        } );
+    }
+
+    /** Time out a command execution; the command is treated as having failed. */
+    private void timeoutExecution(Execution execution) {
+        if( !execution.finished ) {
+            finishExecution( execution );
+            CommandItem commandItem = execution.commandItem;
+            long latency = clock.currentTimeMillis() - execution.startTime;
+            Log.w( Tag, String.format("Command %s %s timed out after %d ms", commandItem.name, commandItem.args, latency ) );
+            signalCancellation( execution );
+            metrics.recordExecution( commandItem.name, execution.startTime - commandItem.queuedTime, latency, true );
+            beginGroupTransaction();
+            continueQueueProcessingAfterFailure( execution );
+        }
+    }
+
+    /** Cancel a running command execution. The command is completed without being retried. */
+    private void cancelExecution(Execution execution) {
+        if( !execution.finished ) {
+            finishExecution( execution );
+            CommandItem commandItem = execution.commandItem;
+            Log.i( Tag, String.format("Cancelling %s %s", commandItem.name, commandItem.args ) );
+            signalCancellation( execution );
+            beginGroupTransaction();
+            completeCoalescedCommands( execution );
+            continueQueueProcessingAfterCommand( execution );
+        }
+    }
+
+    /** Signal cancellation to an executing command. */
+    private void signalCancellation(Execution execution) {
+        try {
+            execution.cancellation.cancel();
+        }
+        catch(Exception e) {
+            Log.e( Tag, String.format("Signalling cancellation to %s", execution.commandItem.name ), e );
+        }
+    }
+
+    /** Continue queue processing after a command fails, retrying the command if its retry policy allows. */
+    private void continueQueueProcessingAfterFailure(Execution execution) {
+        if( execution.coalesced != null ) {
+            splitCoalescedExecution( execution, null );
+            return;
+        }
+        CommandItem commandItem = execution.commandItem;
+        RetryPolicy policy = getRetryPolicy( commandItem.name, execution.command );
+        if( policy != null && policy.shouldRetry( commandItem.attempts + 1 ) ) {
+            retryCommand( execution, policy );
         }
         else {
-            ExecRunQueue.dispatch( purge );
+            queueRecurrence( commandItem );
+            continueQueueProcessingAfterCommand( execution );
         }
     }
 
-    /** Execute the next command on the exec queue. */
-    private void executeNextCommand() {
-        ExecRunQueue.dispatch( new Runnable() {
-            @Override
-            public void run() {
-                if( execQueue.size() == 0 ) {
-                    // Do nothing if nothing on the queue.
-                    execIdx = -1;
-                    return;
+    /**
+     * Write a command's follow on commands to the queue store.
+     * Each follow on command depends on the command before it in the list, unless the command
+     * declares its dependencies explicitly. Follow on commands without a priority inherit the
+     * priority of the command which returned them.
+     */
+    private void queueFollowOnCommands(CommandItem parent, List<CommandItem> commands) {
+        CommandItem previous = null;
+        for( CommandItem command : commands ) {
+            // Check for system commands.
+            if("control.purge-queue".equals( command.name ) ) {
+                purgeQueue();
+                continue;
+            }
+            if("control.purge-current-batch".equals( command.name ) ) {
+                purgeCurrentBatch();
+                continue;
+            }
+            if( command.priority == null ) {
+                command.priority = parent.getPriority();
+            }
+            // High priority commands can sort before the end of the exec queue window; these are
+            // merged into the exec queue.
+            long rank = getRank( command.priority );
+            Log.d( Tag, String.format("Appending %s %s", command.name, command.args ) );
+            String rowID = newRowID();
+            command.rowID = rowID;
+            List<String> deps = new ArrayList<>();
+            if( command.dependencies == null ) {
+                if( previous != null ) {
+                    deps.add( previous.rowID );
+                    rank = Math.max( rank, previous.rank );
                 }
-                if( execIdx > execQueue.size() - 1 ) {
-                    // If moved past the end of the queue then try reading a new list of commands
-                    // from the db.
-                    execIdx = -1;
-                    executeQueue();
-                    return;
+            }
+            else {
+                for( CommandItem dependency : command.dependencies ) {
+                    // Row IDs are assigned in queue order, so requiring that a dependency has a
+                    // lower row ID ensures that the dependency graph has no cycles.
+                    if( dependency.rowID != null && Long.parseLong( dependency.rowID ) < Long.parseLong( rowID ) ) {
+                        deps.add( dependency.rowID );
+                        rank = Math.max( rank, dependency.rank );
+                    }
+                    else {
+                        Log.w( Tag, String.format("Ignoring dependency of %s on %s; dependency not queued before command", command.name, dependency.name ) );
+                    }
                 }
-                final CommandItem commandItem = execQueue.get( execIdx );
-                // Iterate command pointer.
-                execIdx++;
-                // Find and execute the command.
-                Log.d( Tag, String.format("Executing %s %s", commandItem.name, commandItem.args ) );
-                Command command = commands.get( commandItem.name );
-                if( command == null ) {
-                    Log.e( Tag, String.format("Command not found: %s", commandItem.name ) );
-                    purgeQueue();
-                    return;
+            }
+            command.deps = deps;
+            command.batch = currentBatch;
+            command.rank = rank;
+            command.queuedTime = clock.currentTimeMillis();
+            if( command.delay > 0 ) {
+                command.notBefore = command.queuedTime + command.delay;
+                command.rank += command.delay;
+            }
+            if( !applyQueueLimits( command, null ) ) {
+                // The command has been dropped, or merged into a pending command; in the latter
+                // case, the command now has the pending command's row ID, and following commands
+                // depend on the pending command.
+                if( !rowID.equals( command.rowID ) ) {
+                    previous = command;
                 }
-                command.execute( commandItem.name, commandItem.args )
-                    .then( new Q.Promise.Callback<List<CommandItem>, Object>() {
-                        public Object result(final List<CommandItem> commands) {
-                            ExecRunQueue.dispatch( new Runnable() {
-                                public void run() {
-                                    // Queue any new commands, delete current command from db.
-                                    db.beginTransaction();
-                                    for( CommandItem command : commands ) {
-                                        // Check for system commands.
-                                        if("control.purge-queue".equals( command.name ) ) {
-                                            purgeQueue();
-                                            continue;
-                                        }
-                                        if("control.purge-current-batch".equals( command.name ) ) {
-                                            purgeCurrentBatch();
-                                            continue;
-                                        }
-                                        int batch = currentBatch;
-                                        if( command.priority != null ) {
-                                            batch += command.priority;
-                                            // Negative priorities can place new commands at the head
-                                            // of the queue; reset the exec queue to force a db read,
-                                            // so that these commands are read into the head of the
-                                            // exec queue.
-                                            if( batch < currentBatch ) {
-                                                execQueue.clear();
-                                            }
-                                        }
-                                        Log.d( Tag, String.format("Appending %s %s", command.name, command.args ) );
-                                        Map<String, Object> values = new HashMap<>();
-                                        values.put("batch", batch );
-                                        values.put("command", command.name );
-                                        values.put("args", JSONValue.toJSONString( command.args ) );
-                                        values.put("status", "P" );
-                                        db.insert("queue", values );
-                                    }
-                                    continueQueueProcessingAfterCommand( commandItem.rowID );
-                                }
-                            } );
-                            return null;
-                        }
-                    } )
-                    .error( new Q.Promise.ErrorCallback() {
-                        public void error(Exception e) {
-                            Log.e( Tag, String.format("Error executing command %s %s", commandItem.name, commandItem.args ), e );
-                            // TODO: Review whether queue should be purged or not. Removed for now.
-                            // Commands should detect errors caused by previous command failures and
-                            // deal with accordingly.
-                            // purgeQueue();
-                            continueQueueProcessingAfterCommand( commandItem.rowID );
-                        }
-                    } );
+                continue;
             }
-        } );
+            store.append( command );
+            countAppended( command.name );
+            addToWindow( command );
+            previous = command;
+        }
     }
 
     /** Continue queue processing after execution a command. */
-    private void continueQueueProcessingAfterCommand(String rowID) {
-        db.beginTransaction();
-        // Delete the command record from the queue.
-        if( deleteExecutedQueueRecords ) {
-            db.delete("queue", rowID );
+    private void continueQueueProcessingAfterCommand(Execution execution) {
+        // Record the command's completion in the queue store.
+        CommandItem commandItem = execution.commandItem;
+        store.complete( commandItem );
+        countRemoved( commandItem.name );
+        continueQueueProcessing( execution );
+    }
+
+    /**
+     * Return a failed command to the queue, to be retried after its retry policy's backoff delay.
+     * The command keeps its queue position.
+     */
+    private void retryCommand(Execution execution, RetryPolicy policy) {
+        CommandItem commandItem = execution.commandItem;
+        commandItem.attempts++;
+        long delay = policy.getDelay( commandItem.attempts );
+        commandItem.notBefore = clock.currentTimeMillis() + delay;
+        Log.d( Tag, String.format("Retrying %s %s in %d ms (attempt %d)", commandItem.name, commandItem.args, delay, commandItem.attempts + 1 ) );
+        store.reschedule( commandItem );
+        metrics.recordRetry( commandItem.name );
+        addToWindow( commandItem );
+        continueQueueProcessing( execution );
+    }
+
+    /** Release a command's lane slot after execution, and continue processing the queue. */
+    private void continueQueueProcessing(Execution execution) {
+        running.remove( execution.commandItem.rowID );
+        if( execution.returned ) {
+            laneRunCounts.put( execution.lane, getRunCount( execution.lane ) - 1 );
         }
         else {
-            Map<String,Object> values = new HashMap<>();
-            values.put("id", rowID );
-            values.put("status", "X");
-            db.update("queue", values );
+            // The command's call is still running on the lane's thread; see returnExecution().
+            execution.releaseOnReturn = true;
+        }
+        groupCompletionCount++;
+        if( groupCompletionCount >= groupCommitSize ) {
+            commitGroupTransaction();
+        }
+        // Continue to next queued commands.
+        dispatchCommands();
+        if( running.size() == 0 ) {
+            // Queue is idle, or only has commands waiting to be retried, so no further
+            // completions to group with.
+            commitGroupTransaction();
+        }
+    }
+
+    /**
+     * Begin a group commit on the queue store, if one isn't already open.
+     * Schedules a commit of the group after the group commit interval.
+     */
+    private void beginGroupTransaction() {
+        if( !groupTransactionOpen ) {
+            store.beginGroup();
+            groupTransactionOpen = true;
+            groupCompletionCount = 0;
+            final int group = ++groupNumber;
+            scheduleTimer( clock.currentTimeMillis() + groupCommitInterval, new Runnable() {
+                @Override
+                public void run() {
+                    if( group == groupNumber ) {
+                        commitGroupTransaction();
+                    }
+                }
+            } );
+        }
+    }
+
+    /** Commit the current group commit, if one is open. */
+    private void commitGroupTransaction() {
+        if( groupTransactionOpen ) {
+            long startTime = clock.currentTimeMillis();
+            store.commitGroup();
+            groupTransactionOpen = false;
+            long time = clock.currentTimeMillis() - startTime;
+            if( groupCompletionCount > 0 ) {
+                Log.d( Tag, String.format("Committed %d command completions in %d ms (%.2f ms per command)",
+                    groupCompletionCount, time, (float)time / groupCompletionCount ) );
+            }
         }
-        db.commitTransaction();
-        // Continue to next queued command.
-        executeNextCommand();
     }
 
     /**
@@ -412,13 +2161,31 @@ public class CommandScheduler implements Service {
 
     @Override
     public void startService() {
-        db.startService();
+        if( queueName != null ) {
+            store.setName( queueName );
+        }
+        store.setDeleteExecutedRecords( deleteExecutedQueueRecords );
+        store.setArchiveRetention( maxQueueArchiveSize, maxQueueArchiveAge );
+        store.open();
+        recountPending();
         // Execute any commands left on the queue from previous start.
         executeQueue();
     }
 
     @Override
     public void stopService() {
-        db.stopService();
+        for( ExecutorService executor : laneExecutors.values() ) {
+            executor.shutdown();
+        }
+        laneExecutors.clear();
+        // Commit any open group before closing the store; the group is owned by the exec queue
+        // thread, so both are done on that thread.
+        getRunQueue().dispatch( new Runnable() {
+            @Override
+            public void run() {
+                commitGroupTransaction();
+                store.close();
+            }
+        } );
     }
 }
@@ -0,0 +1,34 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+/**
+ * A command scheduler's source of time.
+ * The scheduler reads the current time and schedules its timer wake ups using its clock, so that
+ * a simulated clock can be substituted for the default HandlerClock when running the scheduler
+ * outside of an app, e.g. in unit tests.
+ */
+public interface CommandSchedulerClock {
+
+    /** Return the current time, in ms. */
+    long currentTimeMillis();
+
+    /**
+     * Run a task at the specified time.
+     * The task may be run on any thread; if the time has already passed then the task is run as
+     * soon as possible.
+     */
+    void runAt(long time, Runnable task);
+
+}
@@ -0,0 +1,291 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import org.json.simple.JSONValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Execution metrics for a command scheduler.
+ * Records, for each command name, the number of executions, failures, retries and commands
+ * dropped by queue limits, and histograms of execution latency and of the time commands spend
+ * waiting on the queue. Also records periodic samples of the queue depth, the number of batches
+ * in the exec queue window and the number of commands completed, from which recent throughput is
+ * calculated.
+ *
+ * Metrics are recorded by the scheduler on its exec queue thread, and can be read from any thread
+ * using toMap() or toJSON(); the JSON form is intended for attaching to bug reports.
+ */
+public class CommandSchedulerMetrics {
+
+    /** Upper bounds, in ms, of the histogram buckets; the last bucket is unbounded. */
+    static final long[] BucketBounds = new long[]{
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+
+    /** The default maximum number of queue samples retained. */
+    static final int DefaultMaxSamples = 360;
+
+    /** A histogram of durations. */
+    static class Histogram {
+        /** Counts for each bucket. */
+        long[] counts = new long[BucketBounds.length + 1];
+        /** The total number of durations recorded. */
+        long count;
+        /** The sum of all durations recorded. */
+        long total;
+        /** The longest duration recorded. */
+        long max;
+
+        void record(long duration) {
+            int idx = 0;
+            while( idx < BucketBounds.length && duration > BucketBounds[idx] ) {
+                idx++;
+            }
+            counts[idx]++;
+            count++;
+            total += duration;
+            max = Math.max( max, duration );
+        }
+
+        /**
+         * Return an estimate of a percentile of the recorded durations.
+         * The estimate is the upper bound of the bucket containing the percentile, or the maximum
+         * duration recorded if that is lower.
+         */
+        long getPercentile(double percentile) {
+            if( count == 0 ) {
+                return 0;
+            }
+            long rank = (long)Math.ceil( count * percentile );
+            long seen = 0;
+            for( int i = 0; i < BucketBounds.length; i++ ) {
+                seen += counts[i];
+                if( seen >= rank ) {
+                    return Math.min( BucketBounds[i], max );
+                }
+            }
+            return max;
+        }
+
+        Map<String,Object> toMap() {
+            Map<String,Object> result = new HashMap<>();
+            result.put("count", count );
+            result.put("mean", count > 0 ? total / count : 0 );
+            result.put("p50", getPercentile( 0.5 ) );
+            result.put("p95", getPercentile( 0.95 ) );
+            result.put("max", max );
+            // Bucket counts keyed by bucket upper bound; empty buckets are omitted.
+            Map<String,Object> buckets = new TreeMap<>();
+            for( int i = 0; i < counts.length; i++ ) {
+                if( counts[i] > 0 ) {
+                    String bound = i < BucketBounds.length ? "<=" + BucketBounds[i] : ">" + BucketBounds[i - 1];
+                    buckets.put( bound, counts[i] );
+                }
+            }
+            result.put("buckets", buckets );
+            return result;
+        }
+    }
+
+    /** Metrics for a single command name. */
+    static class CommandStats {
+        /** The number of completed executions, including failures. */
+        long executions;
+        /** The number of failed executions. */
+        long failures;
+        /** The number of retries. */
+        long retries;
+        /** The number of commands dropped or merged because of a queue limit. */
+        long dropped;
+        /** Execution latency, in ms. */
+        Histogram latency = new Histogram();
+        /** Time spent waiting on the queue before execution, in ms. */
+        Histogram wait = new Histogram();
+
+        Map<String,Object> toMap() {
+            Map<String,Object> result = new HashMap<>();
+            result.put("executions", executions );
+            result.put("failures", failures );
+            result.put("retries", retries );
+            result.put("dropped", dropped );
+            result.put("latency", latency.toMap() );
+            result.put("wait", wait.toMap() );
+            return result;
+        }
+    }
+
+    /** A sample of the queue's state. */
+    static class QueueSample {
+        /** The time the sample was taken. */
+        long time;
+        /** The number of pending commands. */
+        int depth;
+        /** The number of distinct batches in the exec queue window. */
+        int batches;
+        /** The total number of commands completed when the sample was taken. */
+        long completed;
+
+        Map<String,Object> toMap() {
+            Map<String,Object> result = new HashMap<>();
+            result.put("time", time );
+            result.put("depth", depth );
+            result.put("batches", batches );
+            result.put("completed", completed );
+            return result;
+        }
+    }
+
+    /** Command metrics, keyed by command name. */
+    private Map<String,CommandStats> commandStats = new HashMap<>();
+    /** Queue samples, oldest first. */
+    private LinkedList<QueueSample> samples = new LinkedList<>();
+    /** The maximum number of queue samples retained. */
+    private int maxSamples = DefaultMaxSamples;
+    /** The source of time for recording; the scheduler's clock. */
+    private CommandSchedulerClock clock = new HandlerClock();
+    /** The time metrics recording started. */
+    private long startTime = clock.currentTimeMillis();
+    /** The total number of commands completed. */
+    private long completed;
+
+    /** Set the maximum number of queue samples retained. */
+    public synchronized void setMaxSamples(int maxSamples) {
+        this.maxSamples = Math.max( maxSamples, 1 );
+        trimSamples();
+    }
+
+    /** Set the source of time for recording. Resets the recording start time. */
+    synchronized void setClock(CommandSchedulerClock clock) {
+        this.clock = clock;
+        this.startTime = clock.currentTimeMillis();
+    }
+
+    /** Record a command execution. */
+    synchronized void recordExecution(String name, long waitTime, long latency, boolean failed) {
+        CommandStats stats = getCommandStats( name );
+        stats.executions++;
+        if( failed ) {
+            stats.failures++;
+        }
+        stats.wait.record( waitTime );
+        stats.latency.record( latency );
+        completed++;
+    }
+
+    /** Record a command retry. */
+    synchronized void recordRetry(String name) {
+        getCommandStats( name ).retries++;
+    }
+
+    /** Record a command dropped or merged because of a queue limit. */
+    synchronized void recordDropped(String name) {
+        getCommandStats( name ).dropped++;
+    }
+
+    /** Record a sample of the queue's state. */
+    synchronized void recordQueueSample(int depth, int batches) {
+        QueueSample sample = new QueueSample();
+        sample.time = clock.currentTimeMillis();
+        sample.depth = depth;
+        sample.batches = batches;
+        sample.completed = completed;
+        samples.add( sample );
+        trimSamples();
+    }
+
+    /** Discard all recorded metrics. */
+    public synchronized void reset() {
+        commandStats.clear();
+        samples.clear();
+        startTime = clock.currentTimeMillis();
+        completed = 0;
+    }
+
+    /** Return the total number of commands completed. */
+    public synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    /** Return the average number of commands completed per second since recording started. */
+    public synchronized double getCommandsPerSecond() {
+        long elapsed = clock.currentTimeMillis() - startTime;
+        return elapsed > 0 ? completed * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * Return the number of commands completed per second over the period covered by the retained
+     * queue samples. Returns 0 if fewer than two samples have been recorded.
+     */
+    public synchronized double getRecentCommandsPerSecond() {
+        if( samples.size() < 2 ) {
+            return 0;
+        }
+        QueueSample first = samples.getFirst(), last = samples.getLast();
+        long elapsed = last.time - first.time;
+        return elapsed > 0 ? (last.completed - first.completed) * 1000.0 / elapsed : 0;
+    }
+
+    /** Return the metrics in a form suitable for serializing. */
+    public synchronized Map<String,Object> toMap() {
+        Map<String,Object> result = new HashMap<>();
+        result.put("startTime", startTime );
+        result.put("time", clock.currentTimeMillis() );
+        result.put("completed", completed );
+        result.put("commandsPerSecond", getCommandsPerSecond() );
+        result.put("recentCommandsPerSecond", getRecentCommandsPerSecond() );
+        Map<String,Object> commands = new TreeMap<>();
+        for( String name : commandStats.keySet() ) {
+            commands.put( name, commandStats.get( name ).toMap() );
+        }
+        result.put("commands", commands );
+        List<Object> queue = new ArrayList<>( samples.size() );
+        for( QueueSample sample : samples ) {
+            queue.add( sample.toMap() );
+        }
+        result.put("queue", queue );
+        return result;
+    }
+
+    /** Return the metrics serialized as JSON. */
+    public String toJSON() {
+        return JSONValue.toJSONString( toMap() );
+    }
+
+    @Override
+    public String toString() {
+        return toJSON();
+    }
+
+    private CommandStats getCommandStats(String name) {
+        CommandStats stats = commandStats.get( name );
+        if( stats == null ) {
+            stats = new CommandStats();
+            commandStats.put( name, stats );
+        }
+        return stats;
+    }
+
+    private void trimSamples() {
+        while( samples.size() > maxSamples ) {
+            samples.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+/**
+ * An interface implemented by commands which declare the execution lane they run in.
+ * The command scheduler limits the number of commands running concurrently in each lane, so
+ * that e.g. slow network requests don't block unrelated file system or database commands.
+ * Commands not implementing this interface run in the scheduler's default lane.
+ */
+public interface ExecutionLaneAware {
+
+    /**
+     * Return the name of the lane the named command should be executed in.
+     * Should return one of the lane names defined by CommandScheduler, or null to use the
+     * default lane.
+     */
+    String getExecutionLane(String name);
+
+}
@@ -0,0 +1,44 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A command scheduler clock which uses the system time, and runs tasks using a handler on the
+ * main thread. This is the scheduler's default clock.
+ */
+public class HandlerClock implements CommandSchedulerClock {
+
+    /** The handler used to run tasks; created when first needed. */
+    private Handler handler;
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void runAt(long time, Runnable task) {
+        getHandler().postDelayed( task, Math.max( time - System.currentTimeMillis(), 0 ) );
+    }
+
+    private synchronized Handler getHandler() {
+        if( handler == null ) {
+            handler = new Handler( Looper.getMainLooper() );
+        }
+        return handler;
+    }
+}
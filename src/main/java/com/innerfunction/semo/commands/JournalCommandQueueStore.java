@@ -0,0 +1,765 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A command queue store which records queue operations in an append-only journal.
+ * The journal is written to a series of memory-mapped segment files. Each record is prefixed with
+ * its length and a CRC32 checksum; when the journal is replayed on open, replay of a segment stops
+ * at the first record which is incomplete or fails its checksum, so a record torn by a crash is
+ * discarded. The set of pending commands is held in memory.
+ *
+ * Writes outside of a group are forced to disk as they are made, and writes within a group when the
+ * group is committed, giving the durability described by CommandQueueStore. When a new segment is started and fewer than a quarter of the
+ * journal's records describe pending commands, the journal is compacted by writing the pending
+ * commands to a new segment and deleting all older segments.
+ *
+ * Pending commands are indexed by a hash of their batch, name and args, so that duplicate commands
+ * can be found without a scan of all pending commands.
+ *
+ * Records of executed commands aren't retained, so setDeleteExecutedRecords() and
+ * setArchiveRetention() are ignored.
+ */
+public class JournalCommandQueueStore implements CommandQueueStore {
+
+    static final String Tag = JournalCommandQueueStore.class.getSimpleName();
+
+    /** The default segment file size. */
+    static final int DefaultSegmentSize = 1024 * 1024;
+    /** The size of a record header; a length followed by a checksum. */
+    static final int RecordHeaderSize = 8;
+    /** Compact the journal when fewer than this proportion of its records are live. */
+    static final float CompactionThreshold = 0.25f;
+    /** Value of a purge record's batch field indicating that all batches are purged. */
+    static final int AllBatches = Integer.MIN_VALUE;
+
+    /** Record types. */
+    static final byte AppendRecord          = 1;
+    static final byte CompleteRecord        = 2;
+    static final byte PurgeRecord           = 3;
+    static final byte RescheduleRecord      = 4;
+    static final byte PurgeCommandsRecord   = 5;
+    static final byte CheckpointRecord      = 6;
+    static final byte UpdateArgsRecord      = 7;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final Pattern SegmentFilename = Pattern.compile("segment-(\\d+)\\.log");
+
+    /** The directory containing journal directories. */
+    private File baseDir;
+    /** The store name; used to name the journal directory. */
+    private String name = SQLiteCommandQueueStore.DefaultName;
+    /** The journal directory. */
+    private File dir;
+    /** The size of new segment files. */
+    private int segmentSize = DefaultSegmentSize;
+    /** The journal's segment files, in write order. */
+    private List<File> segments = new ArrayList<>();
+    /** The number of the segment currently being written. */
+    private int segmentNumber;
+    /** The segment file currently being written. */
+    private RandomAccessFile segmentFile;
+    /** A memory mapped buffer over the segment currently being written. */
+    private MappedByteBuffer buffer;
+    /** Pending commands, keyed by row ID, in append order. */
+    private Map<String,CommandItem> pending = new LinkedHashMap<>();
+    /** Pending commands in queue order. */
+    private TreeSet<CommandItem> queueOrder = new TreeSet<>( CommandScheduler.QueueOrder );
+    /** The row IDs of pending commands, keyed by the commands' dedup keys. */
+    private Map<Long,List<String>> dedupIndex = new HashMap<>();
+    /** The highest row ID appended to the journal. */
+    private long maxRowID;
+    /** The number of records in the journal. */
+    private int recordCount;
+    /** Flag indicating that a group of writes is in progress. */
+    private boolean inGroup;
+    /** Flag indicating that the journal is being compacted. */
+    private boolean compacting;
+    /** Checksum calculator. */
+    private CRC32 crc = new CRC32();
+
+    public JournalCommandQueueStore(Context androidContext) {
+        this( androidContext.getFilesDir() );
+    }
+
+    public JournalCommandQueueStore(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void setDeleteExecutedRecords(boolean delete) {}
+
+    @Override
+    public void setArchiveRetention(int maxRecords, long maxAge) {}
+
+    /** Set the size of segment files. Should be set before the store is opened. */
+    public void setSegmentSize(int size) {
+        this.segmentSize = size;
+    }
+
+    @Override
+    public void open() {
+        dir = new File( baseDir, String.format("%s.journal", name ) );
+        if( !dir.exists() && !dir.mkdirs() ) {
+            Log.e( Tag, String.format("Unable to create journal directory %s", dir ) );
+            return;
+        }
+        try {
+            replay();
+            if( shouldCompact() ) {
+                compact();
+            }
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Opening journal", e );
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            closeSegment();
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Closing journal", e );
+        }
+        pending.clear();
+        queueOrder.clear();
+        dedupIndex.clear();
+        segments.clear();
+        recordCount = 0;
+    }
+
+    @Override
+    public List<CommandItem> readPending(CommandItem after, int limit) {
+        List<CommandItem> items = new ArrayList<>();
+        SortedSet<CommandItem> tail = after == null ? queueOrder : queueOrder.tailSet( after, false );
+        for( CommandItem item : tail ) {
+            if( items.size() == limit ) {
+                break;
+            }
+            items.add( copyOf( item ) );
+        }
+        return items;
+    }
+
+    @Override
+    public int countPending() {
+        return pending.size();
+    }
+
+    @Override
+    public Map<String,Integer> countPendingByName() {
+        Map<String,Integer> counts = new HashMap<>();
+        for( CommandItem item : pending.values() ) {
+            Integer count = counts.get( item.name );
+            counts.put( item.name, count == null ? 1 : count + 1 );
+        }
+        return counts;
+    }
+
+    @Override
+    public List<CommandItem> readPendingByAge(String name, boolean newest, int limit) {
+        // Pending commands are held in the order they were appended.
+        List<CommandItem> items = new ArrayList<>();
+        for( CommandItem item : pending.values() ) {
+            if( name == null || item.name.equals( name ) ) {
+                items.add( item );
+                if( !newest && items.size() == limit ) {
+                    break;
+                }
+            }
+        }
+        if( newest ) {
+            Collections.reverse( items );
+        }
+        List<CommandItem> result = new ArrayList<>();
+        for( CommandItem item : items.subList( 0, Math.min( limit, items.size() ) ) ) {
+            result.add( copyOf( item ) );
+        }
+        return result;
+    }
+
+    @Override
+    public long getMaxRowID() {
+        return maxRowID;
+    }
+
+    @Override
+    public boolean containsPending(CommandItem item) {
+        String argsJSON = item.getArgsJSON();
+        List<String> rowIDs = dedupIndex.get( item.getDedupKey( argsJSON ) );
+        if( rowIDs != null ) {
+            // Compare in full to guard against hash collisions.
+            for( String rowID : rowIDs ) {
+                CommandItem other = pending.get( rowID );
+                if( other.batch == item.batch && other.name.equals( item.name ) && argsJSON.equals( other.getArgsJSON() )
+                    && other.repeatInterval == item.repeatInterval ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void append(CommandItem item) {
+        try {
+            writeAppendRecord( item );
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Writing append record", e );
+        }
+        addPending( copyOf( item ) );
+    }
+
+    @Override
+    public void complete(CommandItem item) {
+        try {
+            byte[] payload = ByteBuffer.allocate( 8 ).putLong( Long.parseLong( item.rowID ) ).array();
+            writeRecord( CompleteRecord, payload );
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Writing complete record", e );
+        }
+        removePending( item.rowID );
+    }
+
+    @Override
+    public void reschedule(CommandItem item) {
+        try {
+            ByteBuffer payload = ByteBuffer.allocate( 20 );
+            payload.putLong( Long.parseLong( item.rowID ) ).putInt( item.attempts ).putLong( item.notBefore );
+            writeRecord( RescheduleRecord, payload.array() );
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Writing reschedule record", e );
+        }
+        applyReschedule( item.rowID, item.attempts, item.notBefore );
+    }
+
+    @Override
+    public void purge() {
+        purgeBatch( AllBatches );
+    }
+
+    @Override
+    public void purgeBatch(int batch) {
+        try {
+            writeRecord( PurgeRecord, ByteBuffer.allocate( 4 ).putInt( batch ).array() );
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Writing purge record", e );
+        }
+        applyPurge( batch );
+    }
+
+    @Override
+    public void checkpoint(CommandItem item) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeLong( Long.parseLong( item.rowID ) );
+            writeString( out, item.checkpoint != null ? item.checkpoint : "");
+            writeRecord( CheckpointRecord, bytes.toByteArray() );
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Writing checkpoint record", e );
+        }
+        applyCheckpoint( item.rowID, item.checkpoint );
+    }
+
+    @Override
+    public void updateArgs(CommandItem item) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeLong( Long.parseLong( item.rowID ) );
+            writeString( out, item.getArgsJSON() );
+            writeRecord( UpdateArgsRecord, bytes.toByteArray() );
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Writing update args record", e );
+        }
+        applyUpdateArgs( item.rowID, item.args );
+    }
+
+    @Override
+    public void purgeCommands(String name) {
+        try {
+            writeRecord( PurgeCommandsRecord, name.getBytes( UTF8 ) );
+        }
+        catch(IOException e) {
+            Log.e( Tag, "Writing purge commands record", e );
+        }
+        applyPurgeCommands( name );
+    }
+
+    @Override
+    public void beginGroup() {
+        inGroup = true;
+    }
+
+    @Override
+    public void commitGroup() {
+        inGroup = false;
+        if( buffer != null ) {
+            buffer.force();
+        }
+    }
+
+    /** Write an append record for a command. */
+    private void writeAppendRecord(CommandItem item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeLong( Long.parseLong( item.rowID ) );
+        out.writeInt( item.batch );
+        writeString( out, item.name );
+        writeString( out, item.getArgsJSON() );
+        writeString( out, joinDeps( item.deps ) );
+        out.writeInt( item.getPriority() );
+        out.writeLong( item.rank );
+        out.writeInt( item.attempts );
+        out.writeLong( item.notBefore );
+        out.writeLong( item.repeatInterval );
+        writeString( out, item.checkpoint != null ? item.checkpoint : "");
+        writeRecord( AppendRecord, bytes.toByteArray() );
+    }
+
+    /** Join a command's dependency row IDs into a comma separated list. */
+    private String joinDeps(List<String> deps) {
+        StringBuilder result = new StringBuilder();
+        if( deps != null ) {
+            for( String rowID : deps ) {
+                if( result.length() > 0 ) {
+                    result.append(',');
+                }
+                result.append( rowID );
+            }
+        }
+        return result.toString();
+    }
+
+    /** Add a command to the set of pending commands. */
+    private void addPending(CommandItem item) {
+        if( pending.put( item.rowID, item ) == null ) {
+            queueOrder.add( item );
+            index( item );
+        }
+        maxRowID = Math.max( maxRowID, Long.parseLong( item.rowID ) );
+    }
+
+    /** Remove a command from the set of pending commands. */
+    private void removePending(String rowID) {
+        CommandItem item = pending.remove( rowID );
+        if( item != null ) {
+            queueOrder.remove( item );
+            unindex( item );
+        }
+    }
+
+    /** Add a command to the dedup index. */
+    private void index(CommandItem item) {
+        long dedupKey = item.getDedupKey( item.getArgsJSON() );
+        List<String> rowIDs = dedupIndex.get( dedupKey );
+        if( rowIDs == null ) {
+            rowIDs = new ArrayList<>( 1 );
+            dedupIndex.put( dedupKey, rowIDs );
+        }
+        rowIDs.add( item.rowID );
+    }
+
+    /** Remove a command from the dedup index. */
+    private void unindex(CommandItem item) {
+        long dedupKey = item.getDedupKey( item.getArgsJSON() );
+        List<String> rowIDs = dedupIndex.get( dedupKey );
+        if( rowIDs != null ) {
+            rowIDs.remove( item.rowID );
+            if( rowIDs.size() == 0 ) {
+                dedupIndex.remove( dedupKey );
+            }
+        }
+    }
+
+    /** Update a pending command's attempt count and next attempt time. */
+    private void applyReschedule(String rowID, int attempts, long notBefore) {
+        CommandItem item = pending.get( rowID );
+        if( item != null ) {
+            item.attempts = attempts;
+            item.notBefore = notBefore;
+        }
+    }
+
+    /** Replace a pending command's args, and re-index the command. */
+    private void applyUpdateArgs(String rowID, List args) {
+        CommandItem item = pending.get( rowID );
+        if( item != null ) {
+            unindex( item );
+            item.args = args;
+            index( item );
+        }
+    }
+
+    /** Update a pending command's checkpoint cursor. */
+    private void applyCheckpoint(String rowID, String checkpoint) {
+        CommandItem item = pending.get( rowID );
+        if( item != null ) {
+            item.checkpoint = checkpoint != null && checkpoint.length() > 0 ? checkpoint : null;
+        }
+    }
+
+    /** Remove pending commands, other than recurring commands, in a batch or in all batches. */
+    private void applyPurge(int batch) {
+        Iterator<CommandItem> it = pending.values().iterator();
+        while( it.hasNext() ) {
+            CommandItem item = it.next();
+            if( (batch == AllBatches || item.batch == batch) && item.repeatInterval == 0 ) {
+                it.remove();
+                queueOrder.remove( item );
+                unindex( item );
+            }
+        }
+    }
+
+    /** Remove pending commands with the specified name. */
+    private void applyPurgeCommands(String name) {
+        Iterator<CommandItem> it = pending.values().iterator();
+        while( it.hasNext() ) {
+            CommandItem item = it.next();
+            if( item.name.equals( name ) ) {
+                it.remove();
+                queueOrder.remove( item );
+                unindex( item );
+            }
+        }
+    }
+
+    /**
+     * Replay the journal's segments to rebuild the set of pending commands.
+     * The last segment is left open for writing, positioned after its last valid record.
+     */
+    private void replay() throws IOException {
+        List<File> files = new ArrayList<>();
+        File[] dirFiles = dir.listFiles();
+        if( dirFiles != null ) {
+            files.addAll( Arrays.asList( dirFiles ) );
+        }
+        // Remove any non-segment files, and sort segments into segment number order.
+        Iterator<File> it = files.iterator();
+        while( it.hasNext() ) {
+            if( getSegmentNumber( it.next() ) < 0 ) {
+                it.remove();
+            }
+        }
+        Collections.sort( files, new Comparator<File>() {
+            @Override
+            public int compare(File file0, File file1) {
+                return getSegmentNumber( file0 ) - getSegmentNumber( file1 );
+            }
+        } );
+        long startTime = System.currentTimeMillis();
+        for( File file : files ) {
+            segments.add( file );
+            segmentNumber = getSegmentNumber( file );
+            segmentFile = new RandomAccessFile( file, "rw");
+            buffer = segmentFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, segmentFile.length() );
+            replaySegment( buffer );
+            if( file != files.get( files.size() - 1 ) ) {
+                closeSegment();
+            }
+        }
+        if( buffer == null ) {
+            openSegment( segmentSize );
+        }
+        long time = System.currentTimeMillis() - startTime;
+        Log.i( Tag, String.format("Replayed %d records from %d segments in %d ms; %d commands pending",
+            recordCount, segments.size(), time, pending.size() ) );
+    }
+
+    /**
+     * Replay the records in a segment.
+     * Leaves the buffer positioned after the last valid record.
+     */
+    private void replaySegment(MappedByteBuffer buffer) throws IOException {
+        while( buffer.remaining() >= RecordHeaderSize ) {
+            int position = buffer.position();
+            int length = buffer.getInt();
+            if( length <= 0 ) {
+                // End of written records.
+                buffer.position( position );
+                return;
+            }
+            int checksum = buffer.getInt();
+            if( length > buffer.remaining() ) {
+                Log.w( Tag, String.format("Discarding incomplete record in segment %d", segmentNumber ) );
+                truncateSegment( buffer, position );
+                return;
+            }
+            byte[] body = new byte[length];
+            buffer.get( body );
+            crc.reset();
+            crc.update( body );
+            if( (int)crc.getValue() != checksum ) {
+                Log.w( Tag, String.format("Discarding corrupt record in segment %d", segmentNumber ) );
+                truncateSegment( buffer, position );
+                return;
+            }
+            applyRecord( body );
+            recordCount++;
+        }
+    }
+
+    /** Zero a segment's contents from a position onwards, and position the buffer there. */
+    private void truncateSegment(MappedByteBuffer buffer, int position) {
+        buffer.position( position );
+        while( buffer.hasRemaining() ) {
+            buffer.put( (byte)0 );
+        }
+        buffer.force();
+        buffer.position( position );
+    }
+
+    /** Apply a replayed record to the set of pending commands. */
+    private void applyRecord(byte[] body) {
+        ByteBuffer record = ByteBuffer.wrap( body );
+        byte type = record.get();
+        switch( type ) {
+        case AppendRecord:
+            CommandItem item = new CommandItem();
+            long rowID = record.getLong();
+            item.rowID = String.valueOf( rowID );
+            item.batch = record.getInt();
+            item.name = readString( record );
+            item.args = (List)JSONValue.parse( readString( record ) );
+            String deps = readString( record );
+            if( deps.length() > 0 ) {
+                item.deps = Arrays.asList( deps.split(",") );
+            }
+            if( record.remaining() >= 12 ) {
+                item.priority = record.getInt();
+                item.rank = record.getLong();
+            }
+            else {
+                // Record written before priorities were added; records were then ordered by batch,
+                // and batch numbers are always far below any time based rank.
+                item.priority = CommandScheduler.DefaultPriority;
+                item.rank = item.batch;
+            }
+            if( record.remaining() >= 12 ) {
+                item.attempts = record.getInt();
+                item.notBefore = record.getLong();
+            }
+            if( record.remaining() >= 8 ) {
+                item.repeatInterval = record.getLong();
+            }
+            if( record.remaining() >= 4 ) {
+                String checkpoint = readString( record );
+                item.checkpoint = checkpoint.length() > 0 ? checkpoint : null;
+            }
+            addPending( item );
+            break;
+        case CompleteRecord:
+            removePending( String.valueOf( record.getLong() ) );
+            break;
+        case RescheduleRecord:
+            applyReschedule( String.valueOf( record.getLong() ), record.getInt(), record.getLong() );
+            break;
+        case PurgeCommandsRecord:
+            byte[] name = new byte[record.remaining()];
+            record.get( name );
+            applyPurgeCommands( new String( name, UTF8 ) );
+            break;
+        case PurgeRecord:
+            applyPurge( record.getInt() );
+            break;
+        case UpdateArgsRecord:
+            String rowIDValue = String.valueOf( record.getLong() );
+            applyUpdateArgs( rowIDValue, (List)JSONValue.parse( readString( record ) ) );
+            break;
+        case CheckpointRecord:
+            applyCheckpoint( String.valueOf( record.getLong() ), readString( record ) );
+            break;
+        default:
+            Log.w( Tag, String.format("Unrecognized record type %d", type ) );
+        }
+    }
+
+    /** Write a record to the journal. */
+    private void writeRecord(byte type, byte[] payload) throws IOException {
+        if( buffer == null ) {
+            throw new IOException("Journal not open");
+        }
+        int length = payload.length + 1;
+        int size = RecordHeaderSize + length;
+        if( buffer.remaining() < size ) {
+            openSegment( size );
+            if( !compacting && shouldCompact() ) {
+                compact();
+            }
+            if( buffer.remaining() < size ) {
+                openSegment( size );
+            }
+        }
+        crc.reset();
+        crc.update( type );
+        crc.update( payload );
+        buffer.putInt( length );
+        buffer.putInt( (int)crc.getValue() );
+        buffer.put( type );
+        buffer.put( payload );
+        recordCount++;
+        if( !inGroup ) {
+            buffer.force();
+        }
+    }
+
+    /** Test whether the journal should be compacted. */
+    private boolean shouldCompact() {
+        return segments.size() > 1 && pending.size() < recordCount * CompactionThreshold;
+    }
+
+    /**
+     * Compact the journal.
+     * Writes append records for all pending commands to a new segment, and then deletes all older
+     * segments. If the app is terminated during compaction then replay of the remaining segments
+     * still produces the same set of pending commands.
+     */
+    private void compact() throws IOException {
+        long startTime = System.currentTimeMillis();
+        int previousRecordCount = recordCount;
+        List<File> oldSegments = new ArrayList<>( segments );
+        compacting = true;
+        boolean wasInGroup = inGroup;
+        inGroup = true;
+        try {
+            openSegment( segmentSize );
+            recordCount = 0;
+            // Only write records here; the pending commands are already indexed, and replacing
+            // them with copies would leave queueOrder holding instances which are no longer updated.
+            for( CommandItem item : queueOrder ) {
+                writeAppendRecord( item );
+            }
+            buffer.force();
+        }
+        finally {
+            compacting = false;
+            inGroup = wasInGroup;
+        }
+        for( File segment : oldSegments ) {
+            if( !segment.delete() ) {
+                Log.w( Tag, String.format("Failed to delete segment %s", segment ) );
+            }
+            segments.remove( segment );
+        }
+        long time = System.currentTimeMillis() - startTime;
+        Log.i( Tag, String.format("Compacted journal from %d to %d records in %d ms", previousRecordCount, recordCount, time ) );
+    }
+
+    /** Close the current segment and open a new segment of at least the specified size. */
+    private void openSegment(int minSize) throws IOException {
+        closeSegment();
+        segmentNumber++;
+        File file = new File( dir, String.format("segment-%06d.log", segmentNumber ) );
+        segmentFile = new RandomAccessFile( file, "rw");
+        int size = Math.max( segmentSize, minSize );
+        segmentFile.setLength( size );
+        buffer = segmentFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+        segments.add( file );
+    }
+
+    /** Close the segment currently being written. */
+    private void closeSegment() throws IOException {
+        if( buffer != null ) {
+            buffer.force();
+            buffer = null;
+        }
+        if( segmentFile != null ) {
+            segmentFile.close();
+            segmentFile = null;
+        }
+    }
+
+    /** Return the segment number of a segment file, or -1 if the file isn't a segment file. */
+    static int getSegmentNumber(File file) {
+        Matcher matcher = SegmentFilename.matcher( file.getName() );
+        return matcher.matches() ? Integer.parseInt( matcher.group( 1 ) ) : -1;
+    }
+
+    /** Write a length prefixed UTF-8 string. */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes( UTF8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    /** Read a length prefixed UTF-8 string. */
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get( bytes );
+        return new String( bytes, UTF8 );
+    }
+
+    /** Return a copy of a command item. */
+    static CommandItem copyOf(CommandItem item) {
+        CommandItem copy = new CommandItem();
+        copy.rowID = item.rowID;
+        copy.batch = item.batch;
+        copy.name = item.name;
+        copy.args = item.args;
+        copy.deps = item.deps;
+        copy.priority = item.priority;
+        copy.rank = item.rank;
+        copy.attempts = item.attempts;
+        copy.notBefore = item.notBefore;
+        copy.repeatInterval = item.repeatInterval;
+        copy.checkpoint = item.checkpoint;
+        return copy;
+    }
+}
@@ -27,7 +27,7 @@ import java.util.List;
  *
  * Attached by juliangoacher on 13/05/16.
  */
-public class MvFileCommand implements Command {
+public class MvFileCommand implements Command, ExecutionLaneAware {
 
     @Override
     public Q.Promise<List<CommandScheduler.CommandItem>> execute(String name, List args) {
@@ -42,4 +42,9 @@ public class MvFileCommand implements Command {
         return Q.resolve( CommandScheduler.NoFollowOns );
     }
 
+    @Override
+    public String getExecutionLane(String name) {
+        return CommandScheduler.DiskLane;
+    }
+
 }
@@ -0,0 +1,86 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import java.util.Random;
+
+/**
+ * A policy for retrying failed command executions, with exponential backoff and jitter.
+ * The delay before the nth retry is initialDelay * multiplier^(n-1), capped at maxDelay. The delay
+ * is then reduced by a random amount of up to jitter * delay, so that commands which failed at the
+ * same time - e.g. during a network outage - don't all retry at the same time. A jitter of 0 gives
+ * fixed delays; a jitter of 1 gives delays spread over the full range from 0 to the backoff delay.
+ */
+public class RetryPolicy {
+
+    /** Shared random number generator, used to calculate jitter. */
+    static final Random Jitter = new Random();
+
+    /** The maximum number of times a command is attempted, including its first execution. */
+    private int maxAttempts = 3;
+    /** The delay, in ms, before the first retry. */
+    private long initialDelay = 1000;
+    /** The factor the delay is multiplied by after each retry. */
+    private float multiplier = 2;
+    /** The maximum delay, in ms, before any retry. */
+    private long maxDelay = 300000;
+    /** The proportion of each delay which is randomized. */
+    private float jitter = 0.5f;
+
+    public RetryPolicy() {}
+
+    public RetryPolicy(int maxAttempts, long initialDelay, float multiplier, long maxDelay) {
+        setMaxAttempts( maxAttempts );
+        setInitialDelay( initialDelay );
+        setMultiplier( multiplier );
+        setMaxDelay( maxDelay );
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max( maxAttempts, 1 );
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setInitialDelay(long initialDelay) {
+        this.initialDelay = Math.max( initialDelay, 0 );
+    }
+
+    public void setMultiplier(float multiplier) {
+        this.multiplier = Math.max( multiplier, 1 );
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = Math.max( maxDelay, 0 );
+    }
+
+    public void setJitter(float jitter) {
+        this.jitter = Math.min( Math.max( jitter, 0 ), 1 );
+    }
+
+    /** Test whether a command should be retried after the specified number of failed attempts. */
+    public boolean shouldRetry(int failedAttempts) {
+        return failedAttempts < maxAttempts;
+    }
+
+    /** Return the delay, in ms, before the specified retry; the first retry is retry 1. */
+    public long getDelay(int retry) {
+        double delay = initialDelay * Math.pow( multiplier, Math.max( retry - 1, 0 ) );
+        delay = Math.min( delay, maxDelay );
+        delay -= delay * jitter * Jitter.nextDouble();
+        return (long)delay;
+    }
+}
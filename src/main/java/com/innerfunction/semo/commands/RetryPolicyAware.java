@@ -0,0 +1,29 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+/**
+ * An interface implemented by commands which declare a policy for retrying failed executions.
+ * When a command's promise is rejected, the command scheduler uses the command's retry policy to
+ * decide whether, and after what delay, the command should be executed again.
+ */
+public interface RetryPolicyAware {
+
+    /**
+     * Return the retry policy for the named command.
+     * Can return null, in which case failed executions aren't retried.
+     */
+    RetryPolicy getRetryPolicy(String name);
+
+}
@@ -17,6 +17,7 @@ import com.innerfunction.q.Q;
 import com.innerfunction.util.Files;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -24,9 +25,14 @@ import java.util.List;
  * Arguments: <path> [path...]
  * - path:  One or more paths to a file or directory to remove.
  *
+ * Runs of rm commands are coalesced by the scheduler and executed as a single batch.
+ *
  * Attached by juliangoacher on 13/05/16.
  */
-public class RmFileCommand implements Command {
+public class RmFileCommand implements BatchCommand, ExecutionLaneAware {
+
+    /** The maximum number of rm commands executed in a single batch. */
+    static final int MaxBatchSize = 200;
 
     @Override
     public Q.Promise<List<CommandScheduler.CommandItem>> execute(String name, List args) {
@@ -42,4 +48,24 @@ public class RmFileCommand implements Command {
         return Q.resolve( CommandScheduler.NoFollowOns );
     }
 
+    @Override
+    public int getMaxBatchSize(String name) {
+        return MaxBatchSize;
+    }
+
+    @Override
+    public Q.Promise<List<CommandScheduler.CommandItem>> executeBatch(String name, List<List> argsList) {
+        // Removing a file which doesn't exist is a no-op, so a failed batch is safe to repeat.
+        List<Object> paths = new ArrayList<>();
+        for( List args : argsList ) {
+            paths.addAll( args );
+        }
+        return execute( name, paths );
+    }
+
+    @Override
+    public String getExecutionLane(String name) {
+        return CommandScheduler.DiskLane;
+    }
+
 }
@@ -0,0 +1,509 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.innerfunction.semo.db.Column;
+import com.innerfunction.semo.db.DB;
+import com.innerfunction.semo.db.RowMapper;
+import com.innerfunction.semo.db.Table;
+
+import org.json.simple.JSONValue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A command queue store which stores commands in a SQLite database table.
+ * This is the scheduler's default store. Groups of writes are performed within a single DB
+ * transaction; see CommandQueueStore.
+ * Command arguments are stored in the args_bin column using the compact binary encoding provided
+ * by CommandArgsCodec; the codec's path prefix dictionary is stored in the arg_prefixes table.
+ * Records written before the binary encoding was introduced have their args stored as JSON in the
+ * args column, and are still readable.
+ * Each record stores the command's priority and its queue rank; pending commands are read in queue
+ * order using an index on (status, rank, id).
+ * Each record stores a hash of the command's batch, name and args in an indexed dedup_key column,
+ * so that duplicate commands can be found without a table scan.
+ * When executed records aren't deleted, they are moved from the queue table to the queue_archive
+ * table, so that the queue table only holds pending commands and retained history doesn't slow
+ * down queue reads. The archive is pruned to its maximum size and age when the store is opened,
+ * and after every ArchivePruneInterval archived records.
+ */
+public class SQLiteCommandQueueStore implements CommandQueueStore {
+
+    static final String Tag = SQLiteCommandQueueStore.class.getSimpleName();
+
+    /** The default queue DB name. */
+    static final String DefaultName = "com.innerfunction.semo.command-scheduler";
+    /** The number of records archived between each prune of the archive. */
+    static final int ArchivePruneInterval = 500;
+    /** The queue table columns copied to the archive table. */
+    static final String ArchivedColumns = "id, batch, command, args, args_bin, deps, priority, rank, attempts, repeat_interval, checkpoint";
+
+    /** The queue database. */
+    private DB db;
+    /**
+     * Whether to delete queue database records after processing.
+     * Defaults to true. When false, the 'status' field is used to track pending vs. executed
+     * records; this mode is primarily useful for debugging.
+     */
+    private boolean deleteExecutedRecords = true;
+    /** The maximum number of archived records; 0 for no limit. */
+    private int maxArchiveSize;
+    /** The maximum age, in ms, of archived records; 0 for no limit. */
+    private long maxArchiveAge;
+    /** The number of records archived since the archive was last pruned. */
+    private int archivedSincePrune;
+    /** The codec used to encode command args. */
+    private CommandArgsCodec argsCodec = new CommandArgsCodec();
+    /** The number of codec prefixes written to the arg_prefixes table. */
+    private int storedPrefixCount;
+
+    /** A row mapper for reading command items from queue records. */
+    private RowMapper<CommandItem> itemMapper = new RowMapper<CommandItem>() {
+        @Override
+        public String[] getColumnNames() {
+            return new String[]{ "id", "batch", "command", "args", "args_bin", "deps", "priority", "rank", "attempts", "not_before", "repeat_interval", "checkpoint" };
+        }
+        @Override
+        public CommandItem mapRow(Cursor cursor, int[] columns) {
+            CommandItem item = new CommandItem();
+            item.rowID = cursor.getString( columns[0] );
+            item.batch = cursor.getInt( columns[1] );
+            item.name = cursor.getString( columns[2] );
+            if( !cursor.isNull( columns[4] ) ) {
+                item.args = decodeArgs( cursor.getBlob( columns[4] ) );
+            }
+            else {
+                item.args = parseJSONArgs( cursor.getString( columns[3] ) );
+            }
+            if( !cursor.isNull( columns[5] ) ) {
+                item.deps = Arrays.asList( cursor.getString( columns[5] ).split(",") );
+            }
+            item.priority = cursor.getInt( columns[6] );
+            item.rank = cursor.getLong( columns[7] );
+            item.attempts = cursor.getInt( columns[8] );
+            item.notBefore = cursor.getLong( columns[9] );
+            item.repeatInterval = cursor.getLong( columns[10] );
+            item.checkpoint = cursor.getString( columns[11] );
+            return item;
+        }
+    };
+
+    public SQLiteCommandQueueStore(Context androidContext) {
+        db = new DB();
+        db.setAndroidContext( androidContext );
+        db.setName( DefaultName );
+        db.setVersion( 9 );
+        Column deps = new Column("deps", "TEXT");
+        deps.setSince( 2 );
+        Column dedupKey = new Column("dedup_key", "TEXT");
+        dedupKey.setSince( 3 );
+        Column argsBin = new Column("args_bin", "BLOB");
+        argsBin.setSince( 4 );
+        Column priority = new Column("priority", "INTEGER");
+        priority.setSince( 5 );
+        Column rank = new Column("rank", "INTEGER");
+        rank.setSince( 5 );
+        Column attempts = new Column("attempts", "INTEGER");
+        attempts.setSince( 6 );
+        Column notBefore = new Column("not_before", "INTEGER");
+        notBefore.setSince( 6 );
+        Column repeatInterval = new Column("repeat_interval", "INTEGER");
+        repeatInterval.setSince( 7 );
+        Column checkpoint = new Column("checkpoint", "TEXT");
+        checkpoint.setSince( 8 );
+        Table argPrefixes = new Table("arg_prefixes",
+            new Column("token",  "INTEGER PRIMARY KEY", "id"),
+            new Column("prefix", "TEXT"));
+        argPrefixes.setSince( 4 );
+        // The archive has its own primary key, as row IDs may be reused once the queue is empty.
+        Table archive = new Table("queue_archive",
+            new Column("seq",            "INTEGER PRIMARY KEY", "id"),
+            new Column("id",             "INTEGER"),
+            new Column("batch",          "INTEGER"),
+            new Column("command",        "TEXT"),
+            new Column("args",           "TEXT"),
+            new Column("args_bin",       "BLOB"),
+            new Column("deps",           "TEXT"),
+            new Column("priority",       "INTEGER"),
+            new Column("rank",           "INTEGER"),
+            new Column("attempts",       "INTEGER"),
+            new Column("repeat_interval","INTEGER"),
+            new Column("checkpoint",     "TEXT"),
+            new Column("outcome",        "TEXT"),
+            new Column("archived",       "INTEGER"));
+        archive.setSince( 9 );
+        db.setTableSchema(
+            new Table("queue",
+                new Column("id",     "INTEGER PRIMARY KEY", "id"),
+                new Column("batch",  "INTEGER"),
+                new Column("command","TEXT"),
+                new Column("args",   "TEXT"),
+                new Column("status", "TEXT"),
+                deps,
+                dedupKey,
+                argsBin,
+                priority,
+                rank,
+                attempts,
+                notBefore,
+                repeatInterval,
+                checkpoint),
+            argPrefixes,
+            archive);
+    }
+
+    @Override
+    public void setName(String name) {
+        db.setName( name );
+    }
+
+    @Override
+    public void setDeleteExecutedRecords(boolean delete) {
+        this.deleteExecutedRecords = delete;
+    }
+
+    @Override
+    public void setArchiveRetention(int maxRecords, long maxAge) {
+        this.maxArchiveSize = maxRecords;
+        this.maxArchiveAge = maxAge;
+    }
+
+    @Override
+    public void open() {
+        db.startService();
+        db.getConnection().execSQL("CREATE INDEX IF NOT EXISTS queue_dedup_key ON queue (dedup_key)");
+        db.getConnection().execSQL("DROP INDEX IF EXISTS queue_order");
+        if( isPartialIndexSupported() ) {
+            // Pending commands are read using an index on only the pending records.
+            db.getConnection().execSQL("CREATE INDEX IF NOT EXISTS queue_pending ON queue (rank, id) WHERE status='P'");
+            db.getConnection().execSQL("DROP INDEX IF EXISTS queue_rank");
+        }
+        else {
+            db.getConnection().execSQL("CREATE INDEX IF NOT EXISTS queue_rank ON queue (status, rank, id)");
+        }
+        // Records written before the rank column was added were ordered by batch; batch numbers
+        // are always far below any time based rank, so these records keep their relative order
+        // and sort before all newer records.
+        db.performUpdate("UPDATE queue SET priority=0, rank=batch WHERE rank IS NULL");
+        readArgPrefixes();
+        addMissingDedupKeys();
+        // Move records of executed commands retained in the queue table by earlier versions.
+        db.beginTransaction();
+        archive("status='X'", "executed");
+        db.commitTransaction();
+        pruneArchive();
+        Log.i( Tag, String.format("Queue DB size %d KB", db.getDatabaseFile().length() / 1024 ) );
+    }
+
+    @Override
+    public void close() {
+        db.stopService();
+    }
+
+    @Override
+    public List<CommandItem> readPending(CommandItem after, int limit) {
+        long startTime = System.currentTimeMillis();
+        List<CommandItem> items;
+        if( after == null ) {
+            String sql = String.format("SELECT * FROM queue WHERE status='P' ORDER BY rank, id ASC LIMIT %d", limit );
+            items = db.performQuery( itemMapper, sql );
+        }
+        else {
+            String sql = String.format("SELECT * FROM queue WHERE status='P' AND (rank > ? OR (rank = ? AND id > ?)) ORDER BY rank, id ASC LIMIT %d", limit );
+            String rank = String.valueOf( after.rank );
+            items = db.performQuery( itemMapper, sql, rank, rank, after.rowID );
+        }
+        Log.d( Tag, String.format("Read %d commands in %d ms", items.size(), System.currentTimeMillis() - startTime ) );
+        return items;
+    }
+
+    @Override
+    public int countPending() {
+        return db.countInTable("queue", "status='P'");
+    }
+
+    @Override
+    public Map<String,Integer> countPendingByName() {
+        Map<String,Integer> counts = new HashMap<>();
+        List<Map<String,Object>> rs = db.performQuery("SELECT command, count(*) AS count FROM queue WHERE status='P' GROUP BY command");
+        for( Map<String,Object> row : rs ) {
+            Object count = row.get("count");
+            counts.put( (String)row.get("command"), count instanceof Number ? ((Number)count).intValue() : Integer.parseInt( count.toString() ) );
+        }
+        return counts;
+    }
+
+    @Override
+    public List<CommandItem> readPendingByAge(String name, boolean newest, int limit) {
+        String order = newest ? "DESC" : "ASC";
+        if( name == null ) {
+            String sql = String.format("SELECT * FROM queue WHERE status='P' ORDER BY id %s LIMIT %d", order, limit );
+            return db.performQuery( itemMapper, sql );
+        }
+        String sql = String.format("SELECT * FROM queue WHERE status='P' AND command=? ORDER BY id %s LIMIT %d", order, limit );
+        return db.performQuery( itemMapper, sql, name );
+    }
+
+    @Override
+    public long getMaxRowID() {
+        List<Map<String,Object>> result = db.performQuery("SELECT max(id) AS maxid FROM queue");
+        Object maxID = result.size() > 0 ? result.get( 0 ).get("maxid") : null;
+        return maxID instanceof Number ? ((Number)maxID).longValue() : 0;
+    }
+
+    @Override
+    public boolean containsPending(CommandItem item) {
+        String batch = String.valueOf( item.batch );
+        String argsJSON = item.getArgsJSON();
+        String dedupKey = Long.toHexString( item.getDedupKey( argsJSON ) );
+        // The dedup key narrows the search to (almost always) a single indexed row; the full
+        // comparison guards against hash collisions.
+        String sql = "SELECT * FROM queue WHERE dedup_key=? AND batch=? AND command=? AND status='P'";
+        List<CommandItem> candidates = db.performQuery( itemMapper, sql, dedupKey, batch, item.name );
+        for( CommandItem candidate : candidates ) {
+            if( argsJSON.equals( candidate.getArgsJSON() ) && item.repeatInterval == candidate.repeatInterval ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void append(CommandItem item) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("id", item.rowID );
+        values.put("batch", item.batch );
+        values.put("command", item.name );
+        values.put("args_bin", argsCodec.encode( item.args ) );
+        writeNewArgPrefixes();
+        values.put("dedup_key", Long.toHexString( item.getDedupKey( item.getArgsJSON() ) ) );
+        values.put("priority", item.getPriority() );
+        values.put("rank", item.rank );
+        values.put("not_before", item.notBefore );
+        values.put("repeat_interval", item.repeatInterval );
+        values.put("status", "P");
+        if( item.deps.size() > 0 ) {
+            values.put("deps", TextUtils.join(",", item.deps ) );
+        }
+        db.insert("queue", values );
+    }
+
+    @Override
+    public void complete(CommandItem item) {
+        if( deleteExecutedRecords ) {
+            db.delete("queue", item.rowID );
+        }
+        else {
+            db.beginTransaction();
+            archive("id=?", "executed", item.rowID );
+            db.commitTransaction();
+        }
+    }
+
+    @Override
+    public void reschedule(CommandItem item) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("id", item.rowID );
+        values.put("attempts", item.attempts );
+        values.put("not_before", item.notBefore );
+        db.update("queue", values );
+    }
+
+    @Override
+    public void checkpoint(CommandItem item) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("id", item.rowID );
+        values.put("checkpoint", item.checkpoint );
+        db.update("queue", values );
+    }
+
+    @Override
+    public void updateArgs(CommandItem item) {
+        Map<String,Object> values = new HashMap<>();
+        values.put("id", item.rowID );
+        values.put("args_bin", argsCodec.encode( item.args ) );
+        writeNewArgPrefixes();
+        values.put("dedup_key", Long.toHexString( item.getDedupKey( item.getArgsJSON() ) ) );
+        db.update("queue", values );
+    }
+
+    @Override
+    public void purge() {
+        db.beginTransaction();
+        if( deleteExecutedRecords ) {
+            db.deleteWhere("queue", "IFNULL(repeat_interval,0)=0");
+        }
+        else {
+            archive("IFNULL(repeat_interval,0)=0", "purged");
+        }
+        db.commitTransaction();
+    }
+
+    @Override
+    public void purgeBatch(int batch) {
+        db.beginTransaction();
+        String batchValue = String.valueOf( batch );
+        if( deleteExecutedRecords ) {
+            db.deleteWhere("queue", "batch=? AND IFNULL(repeat_interval,0)=0", batchValue );
+        }
+        else {
+            archive("batch=? AND IFNULL(repeat_interval,0)=0", "purged", batchValue );
+        }
+        db.commitTransaction();
+    }
+
+    @Override
+    public void purgeCommands(String name) {
+        db.beginTransaction();
+        if( deleteExecutedRecords ) {
+            db.deleteWhere("queue", "command=?", name );
+        }
+        else {
+            archive("command=?", "purged", name );
+        }
+        db.commitTransaction();
+    }
+
+    @Override
+    public void beginGroup() {
+        db.beginTransaction();
+    }
+
+    @Override
+    public void commitGroup() {
+        db.commitTransaction();
+    }
+
+    /**
+     * Move queue records to the archive table. Must be called within a DB transaction.
+     * @param where     A where clause selecting the records to move.
+     * @param outcome   The outcome recorded for the records; executed or purged.
+     */
+    private void archive(String where, String outcome, String... args) {
+        String[] insertArgs = new String[args.length + 2];
+        insertArgs[0] = outcome;
+        insertArgs[1] = String.valueOf( System.currentTimeMillis() );
+        System.arraycopy( args, 0, insertArgs, 2, args.length );
+        String sql = String.format("INSERT INTO queue_archive (%s, outcome, archived) SELECT %s, ?, ? FROM queue WHERE %s",
+            ArchivedColumns, ArchivedColumns, where );
+        db.performUpdate( sql, insertArgs );
+        int count = db.deleteWhere("queue", where, args );
+        archivedSincePrune += count;
+        if( archivedSincePrune >= ArchivePruneInterval ) {
+            pruneArchive();
+        }
+    }
+
+    /** Delete archived records beyond the archive's maximum size or age. */
+    private void pruneArchive() {
+        archivedSincePrune = 0;
+        if( maxArchiveAge > 0 ) {
+            String oldest = String.valueOf( System.currentTimeMillis() - maxArchiveAge );
+            db.deleteWhere("queue_archive", "archived < ?", oldest );
+        }
+        if( maxArchiveSize > 0 ) {
+            String sql = String.format("seq <= (SELECT seq FROM queue_archive ORDER BY seq DESC LIMIT 1 OFFSET %d)", maxArchiveSize );
+            db.deleteWhere("queue_archive", sql );
+        }
+    }
+
+    /** Test whether the SQLite version supports partial indexes, which were added in 3.8.0. */
+    private boolean isPartialIndexSupported() {
+        List<Map<String,Object>> result = db.performQuery("SELECT sqlite_version() AS version");
+        if( result.size() == 0 ) {
+            return false;
+        }
+        String[] version = String.valueOf( result.get( 0 ).get("version") ).split("\\.");
+        try {
+            int major = Integer.parseInt( version[0] );
+            int minor = version.length > 1 ? Integer.parseInt( version[1] ) : 0;
+            return major > 3 || (major == 3 && minor >= 8);
+        }
+        catch(NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write dedup keys for any pending records without one.
+     * Needed for records written before the dedup_key column was added.
+     */
+    private void addMissingDedupKeys() {
+        List<CommandItem> items = db.performQuery( itemMapper, "SELECT * FROM queue WHERE status='P' AND dedup_key IS NULL");
+        if( items.size() > 0 ) {
+            db.beginTransaction();
+            for( CommandItem item : items ) {
+                Map<String,Object> values = new HashMap<>();
+                values.put("id", item.rowID );
+                values.put("dedup_key", Long.toHexString( item.getDedupKey( item.getArgsJSON() ) ) );
+                db.update("queue", values );
+            }
+            db.commitTransaction();
+            Log.i( Tag, String.format("Added dedup keys to %d queue records", items.size() ) );
+        }
+    }
+
+    /** Read the codec's prefix dictionary from the arg_prefixes table. */
+    private void readArgPrefixes() {
+        List<Map<String,Object>> records = db.performQuery("SELECT prefix FROM arg_prefixes ORDER BY token");
+        for( Map<String,Object> record : records ) {
+            argsCodec.addPrefix( (String)record.get("prefix") );
+        }
+        storedPrefixCount = argsCodec.getPrefixCount();
+    }
+
+    /** Write any prefixes added to the codec's dictionary to the arg_prefixes table. */
+    private void writeNewArgPrefixes() {
+        while( storedPrefixCount < argsCodec.getPrefixCount() ) {
+            Map<String,Object> values = new HashMap<>();
+            values.put("token", storedPrefixCount );
+            values.put("prefix", argsCodec.getPrefix( storedPrefixCount ) );
+            db.insert("arg_prefixes", values );
+            storedPrefixCount++;
+        }
+    }
+
+    /** Decode binary encoded command args. */
+    private List decodeArgs(byte[] data) {
+        try {
+            return argsCodec.decode( data );
+        }
+        catch(IllegalArgumentException e) {
+            Log.e( Tag, "Decoding args", e );
+            return null;
+        }
+    }
+
+    /** Parse JSON encoded command args. */
+    private List parseJSONArgs(String json) {
+        try {
+            return (List)JSONValue.parseWithException( json );
+        }
+        catch(org.json.simple.parser.ParseException e) {
+            Log.e( Tag, "Parsing JSON args", e );
+            return null;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import android.util.Log;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of threads shared by the run queues of several command schedulers.
+ * Each scheduler is given its own run queue from the pool using newRunQueue(). A queue's actions
+ * are run one at a time and in order, as with a dedicated queue, but may be run on any of the
+ * pool's threads; so schedulers sharing a pool make progress in parallel, up to the pool's thread
+ * count, without each needing its own thread.
+ *
+ * The pool is fair between its queues: queues with pending actions are serviced in round robin
+ * order, and each is allowed to run at most a quantum of actions before yielding its thread to
+ * the next queue; so a scheduler with a long backlog of work, e.g. during a large content
+ * refresh, can't starve other schedulers of threads.
+ */
+public class SharedRunQueuePool {
+
+    static final String Tag = SharedRunQueuePool.class.getSimpleName();
+
+    /** The default number of threads in the pool. */
+    static final int DefaultThreadCount = 2;
+    /** The default maximum number of actions a queue runs before yielding to other queues. */
+    static final int DefaultQuantum = 16;
+
+    /** The queue whose actions are being run by the current thread, if any. */
+    static final ThreadLocal<PooledRunQueue> CurrentQueue = new ThreadLocal<>();
+
+    /** A run queue whose actions are run on the pool's threads. */
+    class PooledRunQueue implements CommandRunQueue {
+        /** The queue's name. */
+        String name;
+        /** Actions waiting to be run. Guarded by the pool. */
+        LinkedList<Runnable> actions = new LinkedList<>();
+        /** Flag indicating that the queue is waiting for, or running on, a pool thread. Guarded by the pool. */
+        boolean scheduled;
+
+        PooledRunQueue(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void dispatch(Runnable action) {
+            synchronized( SharedRunQueuePool.this ) {
+                actions.add( action );
+                if( !scheduled ) {
+                    scheduled = true;
+                    schedule( this );
+                }
+            }
+        }
+
+        @Override
+        public boolean isRunningOnQueueThread() {
+            return CurrentQueue.get() == this;
+        }
+    }
+
+    /** The number of threads in the pool. */
+    private int threadCount = DefaultThreadCount;
+    /** The maximum number of actions a queue runs before yielding to other queues. */
+    private int quantum = DefaultQuantum;
+    /** The pool's threads; created when first needed. */
+    private ExecutorService executor;
+    /** Queues with actions waiting to be run, in round robin order. Guarded by the pool. */
+    private LinkedList<PooledRunQueue> readyQueues = new LinkedList<>();
+
+    /** A task which runs the actions of the next ready queue. */
+    private Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            PooledRunQueue queue;
+            synchronized( SharedRunQueuePool.this ) {
+                queue = readyQueues.poll();
+            }
+            if( queue == null ) {
+                return;
+            }
+            CurrentQueue.set( queue );
+            try {
+                for( int i = 0; i < quantum; i++ ) {
+                    Runnable action;
+                    synchronized( SharedRunQueuePool.this ) {
+                        action = queue.actions.poll();
+                    }
+                    if( action == null ) {
+                        break;
+                    }
+                    try {
+                        action.run();
+                    }
+                    catch(Exception e) {
+                        Log.e( Tag, String.format("Error running action on %s", queue.name ), e );
+                    }
+                }
+            }
+            finally {
+                CurrentQueue.remove();
+            }
+            synchronized( SharedRunQueuePool.this ) {
+                if( queue.actions.size() > 0 ) {
+                    // Return the queue to the back of the ready list.
+                    schedule( queue );
+                }
+                else {
+                    queue.scheduled = false;
+                }
+            }
+        }
+    };
+
+    public SharedRunQueuePool() {}
+
+    public SharedRunQueuePool(int threadCount) {
+        setThreadCount( threadCount );
+    }
+
+    /** Set the number of threads in the pool. Must be set before any queue is used. */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = Math.max( threadCount, 1 );
+    }
+
+    /** Set the maximum number of actions a queue runs before yielding to other queues. */
+    public void setQuantum(int quantum) {
+        this.quantum = Math.max( quantum, 1 );
+    }
+
+    /**
+     * Create a new run queue using the pool's threads.
+     * @param name The queue's name; used in log messages.
+     */
+    public CommandRunQueue newRunQueue(String name) {
+        return new PooledRunQueue( name );
+    }
+
+    /** Add a queue to the back of the ready list, and start a worker to run it. Must be called whilst synchronized on the pool. */
+    private void schedule(PooledRunQueue queue) {
+        if( executor == null ) {
+            executor = Executors.newFixedThreadPool( threadCount, new ThreadFactory() {
+                private AtomicInteger threadNumber = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread( runnable, String.format("%s-%d", Tag, threadNumber.incrementAndGet() ) );
+                }
+            } );
+        }
+        readyQueues.add( queue );
+        executor.execute( worker );
+    }
+}
@@ -0,0 +1,43 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import com.innerfunction.util.RunQueue;
+
+/**
+ * A command run queue which runs actions on its own dedicated thread.
+ */
+public class ThreadRunQueue implements CommandRunQueue {
+
+    /** The underlying run queue. */
+    private RunQueue runQueue;
+
+    /**
+     * Create a new run queue.
+     * @param name The name of the queue's thread.
+     */
+    public ThreadRunQueue(String name) {
+        this.runQueue = new RunQueue( name );
+    }
+
+    @Override
+    public void dispatch(Runnable action) {
+        runQueue.dispatch( action );
+    }
+
+    @Override
+    public boolean isRunningOnQueueThread() {
+        return runQueue.isRunningOnQueueThread();
+    }
+}
@@ -0,0 +1,227 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel.
+ * Time is divided into ticks. The wheel has four levels of 64 slots each; level 0 holds timers
+ * due within the next 64 ticks, with one tick per slot, and each higher level holds timers due
+ * within a 64 times longer period, with 64 times as many ticks per slot. As time advances, the
+ * timers in a higher level slot are cascaded down into the level below as the slot's period is
+ * reached. Timers due beyond the range of the top level are held on an overflow list, which is
+ * cascaded once per rotation of the top level.
+ *
+ * Scheduling and cancelling a timer are constant time operations; cancelled timers are discarded
+ * when their slot is next processed. The wheel isn't thread safe; it is owned by the command
+ * scheduler and is only used on the scheduler's exec queue thread.
+ */
+public class TimerWheel {
+
+    /** The number of bits of a tick number used to index the slots of each level. */
+    static final int SlotBits = 6;
+    /** The number of slots in each level. */
+    static final int SlotCount = 1 << SlotBits;
+    /** Mask used to calculate a slot index. */
+    static final int SlotMask = SlotCount - 1;
+    /** The number of levels in the wheel. */
+    static final int LevelCount = 4;
+
+    /** A scheduled timer. */
+    public static class Timer {
+        /** The tick the timer is due on. */
+        long dueTick;
+        /** The task to run when the timer is due. */
+        Runnable task;
+        /** Flag indicating that the timer has been cancelled. */
+        boolean cancelled;
+
+        /** Cancel the timer. Has no effect if the timer has already run. */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /** The length of a tick, in ms. */
+    private long tickDuration;
+    /** The wheel's slots, by level and then by slot index. */
+    private List<List<Timer>> slots = new ArrayList<>();
+    /** The number of timers held in each level. */
+    private int[] levelCounts = new int[LevelCount];
+    /** Timers due beyond the range of the top level. */
+    private List<Timer> overflow = new ArrayList<>();
+    /** Timers which were already due when scheduled or cascaded, waiting to be run. */
+    private List<Timer> due = new ArrayList<>();
+    /** The number of the last tick processed. */
+    private long currentTick;
+
+    /**
+     * Create a new timer wheel.
+     * @param tickDuration  The length of a tick, in ms; the wheel's resolution.
+     * @param now           The current time, in ms.
+     */
+    public TimerWheel(long tickDuration, long now) {
+        this.tickDuration = Math.max( tickDuration, 1 );
+        this.currentTick = now / this.tickDuration;
+        for( int i = 0; i < LevelCount * SlotCount; i++ ) {
+            slots.add( new ArrayList<Timer>() );
+        }
+    }
+
+    /**
+     * Schedule a task to run at the specified time.
+     * The task is run by the first call to advance() after the time is reached.
+     */
+    public Timer schedule(long time, Runnable task) {
+        Timer timer = new Timer();
+        // Round up, so that a timer never runs before its due time.
+        timer.dueTick = (time + tickDuration - 1) / tickDuration;
+        timer.task = task;
+        insert( timer );
+        return timer;
+    }
+
+    /** Test whether the wheel has any scheduled timers, including cancelled timers. */
+    public boolean isEmpty() {
+        if( due.size() > 0 || overflow.size() > 0 ) {
+            return false;
+        }
+        for( int count : levelCounts ) {
+            if( count > 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Advance the wheel to the specified time, running all timers due by then. */
+    public void advance(long now) {
+        long nowTick = now / tickDuration;
+        while( currentTick < nowTick ) {
+            // If the lowest levels are empty, then nothing happens until the next slot of the
+            // first non-empty level is cascaded, so skip to the end of that level's current slot.
+            int emptyLevels = 0;
+            while( emptyLevels < LevelCount && levelCounts[emptyLevels] == 0 ) {
+                emptyLevels++;
+            }
+            if( emptyLevels == LevelCount && overflow.size() == 0 ) {
+                currentTick = nowTick;
+                break;
+            }
+            if( emptyLevels > 0 ) {
+                long slotEnd = currentTick | ((1L << (SlotBits * emptyLevels)) - 1);
+                if( slotEnd >= nowTick ) {
+                    currentTick = nowTick;
+                    break;
+                }
+                currentTick = slotEnd;
+            }
+            currentTick++;
+            // Cascade higher level slots whose period starts on the current tick; higher levels
+            // first, so that timers can cascade through several levels at once.
+            for( int level = LevelCount; level > 0; level-- ) {
+                int shift = SlotBits * level;
+                if( (currentTick & ((1L << shift) - 1)) == 0 ) {
+                    if( level == LevelCount ) {
+                        cascade( overflow );
+                    }
+                    else {
+                        int idx = level * SlotCount + (int)((currentTick >> shift) & SlotMask);
+                        levelCounts[level] -= slots.get( idx ).size();
+                        cascade( slots.get( idx ) );
+                    }
+                }
+            }
+            List<Timer> slot = slots.get( (int)(currentTick & SlotMask) );
+            levelCounts[0] -= slot.size();
+            due.addAll( slot );
+            slot.clear();
+        }
+        // Run due timers. Timers scheduled by a running task which are already due are run by the
+        // next call to advance().
+        List<Timer> timers = due;
+        due = new ArrayList<>();
+        for( Timer timer : timers ) {
+            if( !timer.cancelled ) {
+                timer.cancelled = true;
+                timer.task.run();
+            }
+        }
+    }
+
+    /**
+     * Return the earliest time at which advance() must next be called; either the due time of the
+     * next timer, or the time at which the next non-empty higher level slot must be cascaded.
+     * Returns 0 if timers are already due, or Long.MAX_VALUE if the wheel has no timers.
+     */
+    public long getNextTime() {
+        if( due.size() > 0 ) {
+            return 0;
+        }
+        // Note that a timer in a higher level can be due before a timer in a lower level, so the
+        // earliest time across all levels is returned.
+        long nextTick = Long.MAX_VALUE;
+        for( int level = 0; level < LevelCount; level++ ) {
+            if( levelCounts[level] == 0 ) {
+                continue;
+            }
+            int shift = SlotBits * level;
+            long period = currentTick >> shift;
+            for( int i = 1; i <= SlotCount; i++ ) {
+                int idx = level * SlotCount + (int)((period + i) & SlotMask);
+                if( slots.get( idx ).size() > 0 ) {
+                    nextTick = Math.min( nextTick, (period + i) << shift );
+                    break;
+                }
+            }
+        }
+        if( overflow.size() > 0 ) {
+            int shift = SlotBits * LevelCount;
+            nextTick = Math.min( nextTick, ((currentTick >> shift) + 1) << shift );
+        }
+        return nextTick == Long.MAX_VALUE ? Long.MAX_VALUE : nextTick * tickDuration;
+    }
+
+    /** Insert a timer into the wheel, according to its due tick. */
+    private void insert(Timer timer) {
+        long delta = timer.dueTick - currentTick;
+        if( delta <= 0 ) {
+            due.add( timer );
+            return;
+        }
+        for( int level = 0; level < LevelCount; level++ ) {
+            int shift = SlotBits * level;
+            if( delta < (1L << (shift + SlotBits)) ) {
+                int idx = level * SlotCount + (int)((timer.dueTick >> shift) & SlotMask);
+                slots.get( idx ).add( timer );
+                levelCounts[level]++;
+                return;
+            }
+        }
+        overflow.add( timer );
+    }
+
+    /** Re-insert the timers of a slot, relative to the current tick. */
+    private void cascade(List<Timer> slot) {
+        List<Timer> timers = new ArrayList<>( slot );
+        slot.clear();
+        for( Timer timer : timers ) {
+            if( !timer.cancelled ) {
+                insert( timer );
+            }
+        }
+    }
+}
@@ -33,7 +33,7 @@ import java.util.List;
  *
  * Attached by juliangoacher on 13/05/16.
  */
-public class UnzipCommand implements Command {
+public class UnzipCommand implements Command, ExecutionLaneAware {
 
     private Assets assets;
 
@@ -68,4 +68,9 @@ public class UnzipCommand implements Command {
         return Q.resolve( CommandScheduler.NoFollowOns );
     }
 
+    @Override
+    public String getExecutionLane(String name) {
+        return CommandScheduler.DiskLane;
+    }
+
 }
@@ -16,11 +16,14 @@ package com.innerfunction.semo.content;
 import com.innerfunction.http.Client;
 import com.innerfunction.http.Response;
 import com.innerfunction.q.Q;
-import com.innerfunction.semo.commands.Command;
+import com.innerfunction.semo.commands.CancellableCommand;
 import com.innerfunction.semo.commands.CommandScheduler;
 import com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+import com.innerfunction.semo.commands.ExecutionLaneAware;
 import com.innerfunction.util.Files;
 
+import android.os.CancellationSignal;
+
 import java.io.File;
 import java.net.MalformedURLException;
 import java.util.List;
@@ -40,9 +43,11 @@ import java.util.List;
  * - url:       The URL to download.
  * - path:      A location to unzip the downloaded zip file to.
  *
+ * If the command is cancelled before the download completes then the download isn't unzipped.
+ *
  * Attached by juliangoacher on 11/07/16.
  */
-public class DownloadZipCommand implements Command {
+public class DownloadZipCommand implements CancellableCommand, ExecutionLaneAware {
 
     /** The HTTP client used to fetch URLs. */
     private Client httpClient;
@@ -56,6 +61,11 @@ public class DownloadZipCommand implements Command {
 
     @Override
     public Q.Promise<List<CommandItem>> execute(String name, List args) {
+        return execute( name, args, new CancellationSignal() );
+    }
+
+    @Override
+    public Q.Promise<List<CommandItem>> execute(String name, List args, final CancellationSignal cancellation) {
         final Q.Promise<List<CommandItem>> promise = new Q.Promise<>();
         if( args.size() > 1 ) {
             // Read arguments.
@@ -71,6 +81,9 @@ public class DownloadZipCommand implements Command {
                     .then( new Q.Promise.Callback<Response, Response>() {
                         @Override
                         public Response result(Response response) {
+                            if( cancellation.isCanceled() ) {
+                                return response;
+                            }
                             // Unzip the downloaded file.
                             File unzipDir = new File( unzipPath );
                             if( Files.unzip( response.getDataFile(), unzipDir ) != null ) {
@@ -98,4 +111,9 @@ public class DownloadZipCommand implements Command {
         }
         return promise;
     }
+
+    @Override
+    public String getExecutionLane(String name) {
+        return CommandScheduler.NetworkLane;
+    }
 }
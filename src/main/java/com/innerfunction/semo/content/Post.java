@@ -0,0 +1,165 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.content;
+
+import android.database.Cursor;
+
+import com.innerfunction.semo.db.RowMapper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A typed record of a row in the posts table.
+ * Use Post.Mapper with DB.read(..) or DB.performQuery(..) to read posts by column index, without
+ * the map lookups and value conversions needed when reading posts as maps. The content container
+ * registers the mapper with its post DB, so posts can also be read with DB.read("posts", id, Post.class).
+ * Use Post.fromFeedItem(..) to read a post's values from a content feed item.
+ */
+public class Post {
+
+    /** The post ID. */
+    public int id;
+    /** The post title. */
+    public String title;
+    /** The post type. */
+    public String type;
+    /** The WP post status. */
+    public String status;
+    /** Modification date/time; ISO 8601 format string. */
+    public String modified;
+    /** The post content. */
+    public String content;
+    /** ID of the post's featured image; null if none. */
+    public Integer imageid;
+    /** The post's location; packaged, downloaded or server. */
+    public String location;
+    /** The post's WP URL. */
+    public String url;
+    /** Name of associated media file (i.e. for attachments). */
+    public String filename;
+    /** ID of parent page/post; null if none. */
+    public Integer parent;
+    /** Sort order; mapped to post.menu_order. */
+    public Integer menuOrder;
+
+    /** Posts table column names, in the order read by the mapper. */
+    static final String[] Columns = new String[]{
+        "id", "title", "type", "status", "modified", "content", "imageid", "location", "url",
+        "filename", "parent", "menu_order"
+    };
+
+    /** A row mapper for reading posts table rows. */
+    public static final RowMapper<Post> Mapper = new RowMapper<Post>() {
+        @Override
+        public String[] getColumnNames() {
+            return Columns;
+        }
+        @Override
+        public Post mapRow(Cursor cursor, int[] columns) {
+            Post post = new Post();
+            post.id         = cursor.getInt( columns[0] );
+            post.title      = getString( cursor, columns[1] );
+            post.type       = getString( cursor, columns[2] );
+            post.status     = getString( cursor, columns[3] );
+            post.modified   = getString( cursor, columns[4] );
+            post.content    = getString( cursor, columns[5] );
+            post.imageid    = getInteger( cursor, columns[6] );
+            post.location   = getString( cursor, columns[7] );
+            post.url        = getString( cursor, columns[8] );
+            post.filename   = getString( cursor, columns[9] );
+            post.parent     = getInteger( cursor, columns[10] );
+            post.menuOrder  = getInteger( cursor, columns[11] );
+            return post;
+        }
+    };
+
+    /**
+     * Read a post from a content feed item.
+     * The item's values are read once, so that code which reads several of a post's values while
+     * deploying a feed does so without repeated key path lookups and conversions.
+     */
+    public static Post fromFeedItem(Map<String,Object> item) {
+        Post post = new Post();
+        Integer id  = toInteger( item.get("id") );
+        post.id         = id != null ? id : 0;
+        post.title      = toString( item.get("title") );
+        post.type       = toString( item.get("type") );
+        post.status     = toString( item.get("status") );
+        post.modified   = toString( item.get("modified") );
+        post.content    = toString( item.get("content") );
+        post.imageid    = toInteger( item.get("imageid") );
+        post.location   = toString( item.get("location") );
+        post.url        = toString( item.get("url") );
+        post.filename   = toString( item.get("filename") );
+        post.parent     = toInteger( item.get("parent") );
+        post.menuOrder  = toInteger( item.get("menu_order") );
+        return post;
+    }
+
+    /**
+     * Return the post's values as a map.
+     * The map has the same form as the post maps returned by DB.read(..) and DB.performQuery(..),
+     * i.e. column name keys, with null values omitted.
+     */
+    public Map<String,Object> toMap() {
+        Map<String,Object> values = new HashMap<>();
+        values.put("id", id );
+        putIfNotNull( values, "title", title );
+        putIfNotNull( values, "type", type );
+        putIfNotNull( values, "status", status );
+        putIfNotNull( values, "modified", modified );
+        putIfNotNull( values, "content", content );
+        putIfNotNull( values, "imageid", imageid );
+        putIfNotNull( values, "location", location );
+        putIfNotNull( values, "url", url );
+        putIfNotNull( values, "filename", filename );
+        putIfNotNull( values, "parent", parent );
+        putIfNotNull( values, "menu_order", menuOrder );
+        return values;
+    }
+
+    private static void putIfNotNull(Map<String,Object> values, String name, Object value) {
+        if( value != null ) {
+            values.put( name, value );
+        }
+    }
+
+    private static String toString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static Integer toInteger(Object value) {
+        if( value instanceof Number ) {
+            return ((Number)value).intValue();
+        }
+        if( value != null ) {
+            try {
+                return Integer.valueOf( value.toString() );
+            }
+            catch(NumberFormatException e) {
+                // Not an integer value.
+            }
+        }
+        return null;
+    }
+
+    private static String getString(Cursor cursor, int column) {
+        return column < 0 || cursor.isNull( column ) ? null : cursor.getString( column );
+    }
+
+    private static Integer getInteger(Cursor cursor, int column) {
+        return column < 0 || cursor.isNull( column ) ? null : cursor.getInt( column );
+    }
+}
@@ -0,0 +1,581 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.content;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.innerfunction.semo.db.ChangeLog;
+import com.innerfunction.semo.db.DB;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of the post hierarchy.
+ * Allows a post's parent, children, ancestors and descendants, and its type and menu order, to
+ * be read without any DB access. The index is built from the posts table when the content
+ * container starts, and is then kept up to date by reading post changes from the post DB's
+ * change log after each content refresh.
+ *
+ * All data is held in primitive arrays indexed by slot number; there are no per-post objects.
+ * Post IDs are mapped to slots using an open-addressed hash table. Each post's children are held
+ * in a linked list (first child + next sibling slots) sorted by menu order.
+ */
+public class PostHierarchyIndex {
+
+    static final String Tag = PostHierarchyIndex.class.getSimpleName();
+
+    /** The name the index uses to consume the post DB's change log. */
+    static final String ChangeConsumerName = "post-hierarchy-index";
+    /** The number of changes read from the change log at a time. */
+    static final int ChangeBatchSize = 500;
+    /** The initial slot capacity. */
+    static final int InitialCapacity = 256;
+    /** Slot value indicating no slot, i.e. no parent, child or sibling. */
+    static final int NoSlot = -1;
+    /** Parent slot value used to mark unused slots. */
+    static final int FreeSlot = -2;
+    /** Hash table slot reference marking an empty hash entry. */
+    static final int HashEmpty = -1;
+    /** Hash table slot reference marking a deleted hash entry. */
+    static final int HashDeleted = -2;
+    /** SQL used to read post hierarchy data. */
+    static final String PostHierarchySQL = "SELECT id, parent, type, menu_order FROM posts";
+
+    /** The post DB. */
+    private DB postDB;
+    /** A cursor on the post DB change log. */
+    private ChangeLog.ChangeCursor changeCursor;
+
+    /** The post ID in each slot. */
+    private int[] ids;
+    /** The parent post ID of each slot; 0 if the post has no parent. */
+    private int[] parentIds;
+    /** The slot of each slot's parent post; NoSlot if the parent isn't in the index. */
+    private int[] parentSlots;
+    /** The slot of each slot's first child. */
+    private int[] firstChildSlots;
+    /** The slot of each slot's next sibling. Also used to link the free slot list. */
+    private int[] nextSiblingSlots;
+    /** The post type code of each slot. */
+    private int[] typeCodes;
+    /** The menu order of each slot. */
+    private int[] menuOrders;
+    /** The number of slots in use, including free slots. */
+    private int slotCount;
+    /** The number of posts in the index. */
+    private int postCount;
+    /** The first slot on the free slot list. */
+    private int freeSlot;
+    /** The number of posts whose parent isn't in the index. */
+    private int orphanCount;
+
+    /** Hash table post IDs. */
+    private int[] hashIDs;
+    /** Hash table slot references. */
+    private int[] hashSlots;
+    /** The number of used hash entries, including deleted entries. */
+    private int hashUsed;
+
+    /** Post type names, indexed by type code. */
+    private List<String> typeNames = new ArrayList<>();
+    /** Post type codes, keyed by type name. */
+    private Map<String,Integer> typeCodesByName = new HashMap<>();
+
+    public PostHierarchyIndex(DB postDB) {
+        this.postDB = postDB;
+        reset( InitialCapacity );
+    }
+
+    /**
+     * Build the index from the posts table.
+     * Replaces any current index contents.
+     */
+    public synchronized void build() {
+        long startTime = System.currentTimeMillis();
+        // Read the change log position before scanning the posts table, so that any changes made
+        // during the scan are (re)applied by the next update.
+        ChangeLog changeLog = postDB.getChangeLog();
+        long changeSeq = changeLog != null ? changeLog.getLastSeq() : 0;
+        // Posts are read in descending sibling order; each post is then prepended to its parent's
+        // child list, so that child lists end up in ascending menu order without any sorting.
+        String sql = PostHierarchySQL.concat(" ORDER BY parent, menu_order DESC, id DESC");
+        Cursor cursor = postDB.getConnection().rawQuery( sql, null );
+        try {
+            reset( Math.max( cursor.getCount(), InitialCapacity ) );
+            while( cursor.moveToNext() ) {
+                int slot = allocateSlot( cursor.getInt( 0 ) );
+                setValues( slot, cursor.getInt( 1 ), cursor.getString( 2 ), cursor.getInt( 3 ) );
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        for( int slot = 0; slot < slotCount; slot++ ) {
+            int parentSlot = findParentSlot( slot );
+            parentSlots[slot] = parentSlot;
+            if( parentSlot != NoSlot ) {
+                nextSiblingSlots[slot] = firstChildSlots[parentSlot];
+                firstChildSlots[parentSlot] = slot;
+            }
+            else if( parentIds[slot] != 0 ) {
+                orphanCount++;
+            }
+        }
+        if( changeLog != null ) {
+            changeCursor = changeLog.openCursor( ChangeConsumerName, changeSeq );
+        }
+        long memoryUsage = getMemoryUsage();
+        Log.i( Tag, String.format("Indexed %d posts in %d ms; %d bytes (%d bytes per 10k posts)",
+            postCount, System.currentTimeMillis() - startTime, memoryUsage,
+            postCount > 0 ? (memoryUsage * 10000) / postCount : 0 ) );
+    }
+
+    /**
+     * Update the index with all post changes recorded in the change log since the last update.
+     * Only the changed posts are read from the DB.
+     */
+    public synchronized void update() {
+        if( changeCursor == null ) {
+            return;
+        }
+        String sql = PostHierarchySQL.concat(" WHERE id=?");
+        int count = 0;
+        List<ChangeLog.Change> changes;
+        while( (changes = changeCursor.next( ChangeBatchSize )).size() > 0 ) {
+            for( ChangeLog.Change change : changes ) {
+                if( !"posts".equals( change.table ) ) {
+                    continue;
+                }
+                int id;
+                try {
+                    id = Integer.parseInt( change.id );
+                }
+                catch(NumberFormatException e) {
+                    Log.w( Tag, String.format("Invalid post ID in change log: %s", change.id ) );
+                    continue;
+                }
+                if( ChangeLog.Delete.equals( change.op ) ) {
+                    remove( id );
+                }
+                else {
+                    Cursor cursor = postDB.getConnection().rawQuery( sql, new String[]{ change.id } );
+                    if( cursor.moveToFirst() ) {
+                        put( id, cursor.getInt( 1 ), cursor.getString( 2 ), cursor.getInt( 3 ) );
+                    }
+                    else {
+                        remove( id );
+                    }
+                    cursor.close();
+                }
+                count++;
+            }
+        }
+        changeCursor.ack();
+        if( count > 0 ) {
+            Log.d( Tag, String.format("Applied %d post changes", count ) );
+        }
+    }
+
+    /**
+     * Add or update a post in the index.
+     * @param id        The post ID.
+     * @param parentId  The parent post ID, or 0 if the post has no parent.
+     * @param type      The post type.
+     * @param menuOrder The post's menu order.
+     */
+    public synchronized void put(int id, int parentId, String type, int menuOrder) {
+        int slot = findSlot( id );
+        boolean isNew = (slot == NoSlot);
+        if( isNew ) {
+            slot = allocateSlot( id );
+        }
+        else {
+            unlink( slot );
+        }
+        setValues( slot, parentId, type, menuOrder );
+        link( slot );
+        if( isNew && orphanCount > 0 ) {
+            adoptOrphans( slot );
+        }
+    }
+
+    /** Remove a post from the index. The post's children are kept, but become orphans. */
+    public synchronized void remove(int id) {
+        int slot = findSlot( id );
+        if( slot == NoSlot ) {
+            return;
+        }
+        unlink( slot );
+        int child = firstChildSlots[slot];
+        while( child != NoSlot ) {
+            int next = nextSiblingSlots[child];
+            parentSlots[child] = NoSlot;
+            nextSiblingSlots[child] = NoSlot;
+            orphanCount++;
+            child = next;
+        }
+        firstChildSlots[slot] = NoSlot;
+        hashRemove( id );
+        parentSlots[slot] = FreeSlot;
+        nextSiblingSlots[slot] = freeSlot;
+        freeSlot = slot;
+        postCount--;
+    }
+
+    /** Test whether a post is in the index. */
+    public synchronized boolean contains(int id) {
+        return findSlot( id ) != NoSlot;
+    }
+
+    /** Return the number of posts in the index. */
+    public synchronized int size() {
+        return postCount;
+    }
+
+    /** Return a post's parent ID; 0 if the post has no parent, or -1 if the post isn't indexed. */
+    public synchronized int getParent(int id) {
+        int slot = findSlot( id );
+        return slot != NoSlot ? parentIds[slot] : -1;
+    }
+
+    /** Return a post's type; null if the post isn't indexed. */
+    public synchronized String getType(int id) {
+        int slot = findSlot( id );
+        return slot != NoSlot ? getTypeName( typeCodes[slot] ) : null;
+    }
+
+    /** Return a post's menu order; 0 if the post isn't indexed. */
+    public synchronized int getMenuOrder(int id) {
+        int slot = findSlot( id );
+        return slot != NoSlot ? menuOrders[slot] : 0;
+    }
+
+    /** Return the IDs of a post's children, in menu order. */
+    public synchronized int[] getChildren(int id) {
+        int slot = findSlot( id );
+        if( slot == NoSlot ) {
+            return new int[0];
+        }
+        int count = 0;
+        for( int child = firstChildSlots[slot]; child != NoSlot; child = nextSiblingSlots[child] ) {
+            count++;
+        }
+        int[] result = new int[count];
+        int i = 0;
+        for( int child = firstChildSlots[slot]; child != NoSlot; child = nextSiblingSlots[child] ) {
+            result[i++] = ids[child];
+        }
+        return result;
+    }
+
+    /** Return the IDs of a post's ancestors; the post's parent first, its root ancestor last. */
+    public synchronized int[] getAncestors(int id) {
+        int slot = findSlot( id );
+        if( slot == NoSlot ) {
+            return new int[0];
+        }
+        int[] result = new int[8];
+        int count = 0;
+        // Bound the walk by the number of posts, to guard against cyclic parent references.
+        for( int parent = parentSlots[slot]; parent >= 0 && count < postCount; parent = parentSlots[parent] ) {
+            if( count == result.length ) {
+                result = Arrays.copyOf( result, count * 2 );
+            }
+            result[count++] = ids[parent];
+        }
+        return Arrays.copyOf( result, count );
+    }
+
+    /**
+     * Return the IDs of all of a post's descendants.
+     * Descendants are returned in breadth first order, i.e. ordered by depth, then by parent, then
+     * by menu order.
+     */
+    public synchronized int[] getDescendants(int id) {
+        int slot = findSlot( id );
+        if( slot == NoSlot ) {
+            return new int[0];
+        }
+        // Breadth first traversal, using the result array as the traversal queue.
+        int[] queue = new int[Math.max( postCount, 1 )];
+        int head = 0, tail = 0;
+        int current = slot;
+        while( current != NoSlot ) {
+            for( int child = firstChildSlots[current]; child != NoSlot && tail < queue.length; child = nextSiblingSlots[child] ) {
+                queue[tail++] = child;
+            }
+            current = head < tail ? queue[head++] : NoSlot;
+        }
+        int[] result = new int[tail];
+        for( int i = 0; i < tail; i++ ) {
+            result[i] = ids[queue[i]];
+        }
+        return result;
+    }
+
+    /** Return the approximate number of bytes of memory used by the index data. */
+    public synchronized long getMemoryUsage() {
+        // 7 int arrays per slot, 2 int arrays per hash entry.
+        return (7L * ids.length * 4) + (2L * hashIDs.length * 4);
+    }
+
+    /** Reset the index to empty with the specified slot capacity. */
+    private void reset(int capacity) {
+        ids                 = new int[capacity];
+        parentIds           = new int[capacity];
+        parentSlots         = new int[capacity];
+        firstChildSlots     = new int[capacity];
+        nextSiblingSlots    = new int[capacity];
+        typeCodes           = new int[capacity];
+        menuOrders          = new int[capacity];
+        slotCount = 0;
+        postCount = 0;
+        freeSlot = NoSlot;
+        orphanCount = 0;
+        hashIDs = new int[getHashCapacity( capacity )];
+        hashSlots = new int[hashIDs.length];
+        Arrays.fill( hashSlots, HashEmpty );
+        hashUsed = 0;
+    }
+
+    /** Allocate a slot for a new post ID. */
+    private int allocateSlot(int id) {
+        int slot;
+        if( freeSlot != NoSlot ) {
+            slot = freeSlot;
+            freeSlot = nextSiblingSlots[slot];
+        }
+        else {
+            if( slotCount == ids.length ) {
+                int capacity = ids.length * 2;
+                ids                 = Arrays.copyOf( ids, capacity );
+                parentIds           = Arrays.copyOf( parentIds, capacity );
+                parentSlots         = Arrays.copyOf( parentSlots, capacity );
+                firstChildSlots     = Arrays.copyOf( firstChildSlots, capacity );
+                nextSiblingSlots    = Arrays.copyOf( nextSiblingSlots, capacity );
+                typeCodes           = Arrays.copyOf( typeCodes, capacity );
+                menuOrders          = Arrays.copyOf( menuOrders, capacity );
+            }
+            slot = slotCount++;
+        }
+        ids[slot] = id;
+        parentSlots[slot] = NoSlot;
+        firstChildSlots[slot] = NoSlot;
+        nextSiblingSlots[slot] = NoSlot;
+        hashPut( id, slot );
+        postCount++;
+        return slot;
+    }
+
+    /** Set a slot's values. */
+    private void setValues(int slot, int parentId, String type, int menuOrder) {
+        // A post can't be its own parent.
+        parentIds[slot] = (parentId == ids[slot]) ? 0 : parentId;
+        typeCodes[slot] = getTypeCode( type );
+        menuOrders[slot] = menuOrder;
+    }
+
+    /** Find the slot of a slot's parent post. */
+    private int findParentSlot(int slot) {
+        int parentId = parentIds[slot];
+        return parentId != 0 ? findSlot( parentId ) : NoSlot;
+    }
+
+    /** Link a slot into its parent's child list, in menu order. */
+    private void link(int slot) {
+        int parentSlot = findParentSlot( slot );
+        parentSlots[slot] = parentSlot;
+        nextSiblingSlots[slot] = NoSlot;
+        if( parentSlot == NoSlot ) {
+            if( parentIds[slot] != 0 ) {
+                orphanCount++;
+            }
+            return;
+        }
+        int prev = NoSlot, next = firstChildSlots[parentSlot];
+        while( next != NoSlot && compareSiblings( next, slot ) <= 0 ) {
+            prev = next;
+            next = nextSiblingSlots[next];
+        }
+        nextSiblingSlots[slot] = next;
+        if( prev == NoSlot ) {
+            firstChildSlots[parentSlot] = slot;
+        }
+        else {
+            nextSiblingSlots[prev] = slot;
+        }
+    }
+
+    /** Unlink a slot from its parent's child list. */
+    private void unlink(int slot) {
+        int parentSlot = parentSlots[slot];
+        if( parentSlot == NoSlot ) {
+            if( parentIds[slot] != 0 ) {
+                orphanCount--;
+            }
+            return;
+        }
+        int prev = NoSlot, current = firstChildSlots[parentSlot];
+        while( current != NoSlot && current != slot ) {
+            prev = current;
+            current = nextSiblingSlots[current];
+        }
+        if( current == slot ) {
+            if( prev == NoSlot ) {
+                firstChildSlots[parentSlot] = nextSiblingSlots[slot];
+            }
+            else {
+                nextSiblingSlots[prev] = nextSiblingSlots[slot];
+            }
+        }
+        parentSlots[slot] = NoSlot;
+        nextSiblingSlots[slot] = NoSlot;
+    }
+
+    /** Link any orphaned posts whose parent is the post in the specified slot. */
+    private void adoptOrphans(int parentSlot) {
+        int parentId = ids[parentSlot];
+        for( int slot = 0; slot < slotCount && orphanCount > 0; slot++ ) {
+            if( slot != parentSlot && parentSlots[slot] == NoSlot && parentIds[slot] == parentId ) {
+                orphanCount--;
+                link( slot );
+            }
+        }
+    }
+
+    /** Compare the sibling order of two slots; by menu order, then by post ID. */
+    private int compareSiblings(int slot1, int slot2) {
+        int result = menuOrders[slot1] - menuOrders[slot2];
+        if( result == 0 ) {
+            result = ids[slot1] - ids[slot2];
+        }
+        return result;
+    }
+
+    /** Return the code for a post type name. */
+    private int getTypeCode(String type) {
+        if( type == null ) {
+            return -1;
+        }
+        Integer code = typeCodesByName.get( type );
+        if( code == null ) {
+            code = typeNames.size();
+            typeNames.add( type );
+            typeCodesByName.put( type, code );
+        }
+        return code;
+    }
+
+    /** Return the post type name for a type code. */
+    private String getTypeName(int code) {
+        return code >= 0 ? typeNames.get( code ) : null;
+    }
+
+    /** Return a power of two hash table capacity with room for the specified number of entries. */
+    private static int getHashCapacity(int entries) {
+        int capacity = 16;
+        while( capacity < entries * 2 ) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /** Return the hash table position for a post ID. */
+    private int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (hashIDs.length - 1);
+    }
+
+    /** Find the slot for a post ID; returns NoSlot if the post isn't indexed. */
+    private int findSlot(int id) {
+        int mask = hashIDs.length - 1;
+        for( int i = hash( id ); ; i = (i + 1) & mask ) {
+            int slot = hashSlots[i];
+            if( slot == HashEmpty ) {
+                return NoSlot;
+            }
+            if( slot != HashDeleted && hashIDs[i] == id ) {
+                return slot;
+            }
+        }
+    }
+
+    /** Map a post ID to a slot in the hash table. */
+    private void hashPut(int id, int slot) {
+        if( (hashUsed + 1) * 2 > hashIDs.length ) {
+            rehash( getHashCapacity( postCount + 1 ) );
+        }
+        int mask = hashIDs.length - 1;
+        int i = hash( id ), deleted = -1;
+        while( hashSlots[i] != HashEmpty ) {
+            if( hashSlots[i] == HashDeleted ) {
+                if( deleted < 0 ) {
+                    deleted = i;
+                }
+            }
+            else if( hashIDs[i] == id ) {
+                hashSlots[i] = slot;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        if( deleted >= 0 ) {
+            // Reuse the deleted entry; the used count doesn't change.
+            i = deleted;
+        }
+        else {
+            hashUsed++;
+        }
+        hashIDs[i] = id;
+        hashSlots[i] = slot;
+    }
+
+    /** Remove a post ID from the hash table. */
+    private void hashRemove(int id) {
+        int mask = hashIDs.length - 1;
+        for( int i = hash( id ); hashSlots[i] != HashEmpty; i = (i + 1) & mask ) {
+            if( hashSlots[i] != HashDeleted && hashIDs[i] == id ) {
+                hashSlots[i] = HashDeleted;
+                return;
+            }
+        }
+    }
+
+    /** Rebuild the hash table with a new capacity, discarding deleted entries. */
+    private void rehash(int capacity) {
+        int[] oldIDs = hashIDs;
+        int[] oldSlots = hashSlots;
+        hashIDs = new int[capacity];
+        hashSlots = new int[capacity];
+        Arrays.fill( hashSlots, HashEmpty );
+        hashUsed = 0;
+        int mask = capacity - 1;
+        for( int j = 0; j < oldIDs.length; j++ ) {
+            if( oldSlots[j] >= 0 ) {
+                int i = hash( oldIDs[j] );
+                while( hashSlots[i] != HashEmpty ) {
+                    i = (i + 1) & mask;
+                }
+                hashIDs[i] = oldIDs[j];
+                hashSlots[i] = oldSlots[j];
+                hashUsed++;
+            }
+        }
+    }
+}
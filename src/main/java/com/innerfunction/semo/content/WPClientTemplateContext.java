@@ -187,10 +187,13 @@ public class WPClientTemplateContext implements IOCContainerAware, IOCConfigurat
             // * server:     Attachment file hasn't been downloaded and is still on the server;
             //               return its server URL.
             String postID = (String)key;
-            Map<String,Object> attachment = postDB.read("posts", postID );
-            String location = KeyPath.getValueAsString("location", attachment );
-            String filename = KeyPath.getValueAsString("filename", attachment );
-            String url = KeyPath.getValueAsString("url", attachment );
+            Post attachment = postDB.read("posts", postID, Post.class );
+            String location = null, filename = null, url = null;
+            if( attachment != null ) {
+                location = attachment.location;
+                filename = attachment.filename;
+                url = attachment.url;
+            }
             boolean cacheResult = true;
             if( "packaged".equals( location ) ) {
                 String path = Paths.join( packagedContentPath, filename );
@@ -239,11 +242,10 @@ public class WPClientTemplateContext implements IOCContainerAware, IOCConfigurat
         @Override
         public Object get(Object key) {
             String postID = (String)key;
-            Map<String,Object> post = postDB.read("posts", postID );
-            String location = KeyPath.getValueAsString("location", post );
+            Post post = postDB.read("posts", postID, Post.class );
             String uri;
-            if( "server".equals( location ) ) {
-                uri = KeyPath.getValueAsString("url", post );
+            if( post != null && "server".equals( post.location ) ) {
+                uri = post.url;
             }
             else {
                 uri = container.makeURIForPostWithID( postID );
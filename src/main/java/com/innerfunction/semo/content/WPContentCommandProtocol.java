@@ -19,8 +19,12 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.innerfunction.q.Q;
+import com.innerfunction.semo.commands.Checkpoint;
+import com.innerfunction.semo.commands.CheckpointedCommand;
 import com.innerfunction.semo.commands.Command;
 import com.innerfunction.semo.commands.CommandProtocol;
+import com.innerfunction.semo.commands.CommandScheduler;
+import com.innerfunction.semo.commands.ExecutionLaneAware;
 import com.innerfunction.semo.db.DB;
 import com.innerfunction.util.Assets;
 import com.innerfunction.util.Files;
@@ -36,18 +40,34 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Attached by juliangoacher on 07/07/16.
  */
-public class WPContentCommandProtocol extends CommandProtocol {
+public class WPContentCommandProtocol extends CommandProtocol implements ExecutionLaneAware {
 
     static final String Tag = WPContentCommandProtocol.class.getSimpleName();
 
     public static final String BaseContentType = "semo:base-content";
 
+    /** The maximum number of files deleted by a single rm command. */
+    static final int RmBatchSize = 100;
+    /** The number of feed items deployed or unpacked between each checkpoint. */
+    static final int CheckpointInterval = 250;
+    /**
+     * The queue pressure on the get command above which a checkpointed deploy pauses, to let the
+     * queued downloads drain before more are generated.
+     */
+    static final float HighQueuePressure = 0.75f;
+    /** The time, in ms, a paused deploy waits before continuing. */
+    static final long DeployPauseDelay = 10000;
+
     /** The file used to store downloaded feed result. */
     private File feedFile;
     /** Path to file used to store downloaded base content zip. */
@@ -72,6 +92,10 @@ public class WPContentCommandProtocol extends CommandProtocol {
     private String contentPath;
     /** Access to the app's assets files. */
     private Assets assets;
+    /** An in-memory index of the post hierarchy; updated after post DB changes. */
+    private PostHierarchyIndex postIndex;
+    /** The command scheduler executing the protocol's commands; used to check queue pressure. */
+    private CommandScheduler commandScheduler;
 
     public WPContentCommandProtocol(Context context) {
         addCommand("refresh", new Command() {
@@ -86,16 +110,24 @@ public class WPContentCommandProtocol extends CommandProtocol {
                 return WPContentCommandProtocol.this.continueDownload( args );
             }
         });
-        addCommand("deploy-download", new Command() {
+        addCommand("deploy-download", new CheckpointedCommand() {
             @Override
             public Q.Promise<List<CommandItem>> execute(String name, List args) {
-                return WPContentCommandProtocol.this.deployDownload( args );
+                return WPContentCommandProtocol.this.deployDownload( args, null );
+            }
+            @Override
+            public Q.Promise<List<CommandItem>> execute(String name, List args, Checkpoint checkpoint) {
+                return WPContentCommandProtocol.this.deployDownload( args, checkpoint );
             }
         });
-        addCommand("unpack", new Command() {
+        addCommand("unpack", new CheckpointedCommand() {
             @Override
             public Q.Promise<List<CommandItem>> execute(String name, List args) {
-                return WPContentCommandProtocol.this.unpack( args );
+                return WPContentCommandProtocol.this.unpack( args, null );
+            }
+            @Override
+            public Q.Promise<List<CommandItem>> execute(String name, List args, Checkpoint checkpoint) {
+                return WPContentCommandProtocol.this.unpack( args, checkpoint );
             }
         });
         this.assets = new Assets( context );
@@ -133,6 +165,20 @@ public class WPContentCommandProtocol extends CommandProtocol {
         this.contentPath = path;
     }
 
+    public void setCommandScheduler(CommandScheduler scheduler) {
+        this.commandScheduler = scheduler;
+    }
+
+    public void setPostIndex(PostHierarchyIndex index) {
+        this.postIndex = index;
+    }
+
+    @Override
+    public String getExecutionLane(String name) {
+        // All protocol commands read or write the post DB.
+        return CommandScheduler.DBLane;
+    }
+
     public Q.Promise<List<CommandItem>> refresh(List args) {
         List<CommandItem> commands = new ArrayList<>();
 
@@ -160,8 +206,8 @@ public class WPContentCommandProtocol extends CommandProtocol {
 
             String pageFile = Paths.join( stagingPath, "page.json");
 
-            // Construct get command with url and file name to write result to, with 3 retries.
-            CommandItem getCmd = new CommandItem("get", getURL, pageFile, 3 );
+            // Construct get command with url and file name to write result to.
+            CommandItem getCmd = new CommandItem("get", getURL, pageFile );
             // Construct process command to continue downloading the feed.
             CommandItem processCmd
                 = new CommandItem( getQualifiedCommandName("continue-download"), refreshURL, pageFile );
@@ -220,8 +266,8 @@ public class WPContentCommandProtocol extends CommandProtocol {
                 since = Uri.encode( since );
                 String downloadURL = String.format("%s?page=%d&since=%s", refreshURL, page, since );
 
-                // Construct get command with url and file name to write result to, with 3 retries.
-                CommandItem getCmd = new CommandItem("get", downloadURL, pageFile.getAbsolutePath(), 2 );
+                // Construct get command with url and file name to write result to.
+                CommandItem getCmd = new CommandItem("get", downloadURL, pageFile.getAbsolutePath() );
                 // Construct process command to continue downloading the feed.
                 CommandItem continueCmd
                     = new CommandItem( getQualifiedCommandName("continue-download"), refreshURL, pageFile.getAbsolutePath() );
@@ -245,69 +291,193 @@ public class WPContentCommandProtocol extends CommandProtocol {
         return Q.resolve( commands );
     }
 
-    public Q.Promise<List<CommandItem>> deployDownload(List args) {
+    /**
+     * Deploy the downloaded feed items.
+     * Feed items are written to the post DB in chunks, each chunk in its own transaction. After each
+     * chunk, the commands generated for the chunk are queued with a checkpoint of the next feed item
+     * index, so that if the deploy is interrupted then it resumes at the first undeployed chunk.
+     * (Note that commands on the same file are only ordered within a single execution of the
+     * deploy, so commands queued before an interruption aren't ordered with those queued after).
+     * If the command queue is under pressure from queued downloads between chunks, then a
+     * checkpointed deploy pauses; the commands generated so far are returned with a delayed
+     * continuation of the deploy, starting at the next chunk (specified by a -start arg).
+     * @param checkpoint The command's checkpoint; or null if the deploy isn't checkpointed, in which
+     *                   case all generated commands are returned on completion.
+     */
+    public Q.Promise<List<CommandItem>> deployDownload(List args, Checkpoint checkpoint) {
         // All feed pages should be downloaded by this point, and all updated feed items written to
         // the feed file.
         List<Map<String,Object>> feedItems = (List<Map<String,Object>>)Files.readJSON( feedFile );
-        // List of generated commands.
+        // Resume from the last checkpoint, if any.
+        int start = checkpoint != null ? checkpoint.getCursorAsInt( 0 ) : 0;
+        if( start == 0 ) {
+            // Continue a paused deploy.
+            Map<String,Object> argsMap = parseArgs( args, m( kv("start", "0") ) );
+            start = Integer.parseInt( argsMap.get("start").toString() );
+        }
+        if( start > 0 ) {
+            Log.d( Tag, String.format("Resuming deploy of %d items at item %d", feedItems.size(), start ) );
+        }
+        // List of generated commands. Commands for different files don't depend on each other,
+        // and so are able to execute concurrently.
         List<CommandItem> commands = new ArrayList<>();
-        // Iterate over items and update post database, generate commands to download base content
-        // & media items.
-        postDB.beginTransaction();
-        try {
-            Date startTime = new Date();
-            for( Map<String, Object> item : feedItems ) {
-                String type = KeyPath.getValueAsString( "type", item );
-                if( BaseContentType.equals( type ) ) {
-                    // Download base content update.
-                    commands.add( new CommandItem( "get", item.get( "url" ), baseContentFile, 3 ) );
-                    commands.add( new CommandItem( "unzip", baseContentFile, baseContentPath ) );
-                    commands.add( new CommandItem( "rm", baseContentFile ) );
-                }
-                else {
-                    // Update a post item in database.
-                    String status = KeyPath.getValueAsString( "status", item );
-                    if( "trash".equals( status ) ) {
-                        // Item is deleted.
-                        String postID = KeyPath.getValueAsString( "id", item );
-                        postDB.performUpdate("DELETE FROM posts WHERE id=?", postID );
-                        postDB.performUpdate("DELETE FROM closures WHERE child=? OR parent=?", postID, postID );
-                        // If attachment then delete file from content path.
-                        if( "attachment".equals( type ) ) {
-                            String filename = KeyPath.getValueAsString( "filename", item );
-                            String filepath = Paths.join( contentPath, filename );
-                            commands.add( new CommandItem( "rm", filepath ) );
-                        }
-                    }
-                    else {
-                        postDB.upsert("posts", item );
-                        updateClosureTableForPost( item );
-                        // Download attachment updates.
-                        if( "attachment".equals( type ) ) {
-                            String filename = KeyPath.getValueAsString( "filename", item );
-                            // NOTE that file is downloaded directly to the content path.
-                            String filepath = Paths.join( contentPath, filename );
-                            // Delete any previously downloaded copy of the file.
-                            commands.add( new CommandItem( "rm", filepath ) );
-                            commands.add( new CommandItem( "get", item.get( "url" ), filepath, 2 ) );
-                        }
-                    }
-                    postDB.getConnection().yieldIfContendedSafely();
+        // The last command generated for each file path; used to order commands on the same file.
+        Map<String,CommandItem> fileCommands = new HashMap<>();
+        Date startTime = new Date();
+        int trashedCount = 0;
+        for( int chunkStart = start; chunkStart < feedItems.size(); chunkStart += CheckpointInterval ) {
+            if( checkpoint != null && checkpoint.isCancelled() ) {
+                // Chunks already deployed have been checkpointed, so a retry resumes at this chunk.
+                return Q.reject( String.format("Deploy cancelled at item %d", chunkStart ) );
+            }
+            int chunkEnd = Math.min( chunkStart + CheckpointInterval, feedItems.size() );
+            List<CommandItem> chunkCommands = new ArrayList<>();
+            postDB.beginTransaction();
+            try {
+                trashedCount += deployFeedItems( feedItems.subList( chunkStart, chunkEnd ), chunkCommands, fileCommands );
+            }
+            finally {
+                postDB.commitTransaction();
+            }
+            if( checkpoint != null && chunkEnd < feedItems.size() ) {
+                if( isQueueUnderPressure() ) {
+                    Log.d( Tag, String.format("Pausing deploy of %d items at item %d", feedItems.size(), chunkEnd ) );
+                    chunkCommands.add( new CommandItem( getQualifiedCommandName("deploy-download"), "-start", String.valueOf( chunkEnd ) )
+                        .withDelay( DeployPauseDelay ) );
+                    // Note that refreshInProgress remains true until the deploy completes.
+                    return Q.resolve( chunkCommands );
                 }
+                checkpoint.save( chunkEnd, chunkCommands );
+            }
+            else {
+                // Commands for the last chunk are returned as the command's follow ons.
+                commands.addAll( chunkCommands );
             }
-            Date endTime = new Date();
-            Log.d( Tag, String.format("Update of %d items took %d s", feedItems.size(), (endTime.getTime() - startTime.getTime()) / 1000 ) );
-        }
-        finally {
-            postDB.commitTransaction();
         }
+        Date endTime = new Date();
+        int itemCount = feedItems.size() - start;
+        long time = endTime.getTime() - startTime.getTime();
+        Log.d( Tag, String.format("Update of %d items (%d trashed) took %d ms; %.1f items/s", itemCount, trashedCount, time, time > 0 ? itemCount * 1000.0 / time : 0 ) );
+        updatePostIndex();
         // Tidy up.
-        commands.add( new CommandItem("rm", feedFile.getAbsolutePath() ) );
+        commands.add( new CommandItem("rm", feedFile.getAbsolutePath() ).dependsOn() );
         refreshInProgress = false;
         return Q.resolve( commands );
     }
 
-    public Q.Promise<List<CommandItem>> unpack(List args) {
+    /** Test whether the queue pressure on downloads is high enough to pause deploying. */
+    private boolean isQueueUnderPressure() {
+        return commandScheduler != null && commandScheduler.getQueuePressure("get") >= HighQueuePressure;
+    }
+
+    /**
+     * Update the post DB with a chunk of feed items, and generate commands to download base content
+     * & media items. Must be called within a post DB transaction.
+     * Trashed posts are deleted in batches before the chunk's other items are processed, so that
+     * the closure entries of a post whose parent is trashed in the same chunk aren't built from the
+     * parent's old entries.
+     * @return The number of trashed posts deleted.
+     */
+    private int deployFeedItems(List<Map<String,Object>> feedItems, List<CommandItem> commands, Map<String,CommandItem> fileCommands) {
+        // Read the post values used by the deploy from each item once.
+        List<Post> posts = new ArrayList<>( feedItems.size() );
+        for( Map<String,Object> item : feedItems ) {
+            posts.add( Post.fromFeedItem( item ) );
+        }
+        Map<Integer,String> trashedPosts = getTrashedPosts( posts );
+        // Delete trashed posts. The rm commands follow any earlier commands on the same files.
+        if( trashedPosts.size() > 0 ) {
+            commands.addAll( deleteTrashedPosts( trashedPosts, fileCommands ) );
+        }
+        for( int i = 0; i < feedItems.size(); i++ ) {
+            Post post = posts.get( i );
+            if( BaseContentType.equals( post.type ) ) {
+                // Download base content update.
+                CommandItem getCmd = new CommandItem( "get", post.url, baseContentFile );
+                CommandItem unzipCmd = new CommandItem( "unzip", baseContentFile, baseContentPath ).dependsOn( getCmd );
+                CommandItem rmCmd = new CommandItem( "rm", baseContentFile ).dependsOn( unzipCmd );
+                addFileCommand( commands, fileCommands, baseContentFile.getAbsolutePath(), getCmd );
+                commands.add( unzipCmd );
+                commands.add( rmCmd );
+                fileCommands.put( baseContentFile.getAbsolutePath(), rmCmd );
+            }
+            else {
+                if( trashedPosts.containsKey( post.id ) ) {
+                    // Post is deleted; any earlier update to it in the chunk is superseded.
+                    continue;
+                }
+                // Update a post item in database.
+                postDB.upsert("posts", feedItems.get( i ) );
+                updateClosureTableForPost( post );
+                // Download attachment updates.
+                if( "attachment".equals( post.type ) ) {
+                    // NOTE that file is downloaded directly to the content path.
+                    String filepath = Paths.join( contentPath, post.filename );
+                    // Delete any previously downloaded copy of the file.
+                    CommandItem rmCmd = new CommandItem( "rm", filepath );
+                    addFileCommand( commands, fileCommands, filepath, rmCmd );
+                    CommandItem getCmd = new CommandItem( "get", post.url, filepath ).dependsOn( rmCmd );
+                    commands.add( getCmd );
+                    fileCommands.put( filepath, getCmd );
+                }
+                postDB.getConnection().yieldIfContendedSafely();
+            }
+        }
+        return trashedPosts.size();
+    }
+
+    /**
+     * Find the posts trashed by a chunk of feed items; i.e. the posts whose last item in the chunk
+     * has trash status. (A post may be trashed earlier in the feed and since restored).
+     * @return A map of each trashed post ID onto the path of its attachment file; the path is null
+     *         if the post isn't an attachment.
+     */
+    private Map<Integer,String> getTrashedPosts(List<Post> posts) {
+        Map<Integer,String> trashedPosts = new LinkedHashMap<>();
+        for( Post post : posts ) {
+            if( BaseContentType.equals( post.type ) ) {
+                continue;
+            }
+            if( "trash".equals( post.status ) ) {
+                String filepath = null;
+                // If attachment then delete file from content path.
+                if( "attachment".equals( post.type ) ) {
+                    filepath = Paths.join( contentPath, post.filename );
+                }
+                trashedPosts.put( post.id, filepath );
+            }
+            else {
+                trashedPosts.remove( post.id );
+            }
+        }
+        return trashedPosts;
+    }
+
+    /**
+     * Add a command on a file to a command list.
+     * The command depends on the previous command on the same file, if any; otherwise it has no
+     * dependencies.
+     */
+    private void addFileCommand(List<CommandItem> commands, Map<String,CommandItem> fileCommands, String filepath, CommandItem command) {
+        CommandItem previous = fileCommands.get( filepath );
+        if( previous != null ) {
+            command.dependsOn( previous );
+        }
+        else {
+            command.dependsOn();
+        }
+        commands.add( command );
+        fileCommands.put( filepath, command );
+    }
+
+    /**
+     * Unpack packaged content.
+     * Feed items are merged into the post DB in chunks, each chunk in its own transaction, with a
+     * checkpoint of the next feed item index saved after each chunk; an interrupted unpack resumes
+     * at the first chunk not completed.
+     * @param checkpoint The command's checkpoint; or null if the unpack isn't checkpointed.
+     */
+    public Q.Promise<List<CommandItem>> unpack(List args, Checkpoint checkpoint) {
         List<CommandItem> commands = new ArrayList<>();
         // Parse arguments.
         Map<String,String> argsMap = parseArgs( args, null );
@@ -325,17 +495,49 @@ public class WPContentCommandProtocol extends CommandProtocol {
                 InputStream feedFileStream = assets.openInputStream( feedFilePath );
                 List<Map<String, Object>> feedItems = (List<Map<String, Object>>)Files.readJSON( feedFileStream, feedFilePath );
                 if( feedItems != null ) {
+                    // Resume from the last checkpoint, if any.
+                    int start = checkpoint != null ? checkpoint.getCursorAsInt( 0 ) : 0;
                     // Iterate over items and update post database.
-                    postDB.beginTransaction();
-                    try {
-                        postDB.merge("posts", feedItems );
-                        rebuildClosureTable( feedItems );
-                        postDB.commitTransaction();
-                    }
-                    catch(Exception e) {
-                        postDB.rollbackTransaction();
-                        throw e;
+                    for( int chunkStart = start; chunkStart < feedItems.size(); chunkStart += CheckpointInterval ) {
+                        if( checkpoint != null && checkpoint.isCancelled() ) {
+                            return Q.reject( String.format("Unpack cancelled at item %d", chunkStart ) );
+                        }
+                        int chunkEnd = Math.min( chunkStart + CheckpointInterval, feedItems.size() );
+                        List<Map<String,Object>> chunk = feedItems.subList( chunkStart, chunkEnd );
+                        List<Post> posts = new ArrayList<>( chunk.size() );
+                        for( Map<String,Object> item : chunk ) {
+                            posts.add( Post.fromFeedItem( item ) );
+                        }
+                        postDB.beginTransaction();
+                        try {
+                            if( chunkStart == 0 ) {
+                                // The closure table is rebuilt from the packaged posts.
+                                postDB.deleteWhere("closures", "1 = 1");
+                            }
+                            else if( chunkStart == start ) {
+                                // The chunk may have been unpacked after the last checkpoint was saved,
+                                // so remove any closure entries already inserted for its posts.
+                                List<String> postIDs = new ArrayList<>();
+                                for( Post post : posts ) {
+                                    postIDs.add( String.valueOf( post.id ) );
+                                }
+                                postDB.deleteIn("closures", "child", postIDs );
+                            }
+                            postDB.merge("posts", chunk );
+                            for( Post post : posts ) {
+                                insertClosureEntriesForPost( post );
+                            }
+                            postDB.commitTransaction();
+                        }
+                        catch(Exception e) {
+                            postDB.rollbackTransaction();
+                            throw e;
+                        }
+                        if( checkpoint != null && chunkEnd < feedItems.size() ) {
+                            checkpoint.save( chunkEnd, CommandScheduler.NoFollowOns );
+                        }
                     }
+                    updatePostIndex();
                 }
                 Date endTime = new Date();
                 Log.d( Tag, String.format("Content unpack took %d s", (endTime.getTime() - startTime.getTime()) / 1000 ) );
@@ -357,8 +559,76 @@ public class WPContentCommandProtocol extends CommandProtocol {
     }
 
 
-    private void updateClosureTableForPost(Map<String,Object> post) {
-        String postID = KeyPath.getValueAsString("id", post );
+    /**
+     * Delete a set of trashed posts from the post DB.
+     * Posts and their closure table entries are deleted in chunked batches, rather than by
+     * separate statements per post.
+     * @param trashedPosts  A map of trashed post IDs onto the path of each post's attachment file;
+     *                      the path is null if the post doesn't have an attachment.
+     * @param fileCommands The last command generated for each file path. Updated with the commands
+     *                     deleting attachment files, as a post trashed in one chunk of a deploy may
+     *                     be restored in a later chunk, in which case commands on its attachment
+     *                     file must follow the delete.
+     * @return A list of commands for deleting the trashed posts' attachment files. Each command
+     *         depends on the previous commands on the files it deletes, if any.
+     */
+    private List<CommandItem> deleteTrashedPosts(Map<Integer,String> trashedPosts, Map<String,CommandItem> fileCommands) {
+        long startTime = System.currentTimeMillis();
+        List<String> postIDs = new ArrayList<>( trashedPosts.size() );
+        for( Integer postID : trashedPosts.keySet() ) {
+            postIDs.add( postID.toString() );
+        }
+        // NOTE delete() is used for posts so that the deletions are recorded in the change log.
+        postDB.delete("posts", postIDs );
+        postDB.deleteIn("closures", "child", postIDs );
+        postDB.deleteIn("closures", "parent", postIDs );
+        // Generate commands to delete attachment files; each rm command deletes a batch of files.
+        List<CommandItem> commands = new ArrayList<>();
+        List<Object> filepaths = new ArrayList<>();
+        for( String filepath : trashedPosts.values() ) {
+            if( filepath != null ) {
+                filepaths.add( filepath );
+                if( filepaths.size() == RmBatchSize ) {
+                    addRmCommand( commands, fileCommands, filepaths );
+                }
+            }
+        }
+        if( filepaths.size() > 0 ) {
+            addRmCommand( commands, fileCommands, filepaths );
+        }
+        long time = System.currentTimeMillis() - startTime;
+        Log.d( Tag, String.format("Deleted %d trashed posts in %d ms", postIDs.size(), time ) );
+        return commands;
+    }
+
+    /**
+     * Add a command to delete a batch of files to a command list, and clear the batch.
+     * The command depends on the previous command on each of the files, if any; otherwise it has
+     * no dependencies.
+     */
+    private void addRmCommand(List<CommandItem> commands, Map<String,CommandItem> fileCommands, List<Object> filepaths) {
+        CommandItem rmCommand = new CommandItem("rm", filepaths.toArray() );
+        Set<CommandItem> previous = new LinkedHashSet<>();
+        for( Object filepath : filepaths ) {
+            CommandItem fileCommand = fileCommands.put( filepath.toString(), rmCommand );
+            if( fileCommand != null ) {
+                previous.add( fileCommand );
+            }
+        }
+        rmCommand.dependsOn( previous.toArray( new CommandItem[previous.size()] ) );
+        commands.add( rmCommand );
+        filepaths.clear();
+    }
+
+    /** Update the post hierarchy index with post changes made since the last update. */
+    private void updatePostIndex() {
+        if( postIndex != null ) {
+            postIndex.update();
+        }
+    }
+
+    private void updateClosureTableForPost(Post post) {
+        String postID = String.valueOf( post.id );
         postDB.performUpdate("DELETE FROM closures WHERE ROWID IN ("+
             "SELECT link.ROWID FROM closures p, closures link, closures c, closures to_delete "+
             "WHERE p.parent = link.parent      AND c.child = link.child "+
@@ -373,9 +643,9 @@ public class WPContentCommandProtocol extends CommandProtocol {
         insertClosureEntriesForPost( post );
     }
 
-    private void insertClosureEntriesForPost(Map<String,Object> post) {
-        String parent = KeyPath.getValueAsString("parent", post );
-        String postID = KeyPath.getValueAsString("id", post );
+    private void insertClosureEntriesForPost(Post post) {
+        String parent = post.parent != null ? post.parent.toString() : null;
+        String postID = String.valueOf( post.id );
 
         // NOTE that all of following updates assume that the closures table contains no
         // mappings for the post before the updates performed, otherwise duplicate mappings
@@ -390,7 +660,7 @@ public class WPContentCommandProtocol extends CommandProtocol {
 
 /*  NOTE This moved to the updateClosureTableForPost function because otherwise duplicate
     closure entries are created; this presumably happens because when this function is
-    called from the rebuildClosureTable() function, the necessary child post entries are
+    called when rebuilding the closure table in unpack(), the necessary child post entries are
     eventually added (i.e. re-added) later in the loop.
 
     TODO This whole insert/update procedure for the closure table needs to be reviewed,
@@ -414,11 +684,4 @@ public class WPContentCommandProtocol extends CommandProtocol {
         postDB.getConnection().yieldIfContendedSafely();
     }
 
-    private void rebuildClosureTable(List<Map<String,Object>> posts) {
-        postDB.deleteWhere("closures", "1 = 1");
-        for( Map<String,Object> post : posts ) {
-            insertClosureEntriesForPost( post );
-        }
-    }
-
 }
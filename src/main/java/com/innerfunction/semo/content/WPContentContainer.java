@@ -14,7 +14,6 @@
 package com.innerfunction.semo.content;
 
 import android.content.Context;
-import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -28,8 +27,10 @@ import com.innerfunction.pttn.MessageReceiver;
 import com.innerfunction.pttn.app.AppContainer;
 import com.innerfunction.pttn.app.NamedScheme;
 import com.innerfunction.semo.commands.CommandScheduler;
+import com.innerfunction.semo.commands.RetryPolicy;
 import com.innerfunction.semo.db.DB;
 import com.innerfunction.semo.db.DBFilter;
+import com.innerfunction.semo.db.RowMapper;
 import com.innerfunction.uri.StandardURIHandler;
 import com.innerfunction.uri.URIHandler;
 import com.innerfunction.util.Files;
@@ -46,6 +47,7 @@ import static com.innerfunction.util.DataLiterals.*;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -59,6 +61,9 @@ public class WPContentContainer extends Container implements IOCContainerAware,
 
     static final String Tag = WPContentContainer.class.getSimpleName();
 
+    /** The maximum number of posts read by a single query when reading posts by ID. */
+    static final int ReadPostsChunkSize = 500;
+
     /** The content container's container. */
     private Container iocContainer;
     /** Container configuration template. */
@@ -92,10 +97,14 @@ public class WPContentContainer extends Container implements IOCContainerAware,
     private DB postDB;
     /** Whether to reset the post DB on start. (Useful for debug). */
     private boolean resetPostDB;
+    /** The storage profile mode used by the posts DB; see StorageProfile. */
+    private String postDBStorageMode;
     /** Interval in minutes between checks for content updates. */
     private int updateCheckInterval;
     /** The content protocol instance; manages feed downloads. */
     private WPContentCommandProtocol contentProtocol;
+    /** An in-memory index of the post hierarchy. */
+    private PostHierarchyIndex postIndex;
     /** The wp: URI scheme. */
     private WPSchemeHandler uriScheme;
     /** Post list data formats. */
@@ -132,6 +141,7 @@ public class WPContentContainer extends Container implements IOCContainerAware,
         super( context, StandardURIHandler.getInstance( context ) );
 
         this.postDBName = "com.innerfunction.semo.content";
+        this.postDBStorageMode = "default";
         this.feedURL = "";
         this.packagedContentPath = "";
         this.uriSchemeName = "wp";
@@ -147,10 +157,13 @@ public class WPContentContainer extends Container implements IOCContainerAware,
             kv("postDB", m(
                 kv("name",           "$postDBName"),
                 kv("version",        1),
+                kv("storageProfile", m( kv("mode", "$postDBStorageMode") )),
                 kv("resetDatabase",  true),
                 // Table of wordpress posts.
                 kv("tables", m(
                     kv( "posts", m(
+                        // Record post changes in the DB's change log; see DB.getChangeLog().
+                        kv( "trackChanges", true ),
                         kv( "columns", m(
                             kv( "id", m( kv( "type", "INTEGER" ), kv( "tag", "id" ) ) ), // Post ID
                             kv( "title", m( kv( "type", "TEXT" ) ) ),
@@ -250,10 +263,13 @@ public class WPContentContainer extends Container implements IOCContainerAware,
         commandScheduler.executeQueue();
     }
 
-    /** Download content from the specified URL and store in the content location using the specified filename. */
+    /**
+     * Download content from the specified URL and store in the content location using the specified filename.
+     * The download is queued with user priority, so that it runs ahead of any background content refresh.
+     */
     public void getContentAndWriteToFile(String url, String filename) {
         String filepath = Paths.join( contentPath, filename );
-        commandScheduler.appendCommand("get %s %s", url, filepath );
+        commandScheduler.appendCommand("get", Arrays.asList( url, filepath ), CommandScheduler.UserPriority );
         commandScheduler.executeQueue();
     }
 
@@ -273,46 +289,151 @@ public class WPContentContainer extends Container implements IOCContainerAware,
         if( params == null ) {
             params = new HashMap<>();
         }
-        // Check the post type.
-        Map<String,Object> postData = postDB.read("posts", postID );
-        String postType = (String)postData.get("type");
+        // Check the post type. Read from the post index if possible, otherwise from the DB.
+        String postType = getPostIndexType( postID );
+        if( postType == null ) {
+            Post post = postDB.read("posts", postID, Post.class );
+            postType = post.type;
+        }
         // Check for child type relations for this post type.
         Object childTypes = postTypeRelations.get( postType );
-        if( childTypes != null ) {
-            params.putAll( m( kv("type", childTypes ) ) );
+        int[] childIDs = getIndexedChildren( postID );
+        if( childIDs != null ) {
+            // Resolve the child posts from the post index, and read them by ID.
+            List<Integer> ids = new ArrayList<>();
+            for( int childID : childIDs ) {
+                if( childTypes == null || isChildType( childTypes, postIndex.getType( childID ) ) ) {
+                    ids.add( childID );
+                }
+            }
+            if( ids.size() == 0 ) {
+                return new ArrayList<>();
+            }
+            params.put("id", ids );
+        }
+        else {
+            if( childTypes != null ) {
+                params.putAll( m( kv("type", childTypes ) ) );
+            }
+            params.put("parent", postID );
         }
-        params.put("parent", postID );
         // Create the query.
         DBFilter filter = new DBFilter();
         filter.setTable("posts");
         filter.setFilters( params );
         filter.setOrderBy("menu_order");
         // Query the database.
-        List<Map<String,Object>> result = filter.applyTo( postDB,  null );
-        // Render content for each child post.
-        if( renderContent ) {
-            List<Map<String,Object>> posts = new ArrayList<>();
-            for( Map<String,Object> row : result ) {
-                posts.add( renderPostContent( row ) );
+        List<Post> posts = filter.applyTo( postDB, null, postDB.getRowMapper("posts", Post.class ) );
+        return toPostMaps( posts, renderContent );
+    }
+
+    /** Read a post's child IDs from the post index. Returns null if the post isn't indexed. */
+    private int[] getIndexedChildren(String postID) {
+        if( postIndex != null ) {
+            try {
+                int id = Integer.parseInt( postID );
+                if( postIndex.contains( id ) ) {
+                    return postIndex.getChildren( id );
+                }
+            }
+            catch(NumberFormatException e) {
+                // Not a valid post ID.
             }
-            result = posts;
         }
-        return result;
+        return null;
+    }
+
+    /** Test whether a post type is one of the child types listed in a post type relation. */
+    private boolean isChildType(Object childTypes, String type) {
+        if( childTypes instanceof List ) {
+            return ((List)childTypes).contains( type );
+        }
+        return childTypes.equals( type );
+    }
+
+    /** Read a post's type from the post index. Returns null if the post isn't indexed. */
+    private String getPostIndexType(String postID) {
+        if( postIndex != null ) {
+            try {
+                return postIndex.getType( Integer.parseInt( postID ) );
+            }
+            catch(NumberFormatException e) {
+                // Not a valid post ID.
+            }
+        }
+        return null;
     }
 
     /** Get all descendents of a post. Returns the posts children, grandchildren etc. */
     public Object getPostDescendants(String postID, Map<String,Object> params) {
-        List<Map<String, Object>> result = postDB.performQuery( "SELECT posts.*"
-            + " FROM posts, closures"
-            + " WHERE closures.parent=? AND closures.child=posts.id AND depth > 0"
-            + " ORDER BY depth, parent, menu_order", postID );
+        List<Post> posts;
+        int[] descendantIDs = getIndexedDescendants( postID );
+        if( descendantIDs != null ) {
+            posts = readPosts( descendantIDs );
+        }
+        else {
+            posts = postDB.performQuery( postDB.getRowMapper("posts", Post.class ), "SELECT posts.*"
+                + " FROM posts, closures"
+                + " WHERE closures.parent=? AND closures.child=posts.id AND depth > 0"
+                + " ORDER BY depth, parent, menu_order", postID );
+        }
         boolean renderContent = "true".equals( params.get( "content" ) );
-        if( renderContent ) {
-            List<Map<String, Object>> posts = new ArrayList<>();
-            for( Map<String, Object> row : result ) {
-                posts.add( renderPostContent( row ) );
+        return toPostMaps( posts, renderContent );
+    }
+
+    /**
+     * Convert a list of posts to the maps returned by the container's post queries.
+     * Optionally renders the post content.
+     */
+    private List<Map<String,Object>> toPostMaps(List<Post> posts, boolean renderContent) {
+        List<Map<String,Object>> result = new ArrayList<>( posts.size() );
+        for( Post post : posts ) {
+            Map<String,Object> row = post.toMap();
+            result.add( renderContent ? renderPostContent( row ) : row );
+        }
+        return result;
+    }
+
+    /**
+     * Read a post's descendant IDs from the post index, ordered by depth, parent and menu order.
+     * Returns null if the post isn't indexed.
+     */
+    private int[] getIndexedDescendants(String postID) {
+        if( postIndex != null ) {
+            try {
+                int id = Integer.parseInt( postID );
+                if( postIndex.contains( id ) ) {
+                    return postIndex.getDescendants( id );
+                }
+            }
+            catch(NumberFormatException e) {
+                // Not a valid post ID.
+            }
+        }
+        return null;
+    }
+
+    /** Read posts by ID, using one query per ReadPostsChunkSize posts. Returns the posts in ID list order. */
+    private List<Post> readPosts(int[] ids) {
+        RowMapper<Post> mapper = postDB.getRowMapper("posts", Post.class );
+        Map<Integer,Post> postsByID = new HashMap<>( ids.length * 2 );
+        for( int start = 0; start < ids.length; start += ReadPostsChunkSize ) {
+            int end = Math.min( start + ReadPostsChunkSize, ids.length );
+            List<String> chunk = new ArrayList<>( end - start );
+            for( int i = start; i < end; i++ ) {
+                chunk.add( String.valueOf( ids[i] ) );
+            }
+            String sql = String.format("SELECT * FROM posts WHERE id IN (%s)", TextUtils.join(",", chunk ) );
+            for( Post post : postDB.performQuery( mapper, sql ) ) {
+                postsByID.put( post.id, post );
+            }
+        }
+        List<Post> result = new ArrayList<>( postsByID.size() );
+        for( int id : ids ) {
+            Post post = postsByID.get( id );
+            if( post != null ) {
+                result.add( post );
             }
-            result = posts;
         }
         return result;
     }
@@ -539,6 +660,7 @@ public class WPContentContainer extends Container implements IOCContainerAware,
         Map<String,Object> parameters = m(
             kv("postDBName",             postDBName),
             kv("resetPostDB",            resetPostDB),
+            kv("postDBStorageMode",      postDBStorageMode),
             kv("feedURL",                feedURL),
             kv("stagingPath",            stagingPath),
             kv("packagedContentPath",    packagedContentPath),
@@ -572,14 +694,26 @@ public class WPContentContainer extends Container implements IOCContainerAware,
             commandScheduler.setQueueDBName( String.format( "%s.scheduler", postDBName ) );
             if( contentProtocol != null ) {
                 commandScheduler.setCommand( "content", contentProtocol );
+                contentProtocol.setCommandScheduler( commandScheduler );
             }
 
             GetURLCommand getCmd = new GetURLCommand( httpClient );
-            getCmd.setMaxRequestsPerMinute( 30.0f );
+            // Failed downloads are retried by the scheduler: up to 3 attempts, with backoff from 2s to 1 min.
+            getCmd.setRetryPolicy( new RetryPolicy( 3, 2000, 2, 60000 ) );
             commandScheduler.setCommand( "get", getCmd );
+            commandScheduler.setRateLimitForCommand( "get", 30.0f );
+            // Downloads generated by a content deploy are accepted over the limit (follow on commands
+            // can't block), but the limit's queue pressure pauses the deploy.
+            commandScheduler.setQueueLimitForCommand( "get", 1000, CommandScheduler.BlockPolicy );
 
             DownloadZipCommand dlzipCmd = new DownloadZipCommand( httpClient, commandScheduler );
             commandScheduler.setCommand( "dlzip", dlzipCmd );
+
+            // Only downloads time out; a stalled connection then frees its network lane slot.
+            Map<String,Number> timeouts = new HashMap<>();
+            timeouts.put( "get", 120000 );
+            timeouts.put( "dlzip", 600000 );
+            commandScheduler.setCommandTimeouts( timeouts );
         }
         else Log.w( Tag, "commandScheduler not found");
     }
@@ -606,27 +740,23 @@ public class WPContentContainer extends Container implements IOCContainerAware,
 
     // Service
 
-    // A handler for periodic execution of the content refresh.
-    private Handler handler = new Handler();
-    // A runner for executing the content refresh task
-    private Runnable refreshTask = new Runnable() {
-        @Override
-        public void run() {
-            refreshContent();
-            // Interval is defined in minutes, so convert to ms by multiplying (60 secs) x (1000 ms)
-            handler.postDelayed( this, updateCheckInterval * 60000 );
-        }
-    };
-
     @Override
     public void startService() {
         super.startService();
         unpackPackagedContent();
-        // Schedule content updates.
+        // Build the post hierarchy index, and have the content protocol update it after changes.
+        postIndex = new PostHierarchyIndex( postDB );
+        postIndex.build();
+        if( contentProtocol != null ) {
+            contentProtocol.setPostIndex( postIndex );
+        }
+        // Schedule content updates as a recurring command. The command is persisted on the queue, so
+        // it is only appended if not already queued by a previous run of the app.
         if( updateCheckInterval > 0 ) {
-            refreshTask.run();
+            // Interval is defined in minutes, so convert to ms by multiplying (60 secs) x (1000 ms)
+            commandScheduler.appendRecurringCommand("content.refresh", new ArrayList(), updateCheckInterval * 60000L );
         }
-        else commandScheduler.executeQueue();   // Start command queue execution.
+        commandScheduler.executeQueue();   // Start command queue execution.
     }
 
     // Property getter/setters.
@@ -681,16 +811,26 @@ public class WPContentContainer extends Container implements IOCContainerAware,
 
     public void setPostDB(DB db) {
         this.postDB = db;
+        // Register the mapper for reading posts table rows as typed records.
+        db.registerRowMapper("posts", Post.class, Post.Mapper );
     }
 
     public DB getPostDB() {
         return postDB;
     }
 
+    public PostHierarchyIndex getPostIndex() {
+        return postIndex;
+    }
+
     public void setResetPostDB(boolean reset) {
         this.resetPostDB = reset;
     }
 
+    public void setPostDBStorageMode(String mode) {
+        this.postDBStorageMode = mode;
+    }
+
     public void setUpdateCheckInterval(int interval) {
         this.updateCheckInterval = interval;
     }
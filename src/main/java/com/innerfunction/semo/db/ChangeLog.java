@@ -0,0 +1,231 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A persistent, append-only log of changes made to a database's tables.
+ * Changes to any table configured with trackChanges = true are recorded by the DB's insert,
+ * update, upsert, merge and delete methods. Note that changes made through performUpdate() or
+ * deleteWhere() aren't recorded, as the IDs of the affected records aren't known.
+ *
+ * Consumers read changes using a named cursor, and acknowledge the changes they have processed.
+ * Each consumer's position is persisted, so consumers can continue processing from where they
+ * left off after a process restart. Changes acknowledged by all registered consumers are removed
+ * from the log when it is compacted.
+ */
+public class ChangeLog {
+
+    static final String Tag = ChangeLog.class.getSimpleName();
+
+    /** The name of the table holding change records. */
+    static final String ChangesTable = "_changes";
+    /** The name of the table holding consumer positions. */
+    static final String ConsumersTable = "_change_consumers";
+
+    /** A record of a change to a table row. */
+    public static class Change {
+        /** The change's sequence number. */
+        public final long seq;
+        /** The name of the modified table. */
+        public final String table;
+        /** The ID of the modified row. */
+        public final String id;
+        /** The operation; one of Insert, Update or Delete. */
+        public final String op;
+
+        Change(long seq, String table, String id, String op) {
+            this.seq = seq;
+            this.table = table;
+            this.id = id;
+            this.op = op;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %s %s %s", seq, op, table, id );
+        }
+    }
+
+    /** Operation names. */
+    public static final String Insert = "I";
+    public static final String Update = "U";
+    public static final String Delete = "D";
+
+    /**
+     * A cursor for reading the changes not yet acknowledged by a consumer.
+     */
+    public class ChangeCursor {
+
+        /** The consumer name. */
+        private String consumer;
+        /** The sequence number of the last change returned by the cursor. */
+        private long position;
+
+        ChangeCursor(String consumer, long position) {
+            this.consumer = consumer;
+            this.position = position;
+        }
+
+        /**
+         * Return the next batch of changes.
+         * @param limit The maximum number of changes to return.
+         * @return A list of changes, in sequence order; empty if no more changes are available.
+         */
+        public List<Change> next(int limit) {
+            List<Change> changes = read( position, limit );
+            if( changes.size() > 0 ) {
+                position = changes.get( changes.size() - 1 ).seq;
+            }
+            return changes;
+        }
+
+        /** Acknowledge all changes read so far by the cursor. */
+        public void ack() {
+            acknowledge( consumer, position );
+        }
+    }
+
+    /** The database connection. */
+    private SQLiteDatabase db;
+    /** A compiled statement for appending change records. */
+    private SQLiteStatement appendStatement;
+
+    /**
+     * Open the change log on a database connection.
+     * Creates the change log tables if they don't already exist.
+     */
+    void open(SQLiteDatabase db) {
+        this.db = db;
+        db.execSQL( String.format("CREATE TABLE IF NOT EXISTS %s (seq INTEGER PRIMARY KEY AUTOINCREMENT, tbl TEXT, id TEXT, op TEXT)", ChangesTable ) );
+        db.execSQL( String.format("CREATE TABLE IF NOT EXISTS %s (name TEXT PRIMARY KEY, acked INTEGER)", ConsumersTable ) );
+        appendStatement = db.compileStatement( String.format("INSERT INTO %s (tbl, id, op) VALUES (?,?,?)", ChangesTable ) );
+    }
+
+    /** Close the change log. */
+    void close() {
+        if( appendStatement != null ) {
+            appendStatement.close();
+            appendStatement = null;
+        }
+        db = null;
+    }
+
+    /** Append a change record to the log. */
+    void append(String table, String id, String op) {
+        if( appendStatement != null && id != null ) {
+            appendStatement.bindString( 1, table );
+            appendStatement.bindString( 2, id );
+            appendStatement.bindString( 3, op );
+            appendStatement.executeInsert();
+            appendStatement.clearBindings();
+        }
+    }
+
+    /**
+     * Register a consumer and return a cursor positioned after the last change it acknowledged.
+     * New consumers start at the end of the log, i.e. only see changes made after registration.
+     */
+    public ChangeCursor openCursor(String consumer) {
+        long position = -1;
+        Cursor cursor = db.rawQuery( String.format("SELECT acked FROM %s WHERE name=?", ConsumersTable ), new String[]{ consumer } );
+        if( cursor.moveToFirst() ) {
+            position = cursor.getLong( 0 );
+        }
+        cursor.close();
+        if( position < 0 ) {
+            position = getLastSeq();
+            acknowledge( consumer, position );
+        }
+        return new ChangeCursor( consumer, position );
+    }
+
+    /**
+     * Register a consumer and return a cursor positioned after the specified change.
+     * Used by consumers which have independently processed all changes up to that point, e.g.
+     * by rebuilding their state from a full table scan.
+     */
+    public ChangeCursor openCursor(String consumer, long position) {
+        acknowledge( consumer, position );
+        return new ChangeCursor( consumer, position );
+    }
+
+    /** Unregister a consumer, allowing changes it hasn't acknowledged to be compacted. */
+    public void removeConsumer(String consumer) {
+        db.delete( ConsumersTable, "name=?", new String[]{ consumer } );
+    }
+
+    /** Return the sequence number of the most recent change, or 0 if the log is empty. */
+    public long getLastSeq() {
+        long seq = 0;
+        Cursor cursor = db.rawQuery( String.format("SELECT max(seq) FROM %s", ChangesTable ), null );
+        if( cursor.moveToFirst() && !cursor.isNull( 0 ) ) {
+            seq = cursor.getLong( 0 );
+        }
+        cursor.close();
+        return seq;
+    }
+
+    /** Read up to limit changes after the specified sequence number. */
+    List<Change> read(long after, int limit) {
+        List<Change> changes = new ArrayList<>();
+        String sql = String.format("SELECT seq, tbl, id, op FROM %s WHERE seq > ? ORDER BY seq LIMIT %d", ChangesTable, limit );
+        Cursor cursor = db.rawQuery( sql, new String[]{ String.valueOf( after ) } );
+        while( cursor.moveToNext() ) {
+            changes.add( new Change( cursor.getLong( 0 ), cursor.getString( 1 ), cursor.getString( 2 ), cursor.getString( 3 ) ) );
+        }
+        cursor.close();
+        return changes;
+    }
+
+    /** Record a consumer's acknowledged position and compact the log. */
+    void acknowledge(String consumer, long seq) {
+        SQLiteStatement statement = db.compileStatement( String.format("INSERT OR REPLACE INTO %s (name, acked) VALUES (?,?)", ConsumersTable ) );
+        try {
+            statement.bindString( 1, consumer );
+            statement.bindLong( 2, seq );
+            statement.executeInsert();
+        }
+        finally {
+            statement.close();
+        }
+        compact();
+    }
+
+    /**
+     * Compact the log by deleting all changes acknowledged by every registered consumer.
+     * Does nothing if no consumers are registered.
+     */
+    public void compact() {
+        Cursor cursor = db.rawQuery( String.format("SELECT count(*), min(acked) FROM %s", ConsumersTable ), null );
+        long acked = -1;
+        if( cursor.moveToFirst() && cursor.getInt( 0 ) > 0 ) {
+            acked = cursor.getLong( 1 );
+        }
+        cursor.close();
+        if( acked > 0 ) {
+            int count = db.delete( ChangesTable, "seq <= ?", new String[]{ String.valueOf( acked ) } );
+            if( count > 0 ) {
+                Log.d( Tag, String.format("Compacted %d change records", count ) );
+            }
+        }
+    }
+}
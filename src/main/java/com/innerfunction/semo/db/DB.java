@@ -27,6 +27,8 @@ import com.innerfunction.util.Files;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -57,6 +59,12 @@ public class DB implements Service, IOCContextAware {
      */
     public static final String NullParameterValue = DB.class.getCanonicalName()+"#NullParameterValue";
 
+    /**
+     * The maximum number of parameters which can be bound to a single SQL statement.
+     * This is SQLite's default SQLITE_MAX_VARIABLE_NUMBER for the SQLite versions shipped with Android.
+     */
+    public static final int MaxBoundParameters = 999;
+
     /** The android context - needed for the database helper. */
     private Context androidContext;
     /** A helper for managing database initializations and upgrades. */
@@ -67,6 +75,10 @@ public class DB implements Service, IOCContextAware {
     private Map<String,Map<String,String>> taggedTableColumns = new HashMap<>();
     /** A map of column names, by table. */
     private Map<String,Set<String>> tableColumnNames = new HashMap<>();
+    /** Row mappers generated from the table schemas, by table. */
+    private Map<String,RowMapper<Map<String,Object>>> tableRowMappers = new HashMap<>();
+    /** Row mappers registered for reading table rows as typed records, by table and record type. */
+    private Map<String,Map<Class<?>,RowMapper<?>>> recordRowMappers = new HashMap<>();
     /** The database name. */
     private String name;
     /** The current database schema version number. */
@@ -75,6 +87,33 @@ public class DB implements Service, IOCContextAware {
     private boolean resetDatabase;
     /** Database table schemas + initial data. */
     private Map<String,Table> tables;
+    /** Storage settings applied to the database connection when opened. */
+    private StorageProfile storageProfile;
+    /** The names of tables whose changes are recorded in the change log. */
+    private Set<String> trackedTables = new HashSet<>();
+    /** A log of changes to tracked tables. Null if no tables are tracked. */
+    private ChangeLog changeLog;
+    /** A listener for schema migration progress. */
+    private MigrationListener migrationListener;
+    /** A thread completing table rebuilds started by a schema upgrade; null if none are running. */
+    private Thread rebuildThread;
+
+    /** A listener for progress of schema migrations performed when the database is upgraded. */
+    public interface MigrationListener {
+        /**
+         * Report progress in rebuilding a table.
+         * @param table     The name of the table being rebuilt.
+         * @param copied    The number of rows copied to the new table so far.
+         * @param total     The total number of rows to copy.
+         */
+        void onTableRebuildProgress(String table, long copied, long total);
+        /**
+         * Report that a table rebuild has completed, and the table has been replaced with the
+         * rebuilt table.
+         * @param table     The name of the rebuilt table.
+         */
+        void onTableRebuildComplete(String table);
+    }
 
     public DB() {
         this.name = "semo";
@@ -120,6 +159,40 @@ public class DB implements Service, IOCContextAware {
         return version;
     }
 
+    public void setStorageProfile(StorageProfile profile) {
+        this.storageProfile = profile;
+    }
+
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    public void setMigrationListener(MigrationListener listener) {
+        this.migrationListener = listener;
+    }
+
+    public MigrationListener getMigrationListener() {
+        return migrationListener;
+    }
+
+    /** Return the location of the database file. */
+    public File getDatabaseFile() {
+        return androidContext.getDatabasePath( name );
+    }
+
+    /**
+     * Return the time taken to create the database when it was opened, in ms.
+     * Returns -1 if the database already existed.
+     */
+    public long getCreateTime() {
+        return helper != null ? helper.getCreateTime() : -1;
+    }
+
+    /** Return the android context. Needed for applying the storage profile. */
+    Context getAndroidContext() {
+        return androidContext;
+    }
+
     public void setTableSchema(Table... tableList) {
         Map<String, Table> tables = new HashMap<>();
         for( Table table : tableList ) {
@@ -142,6 +215,10 @@ public class DB implements Service, IOCContextAware {
             }
             taggedTableColumns.put( table.name, columnTags );
             tableColumnNames.put( table.name, columnNames );
+            tableRowMappers.put( table.name, new TableRowMapper( table ) );
+            if( table.trackChanges ) {
+                trackedTables.add( table.name );
+            }
         }
     }
 
@@ -149,6 +226,63 @@ public class DB implements Service, IOCContextAware {
         return tables;
     }
 
+    /**
+     * Return a row mapper for reading a table's rows as maps.
+     * The mapper is generated from the table's schema and reads the table's declared columns by
+     * index; if the table isn't declared then a mapper which reads all result columns by name is
+     * returned.
+     */
+    public RowMapper<Map<String,Object>> getRowMapper(String table) {
+        RowMapper<Map<String,Object>> mapper = tableRowMappers.get( table );
+        return mapper != null ? mapper : MapRowMapper;
+    }
+
+    /**
+     * Register a row mapper for reading a table's rows as typed records.
+     * @param table     The name of the table.
+     * @param type      The record type.
+     * @param mapper    A mapper for converting the table's rows to records.
+     */
+    public <T> void registerRowMapper(String table, Class<T> type, RowMapper<T> mapper) {
+        Map<Class<?>,RowMapper<?>> mappers = recordRowMappers.get( table );
+        if( mappers == null ) {
+            mappers = new HashMap<>();
+            recordRowMappers.put( table, mappers );
+        }
+        mappers.put( type, mapper );
+    }
+
+    /**
+     * Return the row mapper registered for reading a table's rows as typed records.
+     * @return The registered mapper, or null if no mapper is registered for the table and type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> RowMapper<T> getRowMapper(String table, Class<T> type) {
+        Map<Class<?>,RowMapper<?>> mappers = recordRowMappers.get( table );
+        return mappers != null ? (RowMapper<T>)mappers.get( type ) : null;
+    }
+
+    /**
+     * Return the database's change log.
+     * Returns null if no tables are configured to track changes.
+     */
+    public ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /** Record a change to a table row, if the table is tracked. */
+    private void logChange(String table, Object id, String op) {
+        if( changeLog != null && id != null && trackedTables.contains( table ) ) {
+            changeLog.append( table, id.toString(), op );
+        }
+    }
+
+    /** Return the ID value from a map of row values. */
+    private Object getIDValue(String table, Map<String,Object> values) {
+        String idColumn = getColumnForTag( table, "id" );
+        return idColumn != null ? values.get( idColumn ) : null;
+    }
+
     /**
      * Open a writeable database connection and begin a transaction.
      */
@@ -237,13 +371,53 @@ public class DB implements Service, IOCContextAware {
     }
 
     private Map<String,Object> read(SQLiteDatabase db, String table, String idColumn, String id) {
-        Map<String,Object> result = null;
+        return read( db, table, idColumn, id, getRowMapper( table ) );
+    }
+
+    /**
+     * Read an object from the database using a row mapper.
+     * @param table     The name of the table containing the data.
+     * @param id        The ID of the object to read.
+     * @param mapper    A mapper for converting the table row to an object.
+     * @return The mapped object, or null if not found.
+     */
+    public <T> T read(String table, String id, RowMapper<T> mapper) {
+        T result = null;
+        String idColumn = getColumnForTag( table, "id" );
+        if( idColumn != null ) {
+            result = read( db, table, idColumn, id, mapper );
+        }
+        else {
+            Log.w( Tag, String.format("No ID column found for table %s", table ));
+        }
+        return result;
+    }
+
+    /**
+     * Read a typed record from the database, using the row mapper registered for the table and
+     * record type.
+     * @param table     The name of the table containing the data.
+     * @param id        The ID of the object to read.
+     * @param type      The record type; see registerRowMapper(..).
+     * @return The record, or null if not found or if no mapper is registered.
+     */
+    public <T> T read(String table, String id, Class<T> type) {
+        RowMapper<T> mapper = getRowMapper( table, type );
+        if( mapper == null ) {
+            Log.w( Tag, String.format("No %s row mapper registered for table %s", type.getSimpleName(), table ));
+            return null;
+        }
+        return read( table, id, mapper );
+    }
+
+    private <T> T read(SQLiteDatabase db, String table, String idColumn, String id, RowMapper<T> mapper) {
+        T result = null;
         try {
             String sql = String.format("SELECT * FROM %s WHERE %s=?", table, idColumn );
             String[] params = new String[]{ id };
             Cursor cursor = db.rawQuery( sql, params );
             if( cursor.moveToFirst() ) {
-                result = readRowFromCursor( cursor );
+                result = mapper.mapRow( cursor, getColumnIndexes( cursor, mapper ) );
             }
             cursor.close();
         }
@@ -280,20 +454,45 @@ public class DB implements Service, IOCContextAware {
      * @return A list of map objects. Each map contains data from a single row of the query result.
      */
     public List<Map<String,Object>> performQuery(String sql, String... args) {
+        return performQuery( MapRowMapper, sql, args );
+    }
+
+    /**
+     * Query the DB and map the result rows to objects.
+     * @param mapper    A mapper for converting each result row to an object.
+     * @param sql       The SQL to execute.
+     * @param args      Arguments to the SQL.
+     * @return A list of mapped objects, one per result row.
+     */
+    public <T> List<T> performQuery(RowMapper<T> mapper, String sql, String... args) {
         args = replaceNullParameterValue( args );
-        List<Map<String,Object>> result = new ArrayList<>();
+        List<T> result = new ArrayList<>();
         Cursor cursor = db.rawQuery( sql, args );
-        int rowCount = cursor.getCount();
-        if( cursor.moveToFirst() ) {
-            for( int i = 0; i < rowCount; i++ ) {
-                result.add( readRowFromCursor( cursor ) );
-                cursor.moveToNext();
+        try {
+            int[] columns = getColumnIndexes( cursor, mapper );
+            while( cursor.moveToNext() ) {
+                result.add( mapper.mapRow( cursor, columns ) );
             }
         }
-        cursor.close();
+        finally {
+            cursor.close();
+        }
         return result;
     }
 
+    /** Resolve the cursor index of each column read by a row mapper. */
+    private int[] getColumnIndexes(Cursor cursor, RowMapper<?> mapper) {
+        String[] names = mapper.getColumnNames();
+        if( names == null ) {
+            return null;
+        }
+        int[] columns = new int[names.length];
+        for( int i = 0; i < names.length; i++ ) {
+            columns[i] = cursor.getColumnIndex( names[i] );
+        }
+        return columns;
+    }
+
     /**
      * Perform an update in the DB.
      * @param sql   The SQL to execute.
@@ -335,36 +534,42 @@ public class DB implements Service, IOCContextAware {
     }
 
     /**
-     * Read data from a DB cursor.
-     * @param cursor
-     * @return A map containing all the values in the current cursor row.
+     * A row mapper which reads data from a DB cursor into a map.
+     * Returns a map containing all the values in the current cursor row.
      */
-    private Map<String,Object> readRowFromCursor(Cursor cursor) {
-        Map<String,Object> result = new HashMap<String,Object>();
-        int ccount = cursor.getColumnCount();
-        for( int i = 0; i < ccount; i++ ) {
-            String cname = cursor.getColumnName( i );
-            if( !cursor.isNull( i ) ) {
-                switch( cursor.getType( i ) ) {
-                case Cursor.FIELD_TYPE_NULL:
-                    break;
-                case Cursor.FIELD_TYPE_FLOAT:
-                    result.put( cname, cursor.getFloat( i ) );
-                    break;
-                case Cursor.FIELD_TYPE_INTEGER:
-                    result.put( cname, cursor.getInt( i ) );
-                    break;
-                case Cursor.FIELD_TYPE_STRING:
-                    result.put( cname, cursor.getString( i ) );
-                    break;
-                case Cursor.FIELD_TYPE_BLOB:
-                    // Not supported.
-                    break;
+    static final RowMapper<Map<String,Object>> MapRowMapper = new RowMapper<Map<String,Object>>() {
+        @Override
+        public String[] getColumnNames() {
+            return null;
+        }
+        @Override
+        public Map<String,Object> mapRow(Cursor cursor, int[] columns) {
+            Map<String,Object> result = new HashMap<String,Object>();
+            int ccount = cursor.getColumnCount();
+            for( int i = 0; i < ccount; i++ ) {
+                String cname = cursor.getColumnName( i );
+                if( !cursor.isNull( i ) ) {
+                    switch( cursor.getType( i ) ) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        result.put( cname, cursor.getFloat( i ) );
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        result.put( cname, cursor.getInt( i ) );
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        result.put( cname, cursor.getString( i ) );
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        result.put( cname, cursor.getBlob( i ) );
+                        break;
+                    }
                 }
             }
+            return result;
         }
-        return result;
-    }
+    };
 
     /**
      * Insert a list of values into the database.
@@ -378,7 +583,11 @@ public class DB implements Service, IOCContextAware {
         boolean result = true;
         // TODO willChangeValueForKey:table
         for( Map<String, Object> values : valuesList ) {
-            result &= insert( db, table, values );
+            boolean inserted = insert( db, table, values );
+            if( inserted ) {
+                logChange( table, getIDValue( table, values ), ChangeLog.Insert );
+            }
+            result &= inserted;
         }
         // TODO didChangeValueForKey:table
         return result;
@@ -395,6 +604,9 @@ public class DB implements Service, IOCContextAware {
         boolean result;
         // TODO willChangeValueForKey:table
         result = insert( db, table, values );
+        if( result ) {
+            logChange( table, getIDValue( table, values ), ChangeLog.Insert );
+        }
         // TODO didChangeValueForKey:table
         return result;
     }
@@ -433,6 +645,7 @@ public class DB implements Service, IOCContextAware {
             Log.w( Tag, String.format("No ID column found for table %s", table ));
         }
         if( result ) {
+            logChange( table, values.get( idColumn ), ChangeLog.Update );
             // TODO didChangeValueForKey:table
         }
         else {
@@ -472,6 +685,9 @@ public class DB implements Service, IOCContextAware {
         }
         if( update ) {
             result = update( table, idColumn, values );
+            if( result ) {
+                logChange( table, values.get( idColumn ), ChangeLog.Update );
+            }
         }
         else {
             result = insert( table, values );
@@ -509,7 +725,11 @@ public class DB implements Service, IOCContextAware {
                 Map<String, Object> record = read( db, table, idColumn, id );
                 if( record != null ) {
                     record.putAll( values );
-                    result &= update( table, idColumn, record );
+                    boolean updated = update( table, idColumn, record );
+                    if( updated ) {
+                        logChange( table, id, ChangeLog.Update );
+                    }
+                    result &= updated;
                 }
                 else {
                     result &= insert( table, values );
@@ -551,18 +771,46 @@ public class DB implements Service, IOCContextAware {
         boolean ok = false;
         if( ids.length > 0 ) {
             // TODO willChangeValueForKey:table
-            StringBuilder placeholders = new StringBuilder( "?" );
-            for( int i = 1; i < ids.length; i++ ) {
-                placeholders.append( ",?" );
-            }
-            String where = String.format( "%s IN (%s)", idColumn, placeholders );
-            int count = db.delete( table, where, ids );
+            int count = deleteIn( table, idColumn, ids );
             ok = (count == ids.length);
+            for( String id : ids ) {
+                logChange( table, id, ChangeLog.Delete );
+            }
             // TODO didChangeValueForKey:table
         }
         return ok;
     }
 
+    /**
+     * Delete all records whose column value is in a list of values.
+     * The values are deleted in chunks, so that no single statement exceeds the bound parameter
+     * limit. Callers should wrap the call in a transaction if the delete needs to be atomic.
+     * Note that deletions made using this method aren't recorded in the change log.
+     * @param table     The table to delete data from.
+     * @param column    The name of the column to match values against.
+     * @param values    An array of column values.
+     * @return The number of deleted records.
+     */
+    public int deleteIn(String table, String column, String... values) {
+        int count = 0;
+        for( int start = 0; start < values.length; start += MaxBoundParameters ) {
+            int end = Math.min( start + MaxBoundParameters, values.length );
+            String[] chunk = Arrays.copyOfRange( values, start, end );
+            StringBuilder placeholders = new StringBuilder( "?" );
+            for( int i = 1; i < chunk.length; i++ ) {
+                placeholders.append( ",?" );
+            }
+            String where = String.format( "%s IN (%s)", column, placeholders );
+            count += db.delete( table, where, chunk );
+        }
+        return count;
+    }
+
+    public int deleteIn(String table, String column, Collection<String> values) {
+        String[] _values = new String[values.size()];
+        return deleteIn( table, column, values.toArray( _values ) );
+    }
+
     public int deleteWhere(String table, String where, String... args) {
         int result;
         args = replaceNullParameterValue( args );
@@ -589,6 +837,9 @@ public class DB implements Service, IOCContextAware {
                     else if( cvalue instanceof Boolean ) {
                         cvalues.put( cname, (Boolean)cvalue );
                     }
+                    else if( cvalue instanceof byte[] ) {
+                        cvalues.put( cname, (byte[])cvalue );
+                    }
                     else {
                         cvalues.put( cname, cvalue.toString() );
                     }
@@ -621,7 +872,7 @@ public class DB implements Service, IOCContextAware {
      */
     public void deployDBFile(String source) {
         stopService(); // Stop the service - this will close the current db connection.
-        File target = androidContext.getDatabasePath( name );
+        File target = getDatabaseFile();
         Files files = new Files( androidContext );
         files.mvFileRef( source, target.getAbsolutePath() );
         startService(); // Restart the service - this will reopen the db connection.
@@ -636,10 +887,59 @@ public class DB implements Service, IOCContextAware {
             androidContext.deleteDatabase( name );
         }
         this.db = helper.getWritableDatabase();
+        if( trackedTables.size() > 0 ) {
+            changeLog = new ChangeLog();
+            changeLog.open( db );
+        }
+        if( helper.hasPendingRebuilds( db ) ) {
+            startTableRebuilds();
+        }
+    }
+
+    /**
+     * Complete any table rebuilds started by a schema upgrade, on a background thread.
+     * The database can be used while the rebuilds run; see DBHelper.runPendingRebuilds().
+     */
+    private void startTableRebuilds() {
+        final DBHelper helper = this.helper;
+        final SQLiteDatabase db = this.db;
+        rebuildThread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    helper.runPendingRebuilds( db );
+                }
+                catch(Exception e) {
+                    // The rebuild is retried when the database is next opened.
+                    Log.e( Tag, String.format("Rebuilding tables in %s", name ), e );
+                }
+            }
+        }, String.format("%s-rebuild-%s", Tag, name ) );
+        rebuildThread.start();
+    }
+
+    /** Test whether table rebuilds started by a schema upgrade are still running. */
+    public boolean isRebuildingTables() {
+        return rebuildThread != null && rebuildThread.isAlive();
     }
 
     @Override
     public void stopService() {
+        if( rebuildThread != null ) {
+            // Stop the rebuilds after their current chunk; they resume when the database is next opened.
+            helper.stopRebuilds();
+            try {
+                rebuildThread.join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rebuildThread = null;
+        }
+        if( changeLog != null ) {
+            changeLog.close();
+            changeLog = null;
+        }
         db.close();
         helper.close();
     }
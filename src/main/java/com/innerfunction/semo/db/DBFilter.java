@@ -33,10 +33,26 @@ public class DBFilter {
     private Map<String,Object> filters;
     private String orderBy;
     private String predicateOp = "AND";
+    /** Flag indicating whether the filter's SQL was set explicitly, rather than generated. */
+    private boolean customSQL;
 
     public DBFilter() {}
 
     public List<Map<String,Object>> applyTo(DB db, Map<String,Object> params) {
+        // Queries generated from the table property read only the table's columns, so the rows
+        // can be read using the table's schema mapper.
+        RowMapper<Map<String,Object>> mapper = table != null && !customSQL ? db.getRowMapper( table ) : DB.MapRowMapper;
+        return applyTo( db, params, mapper );
+    }
+
+    /**
+     * Apply the filter to a DB and map the result rows to objects.
+     * @param db        The DB to query.
+     * @param params    Values for the filter's SQL parameters; can be null if the filter has none.
+     * @param mapper    A mapper for converting each result row to an object.
+     * @return A list of mapped objects, one per result row.
+     */
+    public <T> List<T> applyTo(DB db, Map<String,Object> params, RowMapper<T> mapper) {
         // Prepare the SQL. If the filter has been configured using table/filters/orderBy properties
         // then this.sql will be null on first call.
         if( this.sql == null && table != null ) {
@@ -92,7 +108,7 @@ public class DBFilter {
         }
         // If still no SQL then the filter hasn't been configured correctly.
         if( sql == null ) {
-            return Collections.EMPTY_LIST;
+            return Collections.emptyList();
         }
         // Construct parameters for the SQL query.
         List<String> sqlParams = new ArrayList<>();
@@ -106,7 +122,7 @@ public class DBFilter {
             }
         }
         // Execute the SQL and return the result.
-        List<Map<String,Object>> result = db.performQuery( sql, sqlParams );
+        List<T> result = db.performQuery( mapper, sql, sqlParams.toArray( new String[sqlParams.size()] ) );
         return result;
     }
 
@@ -121,6 +137,7 @@ public class DBFilter {
         }
         // Replace all argument placeholders with just '?' in the SQL.
         this.sql = sql.replaceAll("\\?\\w+", "?");
+        this.customSQL = true;
     }
 
     public void setTable(String table) {
@@ -13,17 +13,29 @@
 // limitations under the License
 package com.innerfunction.semo.db;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.innerfunction.util.Assets;
+
 
 /**
  * Attached by juliangoacher on 09/05/16.
@@ -32,16 +44,55 @@ public class DBHelper extends SQLiteOpenHelper {
 
     static final String Tag = DBHelper.class.getSimpleName();
 
+    /** The number of rows copied by each statement when rebuilding a table. */
+    static final int RebuildChunkSize = 5000;
+    /** The name of the table recording the progress of table rebuilds. */
+    static final String RebuildsTable = "_rebuilds";
+
+    /** Keywords which start a column constraint in a column type declaration. */
+    static final Set<String> ColumnConstraintKeywords = new HashSet<>( Arrays.asList(
+        "CONSTRAINT", "PRIMARY", "NOT", "NULL", "UNIQUE", "CHECK", "DEFAULT", "COLLATE", "REFERENCES"
+    ));
+
     private DB dbWrapper;
-    private Map<String,List<?>> initialData = new HashMap<>();
+    private Map<String,Table> initialData = new HashMap<>();
+    /** Access to the app's assets; used to read table data files. */
+    private Assets assets;
+    /** The time taken to create the database, in ms; -1 if the database wasn't created. */
+    private long createTime = -1;
+    /** Flag indicating that table rebuilds should stop after their current chunk. */
+    private volatile boolean rebuildsStopped;
 
     public DBHelper(Context context, DB db) {
         super( context, db.getName(), null, db.getVersion() );
         this.dbWrapper = db;
+        this.assets = new Assets( context );
+    }
+
+    /**
+     * Return the time taken to create the database, in ms.
+     * Returns -1 if the database already existed when opened.
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    /**
+     * Configure a newly opened database connection.
+     * Applies the DB's storage profile, if any. This is called before the database is created or
+     * upgraded, which is necessary for settings such as page size to take effect.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        StorageProfile profile = dbWrapper.getStorageProfile();
+        if( profile != null ) {
+            profile.applyTo( db, dbWrapper.getAndroidContext(), dbWrapper.getDatabaseFile() );
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        long startTime = System.currentTimeMillis();
         Map<String,Table> tables = dbWrapper.getTables();
         for( String tableName : tables.keySet() ) {
             Table table = tables.get( tableName );
@@ -49,13 +100,17 @@ public class DBHelper extends SQLiteOpenHelper {
             addInitialDataForTable( tableName, table );
         }
         initialize( db );
+        createTime = System.currentTimeMillis() - startTime;
+        Log.i(Tag,String.format("Created database %s in %d ms", dbWrapper.getName(), createTime ));
     }
 
     /**
      * Upgrade an existing database.
      * The upgrade process uses 'since' and 'until' properties on table and column configurations to
-     * decide whether to create, modify or delete columns or tables (although note that SQL lite
-     * only allows columns to be added).
+     * decide whether to create, modify or delete columns or tables. SQLite only allows columns to
+     * be added to an existing table, so tables with removed or retyped columns are rebuilt. Only
+     * the rebuild's new table is created here; the rows are copied after the database is opened,
+     * see beginTableRebuild() and runPendingRebuilds().
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -67,9 +122,28 @@ public class DBHelper extends SQLiteOpenHelper {
             String[] sql = new String[0];
             if( since <= oldVersion ) {
                 // Table exists since before the current DB version, so should exist in the current DB.
+                // Discard any rebuild of the table started by an earlier upgrade; a new rebuild is
+                // started below if the table still needs one.
+                cancelTableRebuild( db, tableName );
                 if( until < newVersion ) {
                     // Table not required in DB version being migrated to, so drop from database.
-                    sql = new String[]{ String.format("DROP TABLE %s IF EXISTS", tableName ) };
+                    sql = new String[]{ String.format("DROP TABLE IF EXISTS %s", tableName ) };
+                }
+                else if( isRebuildRequired( db, tableName, table, newVersion ) ) {
+                    // Columns removed or retyped, so rebuild the table. New columns are added to
+                    // the current table, so that it can be used until the rebuild completes. Any
+                    // failure is rethrown so that the upgrade transaction is rolled back, leaving
+                    // the database unchanged.
+                    try {
+                        for( String s : getAlterTableSQL( tableName, table, oldVersion, newVersion ) ) {
+                            db.execSQL( s );
+                        }
+                        beginTableRebuild( db, tableName, table, newVersion );
+                    }
+                    catch(Exception e) {
+                        Log.e(Tag, String.format("Rebuilding table %s", tableName), e );
+                        throw new SQLException( String.format("Failed to rebuild table %s", tableName ), e );
+                    }
                 }
                 else {
                     // Modify table.
@@ -103,38 +177,153 @@ public class DBHelper extends SQLiteOpenHelper {
 
     /**
      * Initialize the database by writing initial data into each table.
-     * Table data is only written after table creation.
+     * Table data is only written after table creation. Each table's data is written using prepared
+     * insert statements, compiled once for each distinct set of columns present in the data rows and
+     * reused for every row with the same columns; columns missing from a row are left out of its
+     * insert, so they take the column's DEFAULT value. Data is read a row at a time from the
+     * table's data source, so file based data sets are never fully held in memory.
      * @param db
      */
-    @SuppressWarnings("unchecked")
     private void initialize(SQLiteDatabase db) {
         Log.i(Tag,"Initializing database...");
         for( String tableName : initialData.keySet() ) {
-            List<Map<String,Object>> data = (List<Map<String,Object>>)initialData.get( tableName );
-            for( Map<String,Object> item : data ) {
-                dbWrapper.insert( db, tableName, item );
+            Table table = initialData.get( tableName );
+            long startTime = System.currentTimeMillis();
+            TableDataReader reader = null;
+            // Insert statements, keyed by the names of the columns they insert.
+            Map<String,SQLiteStatement> statements = new HashMap<>();
+            int count = 0, failedCount = 0;
+            try {
+                List<Column> columns = getActiveColumns( table, dbWrapper.getVersion() );
+                reader = openTableDataReader( table );
+                Map<String,Object> row;
+                while( (row = reader.next()) != null ) {
+                    List<Column> rowColumns = getPresentColumns( columns, row );
+                    String key = getColumnsKey( rowColumns );
+                    SQLiteStatement statement = statements.get( key );
+                    if( statement == null ) {
+                        statement = db.compileStatement( getInsertSQL( tableName, rowColumns ) );
+                        statements.put( key, statement );
+                    }
+                    bindRowValues( statement, rowColumns, row );
+                    try {
+                        statement.executeInsert();
+                        count++;
+                    }
+                    catch(SQLException e) {
+                        // Skip the row; e.g. it violates a constraint.
+                        Log.e(Tag, String.format("Initializing %s: Failed to insert row %s", tableName, row ), e );
+                        failedCount++;
+                    }
+                    finally {
+                        statement.clearBindings();
+                    }
+                }
             }
-            Cursor c = db.rawQuery(String.format("select count() from %s", tableName ), null);
-            if( c.moveToFirst() ) {
-                int count = c.getInt( 0 );
-                Log.i(Tag,String.format("Initializing %s: Inserted %d rows", tableName, count ));
+            catch(Exception e) {
+                Log.e(Tag, String.format("Initializing %s", tableName ), e );
             }
-            else {
-                Log.i(Tag,String.format("No rows inserted into %s", tableName ));
+            finally {
+                for( SQLiteStatement statement : statements.values() ) {
+                    statement.close();
+                }
+                if( reader != null ) {
+                    try {
+                        reader.close();
+                    }
+                    catch(IOException e) {
+                        // Ignore.
+                    }
+                }
             }
+            long time = System.currentTimeMillis() - startTime;
+            Log.i(Tag,String.format("Initializing %s: Inserted %d rows in %d ms; %d rows failed", tableName, count, time, failedCount ));
         }
         // Delete all initial data after setup.
         initialData = null;
     }
 
+    /**
+     * Open a reader on a table's initial data.
+     * Reads from the table's data file, if specified, otherwise from its data list.
+     */
+    private TableDataReader openTableDataReader(Table table) throws IOException {
+        if( table.dataFile != null ) {
+            InputStream in = assets.openInputStream( table.dataFile );
+            return TableDataReader.forFile( in, table.dataFile );
+        }
+        return TableDataReader.forList( table.data );
+    }
+
+    /** Return the subset of a list of columns which have a value in a data row. */
+    private List<Column> getPresentColumns(List<Column> columns, Map<String,Object> row) {
+        List<Column> result = new ArrayList<>();
+        for( Column column : columns ) {
+            if( row.containsKey( column.name ) ) {
+                result.add( column );
+            }
+        }
+        return result;
+    }
+
+    /** Return a key identifying a list of columns. */
+    private String getColumnsKey(List<Column> columns) {
+        StringBuilder key = new StringBuilder();
+        for( Column column : columns ) {
+            key.append( column.name ).append(',');
+        }
+        return key.toString();
+    }
+
+    /** Return a SQL statement for inserting a row of values into each of a list of columns. */
+    private String getInsertSQL(String name, List<Column> columns) {
+        if( columns.size() == 0 ) {
+            return String.format("INSERT INTO %s DEFAULT VALUES", name );
+        }
+        StringBuilder cols = new StringBuilder();
+        StringBuilder placeholders = new StringBuilder();
+        for( Column column : columns ) {
+            if( cols.length() > 0 ) {
+                cols.append(',');
+                placeholders.append(',');
+            }
+            cols.append( column.name );
+            placeholders.append('?');
+        }
+        return String.format("INSERT INTO %s (%s) VALUES (%s)", name, cols, placeholders );
+    }
+
+    /** Bind a row of values to an insert statement created by getInsertSQL(). */
+    private void bindRowValues(SQLiteStatement statement, List<Column> columns, Map<String,Object> row) {
+        for( int i = 0; i < columns.size(); i++ ) {
+            Object value = row.get( columns.get( i ).name );
+            int index = i + 1;
+            if( value == null ) {
+                statement.bindNull( index );
+            }
+            else if( value instanceof Long || value instanceof Integer || value instanceof Short ) {
+                statement.bindLong( index, ((Number)value).longValue() );
+            }
+            else if( value instanceof Number ) {
+                statement.bindDouble( index, ((Number)value).doubleValue() );
+            }
+            else if( value instanceof Boolean ) {
+                statement.bindLong( index, (Boolean)value ? 1 : 0 );
+            }
+            else {
+                statement.bindString( index, value.toString() );
+            }
+        }
+    }
+
     /**
      * Add initial data for a table to the set of data to be initialized.
      * @param name
      * @param table
      */
     private void addInitialDataForTable(String name, Table table) {
-        if( table.data != null ) {
-            initialData.put( name, table.data );
+        if( table.data != null || table.dataFile != null ) {
+            initialData.put( name, table );
         }
     }
 
@@ -145,8 +334,18 @@ public class DBHelper extends SQLiteOpenHelper {
      * @return A string containing a SQL create table statement.
      */
     private String getCreateTableSQL(String name, Table table) {
+        return getCreateTableSQL( name, getActiveColumns( table, dbWrapper.getVersion() ) );
+    }
+
+    /**
+     * Return a SQL statement for creating a table with a list of columns.
+     * @param name      The table name.
+     * @param columns   The table columns.
+     * @return A string containing a SQL create table statement.
+     */
+    private String getCreateTableSQL(String name, List<Column> columns) {
         StringBuilder cols = new StringBuilder();
-        for( Column column : table.columns ) {
+        for( Column column : columns ) {
             if( cols.length() > 0 ) {
                 cols.append(',');
             }
@@ -175,9 +374,318 @@ public class DBHelper extends SQLiteOpenHelper {
                 sqls.add( sql );
                 Log.d(Tag, sql );
             }
-            // NOTE: It's not possible to drop columns from a table in SQLite.
+            // NOTE: It's not possible to drop columns from a table in SQLite; tables with dropped
+            // columns are instead rebuilt.
         }
         String[] result = new String[sqls.size()];
         return sqls.toArray( result );
     }
+
+    /**
+     * Return a table's columns which are active in the specified DB version.
+     * A column is active if the version is between its 'since' and 'until' values.
+     */
+    private List<Column> getActiveColumns(Table table, int version) {
+        List<Column> columns = new ArrayList<>();
+        for( Column column : table.columns ) {
+            int since = Math.max( column.since, 0 );
+            int until = column.until > -1 ? column.until : version;
+            if( since <= version && !(until < version) ) {
+                columns.add( column );
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Read the names and types of a table's current columns from the database.
+     * @return A map of column types keyed by column name; empty if the table doesn't exist.
+     */
+    private Map<String,String> readTableColumns(SQLiteDatabase db, String tableName) {
+        Map<String,String> columns = new HashMap<>();
+        Cursor cursor = db.rawQuery( String.format("PRAGMA table_info(%s)", tableName ), null );
+        try {
+            int nameIdx = cursor.getColumnIndex("name");
+            int typeIdx = cursor.getColumnIndex("type");
+            while( cursor.moveToNext() ) {
+                columns.put( cursor.getString( nameIdx ), cursor.getString( typeIdx ) );
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Return the type name part of a column type declaration, i.e. without column constraints.
+     * For example, returns INTEGER for "INTEGER PRIMARY KEY".
+     */
+    private String getColumnTypeName(String type) {
+        StringBuilder typeName = new StringBuilder();
+        for( String token : type.trim().split("\\s+") ) {
+            if( ColumnConstraintKeywords.contains( token.toUpperCase() ) ) {
+                break;
+            }
+            if( typeName.length() > 0 ) {
+                typeName.append(' ');
+            }
+            typeName.append( token );
+        }
+        return typeName.toString();
+    }
+
+    /**
+     * Test whether a table needs to be rebuilt to match its configuration in a DB version.
+     * A rebuild is needed if the table in the database has any columns which have been removed
+     * from the configuration, or whose type differs from the configured type.
+     */
+    private boolean isRebuildRequired(SQLiteDatabase db, String tableName, Table table, int version) {
+        Map<String,String> currentColumns = readTableColumns( db, tableName );
+        if( currentColumns.size() == 0 ) {
+            return false;
+        }
+        Map<String,String> activeColumns = new HashMap<>();
+        for( Column column : getActiveColumns( table, version ) ) {
+            activeColumns.put( column.name, getColumnTypeName( column.type ) );
+        }
+        for( String name : currentColumns.keySet() ) {
+            String type = activeColumns.get( name );
+            if( type == null ) {
+                Log.i(Tag, String.format("Column %s.%s removed", tableName, name ) );
+                return true;
+            }
+            if( !type.equalsIgnoreCase( currentColumns.get( name ) ) ) {
+                Log.i(Tag, String.format("Column %s.%s retyped to %s", tableName, name, type ) );
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Begin rebuilding a table to match its configuration in a DB version.
+     * Creates the new table with the table's active columns, and records the rebuild in the
+     * rebuilds table with a rowid cursor of the rows copied so far. Rows are copied by
+     * runPendingRebuilds() once the database is open, so that a large table doesn't block the
+     * database open. Until the rebuild completes, the current table stays in use; triggers on the
+     * current table copy any writes to rows already copied into the new table.
+     * NOTE: This runs within SQLiteOpenHelper's upgrade transaction, so if the upgrade fails then
+     * no rebuild is recorded.
+     */
+    private void beginTableRebuild(SQLiteDatabase db, String tableName, Table table, int version) {
+        List<Column> columns = getActiveColumns( table, version );
+        Map<String,String> currentColumns = readTableColumns( db, tableName );
+        String newTableName = getRebuildTableName( tableName );
+        db.execSQL( getCreateTableSQL( newTableName, columns ) );
+        // Only columns in both the current and new tables are copied; values of retyped columns
+        // are converted by the new column's type affinity. Rows in the new table are keyed by the
+        // current table's rowid, unless the new table has a rowid alias column with a value in
+        // the current table.
+        String keyColumn = "rowid";
+        List<String> copyColumns = new ArrayList<>();
+        for( Column column : columns ) {
+            if( currentColumns.containsKey( column.name ) ) {
+                copyColumns.add( column.name );
+                if( isRowIDAlias( column ) ) {
+                    keyColumn = column.name;
+                }
+            }
+        }
+        if( "rowid".equals( keyColumn ) ) {
+            copyColumns.add( 0, "rowid" );
+        }
+        String cols = TextUtils.join(",", copyColumns );
+        String newValues = "NEW.".concat( TextUtils.join(",NEW.", copyColumns ) );
+        String isCopied = String.format("NEW.rowid <= (SELECT last_rowid FROM %s WHERE name='%s')", RebuildsTable, tableName );
+        db.execSQL( String.format("CREATE TRIGGER %s_insert AFTER INSERT ON %s WHEN %s BEGIN "
+            + "INSERT OR REPLACE INTO %s (%s) VALUES (%s); END",
+            newTableName, tableName, isCopied, newTableName, cols, newValues ) );
+        db.execSQL( String.format("CREATE TRIGGER %s_update AFTER UPDATE ON %s BEGIN "
+            + "DELETE FROM %s WHERE rowid = OLD.%s; "
+            + "INSERT OR REPLACE INTO %s (%s) SELECT %s WHERE %s; END",
+            newTableName, tableName, newTableName, keyColumn, newTableName, cols, newValues, isCopied ) );
+        db.execSQL( String.format("CREATE TRIGGER %s_delete AFTER DELETE ON %s BEGIN "
+            + "DELETE FROM %s WHERE rowid = OLD.%s; END",
+            newTableName, tableName, newTableName, keyColumn ) );
+        // Record the rebuild.
+        db.execSQL( String.format("CREATE TABLE IF NOT EXISTS %s (name TEXT PRIMARY KEY, columns TEXT, last_rowid INTEGER)", RebuildsTable ) );
+        ContentValues values = new ContentValues();
+        values.put("name", tableName );
+        values.put("columns", cols );
+        values.put("last_rowid", Long.MIN_VALUE );
+        db.insertOrThrow( RebuildsTable, null, values );
+        Log.i(Tag, String.format("Rebuild of table %s started", tableName ) );
+    }
+
+    /**
+     * Discard any rebuild of a table which is in progress.
+     * Drops the rebuild's new table, along with its triggers on the current table.
+     */
+    private void cancelTableRebuild(SQLiteDatabase db, String tableName) {
+        if( !hasRebuildsTable( db ) ) {
+            return;
+        }
+        String newTableName = getRebuildTableName( tableName );
+        db.execSQL( String.format("DROP TRIGGER IF EXISTS %s_insert", newTableName ) );
+        db.execSQL( String.format("DROP TRIGGER IF EXISTS %s_update", newTableName ) );
+        db.execSQL( String.format("DROP TRIGGER IF EXISTS %s_delete", newTableName ) );
+        db.execSQL( String.format("DROP TABLE IF EXISTS %s", newTableName ) );
+        db.delete( RebuildsTable, "name=?", new String[]{ tableName } );
+    }
+
+    /** Return the name of the new table used when rebuilding a table. */
+    private String getRebuildTableName(String tableName) {
+        return tableName.concat("__rebuild");
+    }
+
+    /** Test whether a column is an alias of its table's rowid, i.e. an INTEGER PRIMARY KEY column. */
+    private boolean isRowIDAlias(Column column) {
+        return column.type != null && column.type.trim().toUpperCase().matches("INTEGER\\s+PRIMARY\\s+KEY.*");
+    }
+
+    /** Test whether the rebuilds table exists; it's only created when a rebuild is first started. */
+    private boolean hasRebuildsTable(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery( db, "SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?", new String[]{ RebuildsTable } ) > 0;
+    }
+
+    /** Test whether any table rebuilds started by an upgrade haven't yet completed. */
+    boolean hasPendingRebuilds(SQLiteDatabase db) {
+        return hasRebuildsTable( db ) && DatabaseUtils.queryNumEntries( db, RebuildsTable ) > 0;
+    }
+
+    /**
+     * Complete any table rebuilds started by an upgrade.
+     * Called by the DB on a background thread once the database is open. Rows are copied from
+     * each current table in rowid order using chunked INSERT ... SELECT statements; each chunk is
+     * copied in its own transaction, which also advances the rebuild's rowid cursor, so that the
+     * database can be used between chunks and an interrupted rebuild resumes from the last chunk
+     * copied. Progress is reported after each chunk to the DB's migration listener. Once all rows
+     * are copied, the current table is replaced with the new table and any indexes are recreated.
+     * @return true if all rebuilds completed; false if the rebuilds were stopped.
+     */
+    boolean runPendingRebuilds(SQLiteDatabase db) {
+        Map<String,String> rebuilds = new HashMap<>();
+        Cursor cursor = db.rawQuery( String.format("SELECT name, columns FROM %s", RebuildsTable ), null );
+        try {
+            while( cursor.moveToNext() ) {
+                rebuilds.put( cursor.getString( 0 ), cursor.getString( 1 ) );
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        for( String tableName : rebuilds.keySet() ) {
+            if( !continueTableRebuild( db, tableName, rebuilds.get( tableName ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop any table rebuilds in progress after their current chunk.
+     * The rebuilds resume when the database is next opened.
+     */
+    void stopRebuilds() {
+        rebuildsStopped = true;
+    }
+
+    /**
+     * Copy the remaining rows of a table being rebuilt, then replace the table with its new table.
+     * @param cols  The columns copied from the current table.
+     * @return true if the rebuild completed; false if it was stopped.
+     */
+    private boolean continueTableRebuild(SQLiteDatabase db, String tableName, String cols) {
+        long startTime = System.currentTimeMillis();
+        String newTableName = getRebuildTableName( tableName );
+        long total = DatabaseUtils.queryNumEntries( db, tableName );
+        long copied = DatabaseUtils.queryNumEntries( db, newTableName );
+        long lastRowID = DatabaseUtils.longForQuery( db, String.format("SELECT last_rowid FROM %s WHERE name=?", RebuildsTable ), new String[]{ tableName } );
+        DB.MigrationListener listener = dbWrapper.getMigrationListener();
+        SQLiteStatement chunkEndStatement = db.compileStatement( String.format(
+            "SELECT max(rowid) FROM (SELECT rowid FROM %s WHERE rowid > ? ORDER BY rowid LIMIT %d)",
+            tableName, RebuildChunkSize ) );
+        SQLiteStatement copyStatement = db.compileStatement( String.format(
+            "INSERT INTO %s (%s) SELECT %s FROM %s WHERE rowid > ? AND rowid <= ?",
+            newTableName, cols, cols, tableName ) );
+        SQLiteStatement cursorStatement = db.compileStatement( String.format(
+            "UPDATE %s SET last_rowid=? WHERE name=?", RebuildsTable ) );
+        try {
+            boolean done = false;
+            while( !done ) {
+                if( rebuildsStopped ) {
+                    Log.i(Tag, String.format("Rebuilding %s: stopped after %d of %d rows", tableName, copied, total ) );
+                    return false;
+                }
+                db.beginTransaction();
+                try {
+                    chunkEndStatement.bindLong( 1, lastRowID );
+                    String chunkEnd = chunkEndStatement.simpleQueryForString();
+                    if( chunkEnd == null ) {
+                        // All rows copied.
+                        replaceTable( db, tableName, newTableName );
+                        done = true;
+                    }
+                    else {
+                        long chunkEndRowID = Long.parseLong( chunkEnd );
+                        copyStatement.bindLong( 1, lastRowID );
+                        copyStatement.bindLong( 2, chunkEndRowID );
+                        copied += copyStatement.executeUpdateDelete();
+                        cursorStatement.bindLong( 1, chunkEndRowID );
+                        cursorStatement.bindString( 2, tableName );
+                        cursorStatement.executeUpdateDelete();
+                        lastRowID = chunkEndRowID;
+                    }
+                    db.setTransactionSuccessful();
+                }
+                finally {
+                    db.endTransaction();
+                }
+                if( !done ) {
+                    Log.d(Tag, String.format("Rebuilding %s: copied %d of %d rows", tableName, copied, total ) );
+                    if( listener != null ) {
+                        listener.onTableRebuildProgress( tableName, copied, total );
+                    }
+                }
+            }
+        }
+        finally {
+            chunkEndStatement.close();
+            copyStatement.close();
+            cursorStatement.close();
+        }
+        long time = System.currentTimeMillis() - startTime;
+        Log.i(Tag, String.format("Rebuilt table %s (%d rows) in %d ms", tableName, copied, time ) );
+        if( listener != null ) {
+            listener.onTableRebuildComplete( tableName );
+        }
+        return true;
+    }
+
+    /**
+     * Replace a table with its rebuilt copy, and recreate the table's indexes.
+     * Dropping the current table also drops the rebuild's triggers.
+     */
+    private void replaceTable(SQLiteDatabase db, String tableName, String newTableName) {
+        // Read the current table's index definitions; these are dropped along with the table.
+        List<String> indexSQL = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='index' AND tbl_name=? AND sql IS NOT NULL", new String[]{ tableName } );
+        while( cursor.moveToNext() ) {
+            indexSQL.add( cursor.getString( 0 ) );
+        }
+        cursor.close();
+        db.execSQL( String.format("DROP TABLE %s", tableName ) );
+        db.execSQL( String.format("ALTER TABLE %s RENAME TO %s", newTableName, tableName ) );
+        for( String sql : indexSQL ) {
+            try {
+                db.execSQL( sql );
+            }
+            catch(SQLException e) {
+                // Index probably references a removed column.
+                Log.w(Tag, String.format("Failed to recreate index on %s: %s", tableName, sql ), e );
+            }
+        }
+        db.delete( RebuildsTable, "name=?", new String[]{ tableName } );
+    }
 }
\ No newline at end of file
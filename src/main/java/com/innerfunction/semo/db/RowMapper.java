@@ -0,0 +1,41 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.db;
+
+import android.database.Cursor;
+
+/**
+ * An object for mapping DB cursor rows to typed objects.
+ * The cursor index of each column read by the mapper is resolved once per query, so that rows
+ * can be read by column index rather than by name.
+ */
+public interface RowMapper<T> {
+
+    /**
+     * Return the names of the columns read by the mapper.
+     * The cursor index of each named column is passed to mapRow() in the same order. Can return
+     * null, in which case mapRow() is passed a null index array and should read all columns.
+     */
+    String[] getColumnNames();
+
+    /**
+     * Map the cursor's current row to an object.
+     * @param cursor    A DB cursor positioned at the row to read.
+     * @param columns   The cursor index of each column named by getColumnNames(); an index is -1
+     *                  if the column isn't present in the result set.
+     * @return An object containing the row's values.
+     */
+    T mapRow(Cursor cursor, int[] columns);
+
+}
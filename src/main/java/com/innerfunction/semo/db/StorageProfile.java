@@ -0,0 +1,233 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.db;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * A set of SQLite storage settings applied to a database connection when it is opened.
+ * Configurable properties map onto the following SQLite pragmas:
+ * - pageSize:      PRAGMA page_size (only takes effect when the database file is first created);
+ * - cacheSize:     PRAGMA cache_size, in KB;
+ * - synchronous:   PRAGMA synchronous, e.g. OFF, NORMAL or FULL;
+ * - tempStore:     PRAGMA temp_store, e.g. DEFAULT, FILE or MEMORY;
+ * - mmapSize:      PRAGMA mmap_size, in bytes.
+ * Any property which isn't configured is left at the platform default.
+ *
+ * The profile's mode can be used to select a named preset:
+ * - default:       Use platform defaults for everything not explicitly configured;
+ * - durable:       Full synchronous writes, no memory mapping;
+ * - fast:          Relaxed synchronous writes, in-memory temp storage, larger cache and mmap;
+ * - auto:          As fast, but with mmap and cache sizes calculated from the database file size
+ *                  and the device's available memory.
+ * Explicitly configured properties always override the preset values.
+ */
+public class StorageProfile {
+
+    static final String Tag = StorageProfile.class.getSimpleName();
+
+    /** Maximum mmap size used by the auto profile. */
+    static final long AutoMaxMMapSize = 256 * 1024 * 1024;
+    /** Minimum mmap size used by the auto profile; allows room for a new DB to grow into. */
+    static final long AutoMinMMapSize = 16 * 1024 * 1024;
+    /** Maximum page cache size, in KB, used by the auto profile. */
+    static final int AutoMaxCacheSize = 32 * 1024;
+    /** Minimum page cache size, in KB, used by the auto profile. */
+    static final int AutoMinCacheSize = 2 * 1024;
+
+    /** The profile mode; one of default, durable, fast or auto. */
+    private String mode = "default";
+    /** The database page size in bytes, or -1 for the platform default. */
+    private int pageSize = -1;
+    /** The page cache size in KB, or -1 for the platform default. */
+    private int cacheSize = -1;
+    /** The synchronous setting, or null for the platform default. */
+    private String synchronous;
+    /** The temp store setting, or null for the platform default. */
+    private String tempStore;
+    /** The maximum number of bytes of the DB file to memory map, or -1 for the platform default. */
+    private long mmapSize = -1;
+
+    public StorageProfile() {}
+
+    public StorageProfile(String mode) {
+        this.mode = mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public void setSynchronous(String synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public void setTempStore(String tempStore) {
+        this.tempStore = tempStore;
+    }
+
+    public void setMmapSize(long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+
+    /**
+     * Apply the profile's settings to a database connection.
+     * Should be called as soon as the connection is opened, before any tables are created or read.
+     * @param db        The database connection.
+     * @param context   The android context; used to read available memory in auto mode.
+     * @param dbFile    The database file; used to read the current DB size in auto mode.
+     */
+    public void applyTo(SQLiteDatabase db, Context context, File dbFile) {
+        int pageSize = this.pageSize;
+        int cacheSize = this.cacheSize;
+        String synchronous = this.synchronous;
+        String tempStore = this.tempStore;
+        long mmapSize = this.mmapSize;
+        // Resolve preset values for anything not explicitly configured.
+        if( "durable".equals( mode ) ) {
+            if( synchronous == null ) {
+                synchronous = "FULL";
+            }
+            if( mmapSize < 0 ) {
+                mmapSize = 0;
+            }
+        }
+        else if( "fast".equals( mode ) || "auto".equals( mode ) ) {
+            if( pageSize < 0 ) {
+                pageSize = 4096;
+            }
+            if( synchronous == null ) {
+                synchronous = "NORMAL";
+            }
+            if( tempStore == null ) {
+                tempStore = "MEMORY";
+            }
+            if( "auto".equals( mode ) ) {
+                long dbSize = dbFile != null && dbFile.exists() ? dbFile.length() : 0;
+                long availMem = getAvailableMemory( context );
+                if( mmapSize < 0 ) {
+                    mmapSize = getAutoMMapSize( dbSize, availMem );
+                }
+                if( cacheSize < 0 ) {
+                    cacheSize = getAutoCacheSize( dbSize, availMem );
+                }
+            }
+            else {
+                if( mmapSize < 0 ) {
+                    mmapSize = 64 * 1024 * 1024;
+                }
+                if( cacheSize < 0 ) {
+                    cacheSize = 8 * 1024;
+                }
+            }
+        }
+        // Apply settings.
+        if( pageSize > 0 ) {
+            pragma( db, String.format("page_size=%d", pageSize ) );
+        }
+        if( cacheSize > 0 ) {
+            // A negative cache_size value is interpreted by SQLite as a size in KB.
+            pragma( db, String.format("cache_size=-%d", cacheSize ) );
+        }
+        if( synchronous != null ) {
+            pragma( db, String.format("synchronous=%s", synchronous ) );
+        }
+        if( tempStore != null ) {
+            pragma( db, String.format("temp_store=%s", tempStore ) );
+        }
+        if( mmapSize > -1 ) {
+            pragma( db, String.format("mmap_size=%d", mmapSize ) );
+        }
+        Log.i( Tag, String.format("Storage profile %s: page_size=%d cache_size=%dKB synchronous=%s temp_store=%s mmap_size=%d",
+            mode, pageSize, cacheSize, synchronous, tempStore, mmapSize ) );
+    }
+
+    /**
+     * Calculate an mmap size for the auto profile.
+     * Maps the whole DB file plus some headroom for growth, but never more than an eighth of
+     * available memory.
+     */
+    static long getAutoMMapSize(long dbSize, long availMem) {
+        long size = Math.max( dbSize + (dbSize / 4), AutoMinMMapSize );
+        if( availMem > 0 ) {
+            size = Math.min( size, availMem / 8 );
+        }
+        return Math.min( size, AutoMaxMMapSize );
+    }
+
+    /**
+     * Calculate a page cache size, in KB, for the auto profile.
+     * When the DB file is memory mapped then most reads are served from the OS page cache, so the
+     * SQLite cache only needs to hold a fraction of the DB.
+     */
+    static int getAutoCacheSize(long dbSize, long availMem) {
+        long size = (dbSize / 4) / 1024;
+        if( availMem > 0 ) {
+            size = Math.min( size, (availMem / 32) / 1024 );
+        }
+        size = Math.max( size, AutoMinCacheSize );
+        return (int)Math.min( size, AutoMaxCacheSize );
+    }
+
+    /** Return the device's available memory in bytes, or -1 if it can't be read. */
+    private static long getAvailableMemory(Context context) {
+        if( context != null ) {
+            ActivityManager am = (ActivityManager)context.getSystemService( Context.ACTIVITY_SERVICE );
+            if( am != null ) {
+                ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
+                am.getMemoryInfo( memInfo );
+                return memInfo.availMem;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Execute a pragma statement.
+     * Some pragmas return a result row, which execSQL() rejects, so all pragmas are run as queries.
+     */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery( String.format("PRAGMA %s", pragma ), null );
+            cursor.moveToFirst();
+        }
+        catch(Exception e) {
+            Log.w( Tag, String.format("Failed to apply PRAGMA %s", pragma ), e );
+        }
+        finally {
+            if( cursor != null ) {
+                cursor.close();
+            }
+        }
+    }
+}
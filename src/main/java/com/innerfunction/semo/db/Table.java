@@ -28,6 +28,8 @@ public class Table implements IOCObjectAware {
     protected int since = -1;
     protected int until = -1;
     protected List<?> data;
+    protected String dataFile;
+    protected boolean trackChanges;
 
     public Table() {}
 
@@ -66,6 +68,20 @@ public class Table implements IOCObjectAware {
         this.data = data;
     }
 
+    /**
+     * Set the path of an asset file containing the table's initial data.
+     * The file can be a JSON array of objects, or a CSV file (with a .csv extension) whose first
+     * line lists column names. Takes precedence over any data list.
+     */
+    public void setDataFile(String dataFile) {
+        this.dataFile = dataFile;
+    }
+
+    /** Set whether changes to the table's rows should be recorded in the DB's change log. */
+    public void setTrackChanges(boolean trackChanges) {
+        this.trackChanges = trackChanges;
+    }
+
     @Override
     public void notifyIOCObject(Object object, String propertyName) {
         // If table hasn't explicitly configured with a name then take its name from the
@@ -0,0 +1,238 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.db;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reader of initial table data.
+ * Returns data one row at a time, so that large data sets can be loaded without first being
+ * read fully into memory. Supports the following sources:
+ * - A list of maps, e.g. as specified in a table's IOC configuration;
+ * - A JSON file containing an array of objects; the file is parsed incrementally;
+ * - A CSV file whose first line lists column names; the file is parsed line by line.
+ */
+public abstract class TableDataReader {
+
+    /**
+     * Read the next row of data.
+     * @return A map of column name / value entries, or null if no more rows are available.
+     */
+    public abstract Map<String,Object> next() throws IOException;
+
+    /** Close the reader and release any resources. */
+    public void close() throws IOException {}
+
+    /** Return a reader for a list of data rows. */
+    public static TableDataReader forList(List<?> data) {
+        return new ListReader( data );
+    }
+
+    /**
+     * Return a reader for a data file.
+     * @param in    An input stream for reading the file contents.
+     * @param path  The file path; a path ending with .csv is read as CSV, otherwise as JSON.
+     */
+    public static TableDataReader forFile(InputStream in, String path) throws IOException {
+        Reader reader = new BufferedReader( new InputStreamReader( in, "UTF-8" ) );
+        if( path.toLowerCase().endsWith(".csv") ) {
+            return new CSVReader( reader );
+        }
+        return new JSONReader( reader );
+    }
+
+    /** A reader of a list of data rows. */
+    static class ListReader extends TableDataReader {
+
+        private Iterator<?> rows;
+
+        ListReader(List<?> data) {
+            this.rows = data.iterator();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String,Object> next() {
+            return rows.hasNext() ? (Map<String,Object>)rows.next() : null;
+        }
+    }
+
+    /** A reader of a JSON array of objects. */
+    static class JSONReader extends TableDataReader {
+
+        private JsonReader json;
+        private boolean started;
+
+        JSONReader(Reader reader) {
+            this.json = new JsonReader( reader );
+        }
+
+        @Override
+        public Map<String,Object> next() throws IOException {
+            if( !started ) {
+                json.beginArray();
+                started = true;
+            }
+            if( !json.hasNext() ) {
+                return null;
+            }
+            Map<String,Object> row = new HashMap<>();
+            json.beginObject();
+            while( json.hasNext() ) {
+                String name = json.nextName();
+                JsonToken token = json.peek();
+                switch( token ) {
+                case STRING:
+                    row.put( name, json.nextString() );
+                    break;
+                case NUMBER:
+                    String number = json.nextString();
+                    try {
+                        row.put( name, Long.valueOf( number ) );
+                    }
+                    catch(NumberFormatException e) {
+                        row.put( name, Double.valueOf( number ) );
+                    }
+                    break;
+                case BOOLEAN:
+                    row.put( name, json.nextBoolean() );
+                    break;
+                default:
+                    // Nulls, and nested objects or arrays, aren't stored.
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            json.close();
+        }
+    }
+
+    /**
+     * A reader of CSV data.
+     * The first line of the data must contain column names. Fields may be quoted using double
+     * quotes, with embedded quotes escaped by doubling. Empty fields are read as null.
+     */
+    static class CSVReader extends TableDataReader {
+
+        private Reader reader;
+        private String[] columnNames;
+        private boolean eof;
+
+        CSVReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Map<String,Object> next() throws IOException {
+            if( columnNames == null ) {
+                List<String> header = readRecord();
+                if( header == null ) {
+                    return null;
+                }
+                columnNames = header.toArray( new String[header.size()] );
+            }
+            List<String> record = readRecord();
+            if( record == null ) {
+                return null;
+            }
+            Map<String,Object> row = new HashMap<>();
+            for( int i = 0; i < columnNames.length && i < record.size(); i++ ) {
+                String value = record.get( i );
+                if( value != null ) {
+                    row.put( columnNames[i], value );
+                }
+            }
+            return row;
+        }
+
+        /** Read the next record from the data; skips blank lines. Returns null at end of data. */
+        private List<String> readRecord() throws IOException {
+            while( !eof ) {
+                List<String> fields = new ArrayList<>();
+                StringBuilder field = new StringBuilder();
+                boolean quoted = false, inQuotes = false, endOfRecord = false;
+                while( !endOfRecord ) {
+                    int ch = reader.read();
+                    if( ch < 0 ) {
+                        eof = true;
+                        endOfRecord = true;
+                    }
+                    else if( inQuotes ) {
+                        if( ch == '"' ) {
+                            reader.mark( 1 );
+                            int next = reader.read();
+                            if( next == '"' ) {
+                                field.append('"');
+                            }
+                            else {
+                                inQuotes = false;
+                                if( next >= 0 ) {
+                                    reader.reset();
+                                }
+                            }
+                        }
+                        else {
+                            field.append( (char)ch );
+                        }
+                    }
+                    else if( ch == '"' ) {
+                        inQuotes = quoted = true;
+                    }
+                    else if( ch == ',' ) {
+                        fields.add( toValue( field, quoted ) );
+                        field.setLength( 0 );
+                        quoted = false;
+                    }
+                    else if( ch == '\n' ) {
+                        endOfRecord = true;
+                    }
+                    else if( ch != '\r' ) {
+                        field.append( (char)ch );
+                    }
+                }
+                if( fields.size() > 0 || field.length() > 0 || quoted ) {
+                    fields.add( toValue( field, quoted ) );
+                    return fields;
+                }
+            }
+            return null;
+        }
+
+        private String toValue(StringBuilder field, boolean quoted) {
+            return (field.length() == 0 && !quoted) ? null : field.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
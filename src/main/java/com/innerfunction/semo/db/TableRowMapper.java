@@ -0,0 +1,98 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.db;
+
+import android.database.Cursor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A row mapper generated from a table schema.
+ * Reads the table's declared columns into a map by column index, so that column names are
+ * resolved once per query rather than once per cell. Values in columns with TEXT affinity are
+ * read directly as strings; values in other columns are read according to their storage type,
+ * in the same way as DB.MapRowMapper.
+ */
+class TableRowMapper implements RowMapper<Map<String,Object>> {
+
+    /** The names of the table's declared columns. */
+    private String[] columnNames;
+    /** Flags indicating which of the declared columns have TEXT affinity. */
+    private boolean[] textColumns;
+
+    TableRowMapper(Table table) {
+        int count = table.columns.length;
+        this.columnNames = new String[count];
+        this.textColumns = new boolean[count];
+        for( int i = 0; i < count; i++ ) {
+            Column column = table.columns[i];
+            columnNames[i] = column.name;
+            textColumns[i] = hasTextAffinity( column.type );
+        }
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public Map<String,Object> mapRow(Cursor cursor, int[] columns) {
+        Map<String,Object> result = new HashMap<>( columns.length * 2 );
+        for( int i = 0; i < columns.length; i++ ) {
+            int index = columns[i];
+            if( index < 0 || cursor.isNull( index ) ) {
+                continue;
+            }
+            String cname = columnNames[i];
+            if( textColumns[i] ) {
+                result.put( cname, cursor.getString( index ) );
+                continue;
+            }
+            switch( cursor.getType( index ) ) {
+            case Cursor.FIELD_TYPE_FLOAT:
+                result.put( cname, cursor.getFloat( index ) );
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                result.put( cname, cursor.getInt( index ) );
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+                result.put( cname, cursor.getString( index ) );
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                result.put( cname, cursor.getBlob( index ) );
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Test whether a declared column type has TEXT affinity.
+     * See https://www.sqlite.org/datatype3.html#determination_of_column_affinity; a type
+     * containing INT has INTEGER affinity, otherwise a type containing CHAR, CLOB or TEXT has
+     * TEXT affinity.
+     */
+    static boolean hasTextAffinity(String type) {
+        if( type == null ) {
+            return false;
+        }
+        type = type.toUpperCase();
+        if( type.contains("INT") ) {
+            return false;
+        }
+        return type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT");
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Local benchmark of the append and drain rates of the in-memory and journal queue stores.
+ * Skipped unless the unit tests are run with -Pbenchmark; results are printed and written to
+ * build/reports/benchmarks. The SQLite store needs a device, so it's benchmarked by
+ * SQLiteCommandQueueStoreBenchmarkTest.
+ */
+public class CommandQueueStoreBenchmarkTest {
+
+    File baseDir;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue( Boolean.getBoolean("benchmark") );
+        baseDir = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if( baseDir != null ) {
+            JournalCommandQueueStoreTest.deleteAll( baseDir );
+        }
+    }
+
+    @Test
+    public void testQueueStores() throws IOException {
+        CommandQueueStoreBenchmark benchmark = new CommandQueueStoreBenchmark();
+        assertSimulationCorrect( benchmark.run("memory", new MemoryCommandQueueStore() ) );
+        assertSimulationCorrect( benchmark.run("journal", new JournalCommandQueueStore( baseDir ) ) );
+        System.out.println( benchmark.toJSON() );
+        benchmark.writeResults( new File( System.getProperty("benchmark.outputDir"), "command-queue-stores.json") );
+    }
+
+    static void assertSimulationCorrect(Map<String,Object> results) {
+        Map simulation = (Map)results.get("simulation");
+        assertEquals( 0, ((Number)simulation.get("errorCount")).intValue() );
+        assertEquals( results.get("appended"), results.get("drained") );
+    }
+}
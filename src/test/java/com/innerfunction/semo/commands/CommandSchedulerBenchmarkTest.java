@@ -0,0 +1,62 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmark of the command scheduler, using the simulation's default workload of 100,000 top
+ * level commands with injected crashes.
+ * Skipped unless the unit tests are run with -Pbenchmark; results are printed and written to
+ * build/reports/benchmarks.
+ */
+public class CommandSchedulerBenchmarkTest {
+
+    /** The number of crashes injected into the workload. */
+    static final int CrashCount = 10;
+
+    @Before
+    public void setUp() {
+        assumeTrue( Boolean.getBoolean("benchmark") );
+    }
+
+    @Test
+    public void testDefaultWorkload() throws IOException {
+        CommandSchedulerSimulation simulation = new CommandSchedulerSimulation();
+        simulation.setCrashCount( CrashCount );
+        simulation.run();
+        String json = simulation.toJSON();
+        System.out.println( json );
+        File file = new File( System.getProperty("benchmark.outputDir"), "command-scheduler.json");
+        file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8");
+        try {
+            writer.write( json );
+        }
+        finally {
+            writer.close();
+        }
+        assertTrue( json, simulation.isCorrect() );
+    }
+}
@@ -0,0 +1,334 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import com.innerfunction.q.Q;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the command scheduler, run deterministically against a simulated clock, a single
+ * threaded run queue and an in-memory queue store.
+ */
+public class CommandSchedulerTest {
+
+    /** The simulated time at which tests start. */
+    static final long StartTime = CommandSchedulerSimulation.StartTime;
+    /** The tolerance allowed on timer based timings; timers fire on the timer wheel's ticks. */
+    static final long TimerTolerance = 2 * CommandScheduler.TimerTickDuration;
+
+    /**
+     * A command which records its executions.
+     * Each execution completes after the command's latency, unless the command hangs; the first
+     * failureCount executions of each command ID fail. Successful executions return the follow on
+     * commands set for their ID, if any. The first arg of each command is its ID.
+     */
+    class TestCommand implements Command, ExecutionLaneAware {
+
+        String lane;
+        long latency;
+        int failureCount;
+        boolean hangs;
+        /** Follow on commands, keyed by the ID of the command returning them. */
+        Map<String,List<CommandItem>> followOns = new HashMap<>();
+
+        TestCommand(String lane, long latency) {
+            this.lane = lane;
+            this.latency = latency;
+        }
+
+        @Override
+        public String getExecutionLane(String name) {
+            return lane;
+        }
+
+        @Override
+        public Q.Promise<List<CommandItem>> execute(String name, List args) {
+            final String id = (String)args.get( 0 );
+            final Q.Promise<List<CommandItem>> promise = new Q.Promise<>();
+            final int execution = recordStart( id, lane );
+            if( hangs ) {
+                return promise;
+            }
+            clock.runAt( clock.currentTimeMillis() + latency, new Runnable() {
+                @Override
+                public void run() {
+                    recordEnd( id, lane );
+                    if( execution < failureCount ) {
+                        promise.reject("Test failure");
+                    }
+                    else {
+                        List<CommandItem> commands = followOns.get( id );
+                        promise.resolve( commands != null ? commands : CommandScheduler.NoFollowOns );
+                    }
+                }
+            } );
+            return promise;
+        }
+    }
+
+    private SimulatedClock clock;
+    private SimulatedRunQueue runQueue;
+    private MemoryCommandQueueStore store;
+    private CommandScheduler scheduler;
+    /** The start times of each execution, keyed by command ID. */
+    private Map<String,List<Long>> startTimes;
+    /** The end times of each completed execution, keyed by command ID. */
+    private Map<String,List<Long>> endTimes;
+    /** The number of commands running in each lane. */
+    private Map<String,Integer> laneRunCounts;
+    /** The maximum number of commands running at once in each lane. */
+    private Map<String,Integer> maxLaneRunCounts;
+
+    @Before
+    public void setUp() {
+        clock = new SimulatedClock( StartTime );
+        runQueue = new SimulatedRunQueue();
+        store = new MemoryCommandQueueStore();
+        scheduler = new CommandScheduler( store );
+        scheduler.setClock( clock );
+        scheduler.setRunQueue( runQueue );
+        for( String lane : new String[]{ CommandScheduler.NetworkLane, CommandScheduler.DiskLane, CommandScheduler.DBLane, CommandScheduler.CPULane, CommandScheduler.DefaultLane } ) {
+            scheduler.setLaneExecutor( lane, CommandSchedulerSimulation.DirectExecutor );
+        }
+        RetryPolicy retryPolicy = new RetryPolicy( 1, 1000, 2, 60000 );
+        retryPolicy.setJitter( 0 );
+        scheduler.setDefaultRetryPolicy( retryPolicy );
+        startTimes = new HashMap<>();
+        endTimes = new HashMap<>();
+        laneRunCounts = new HashMap<>();
+        maxLaneRunCounts = new HashMap<>();
+    }
+
+    @Test
+    public void testLaneConcurrencyLimits() {
+        scheduler.setConcurrencyForLane( CommandScheduler.DiskLane, 1 );
+        scheduler.setConcurrencyForLane( CommandScheduler.NetworkLane, 2 );
+        scheduler.setCommand("test.disk", new TestCommand( CommandScheduler.DiskLane, 100 ) );
+        scheduler.setCommand("test.net", new TestCommand( CommandScheduler.NetworkLane, 100 ) );
+        scheduler.startService();
+        for( int i = 0; i < 6; i++ ) {
+            scheduler.appendCommand("test.disk", Arrays.asList( "d" + i ) );
+            scheduler.appendCommand("test.net", Arrays.asList( "n" + i ) );
+        }
+        scheduler.executeQueue();
+        runUntilIdle();
+
+        assertEquals( 1, (int)maxLaneRunCounts.get( CommandScheduler.DiskLane ) );
+        assertEquals( 2, (int)maxLaneRunCounts.get( CommandScheduler.NetworkLane ) );
+        for( int i = 0; i < 6; i++ ) {
+            assertEquals( 1, startTimes.get( "d" + i ).size() );
+            assertEquals( 1, startTimes.get( "n" + i ).size() );
+        }
+        // Disk commands run one at a time; a full network lane doesn't hold them up.
+        assertEquals( StartTime, getStartTime( "d0", 0 ) );
+        assertTrue( getStartTime( "d5", 0 ) >= StartTime + 500 );
+        assertTrue( getStartTime( "n5", 0 ) >= StartTime + 200 );
+        assertEquals( 0, store.countPending() );
+    }
+
+    @Test
+    public void testDependencyOrdering() {
+        TestCommand slow = new TestCommand( CommandScheduler.NetworkLane, 300 );
+        TestCommand fast = new TestCommand( CommandScheduler.DiskLane, 10 );
+        scheduler.setCommand("test.slow", slow );
+        scheduler.setCommand("test.fast", fast );
+        // a returns b1 and b2, which don't depend on each other; c depends on both; d follows c.
+        CommandItem b1 = new CommandItem("test.slow", "b1");
+        CommandItem b2 = new CommandItem("test.fast", "b2").dependsOn();
+        CommandItem c = new CommandItem("test.fast", "c").dependsOn( b1, b2 );
+        CommandItem d = new CommandItem("test.fast", "d");
+        slow.followOns.put("a", Arrays.asList( b1, b2, c, d ) );
+        scheduler.startService();
+        scheduler.appendCommand("test.slow", Arrays.asList( "a" ) );
+        scheduler.executeQueue();
+        runUntilIdle();
+
+        long aEnd = getEndTime( "a", 0 );
+        assertTrue( getStartTime( "b1", 0 ) >= aEnd );
+        assertTrue( getStartTime( "b2", 0 ) >= aEnd );
+        // b2 doesn't wait for b1.
+        assertTrue( getStartTime( "b2", 0 ) < getEndTime( "b1", 0 ) );
+        assertTrue( getStartTime( "c", 0 ) >= getEndTime( "b1", 0 ) );
+        assertTrue( getStartTime( "c", 0 ) >= getEndTime( "b2", 0 ) );
+        assertTrue( getStartTime( "d", 0 ) >= getEndTime( "c", 0 ) );
+        assertEquals( 0, store.countPending() );
+    }
+
+    @Test
+    public void testRetryBackoff() {
+        TestCommand command = new TestCommand( CommandScheduler.DefaultLane, 100 );
+        command.failureCount = 2;
+        scheduler.setCommand("test.flaky", command );
+        RetryPolicy retryPolicy = new RetryPolicy( 3, 1000, 2, 60000 );
+        retryPolicy.setJitter( 0 );
+        scheduler.setDefaultRetryPolicy( retryPolicy );
+        scheduler.startService();
+        scheduler.appendCommand("test.flaky", Arrays.asList( "r" ) );
+        scheduler.executeQueue();
+        runUntilIdle();
+
+        assertEquals( 3, startTimes.get("r").size() );
+        // The first retry waits 1s after the first failure, the second 2s after the second failure.
+        assertDelay( 1000, getEndTime( "r", 0 ), getStartTime( "r", 1 ) );
+        assertDelay( 2000, getEndTime( "r", 1 ), getStartTime( "r", 2 ) );
+        assertEquals( 0, store.countPending() );
+    }
+
+    @Test
+    public void testRetryGivesUp() {
+        TestCommand command = new TestCommand( CommandScheduler.DefaultLane, 100 );
+        command.failureCount = Integer.MAX_VALUE;
+        scheduler.setCommand("test.failing", command );
+        RetryPolicy retryPolicy = new RetryPolicy( 2, 1000, 2, 60000 );
+        retryPolicy.setJitter( 0 );
+        scheduler.setDefaultRetryPolicy( retryPolicy );
+        scheduler.startService();
+        scheduler.appendCommand("test.failing", Arrays.asList( "f" ) );
+        scheduler.executeQueue();
+        runUntilIdle();
+
+        assertEquals( 2, startTimes.get("f").size() );
+        assertEquals( 0, store.countPending() );
+    }
+
+    @Test
+    public void testTimeout() {
+        TestCommand command = new TestCommand( CommandScheduler.DefaultLane, 0 );
+        command.hangs = true;
+        scheduler.setCommand("test.hang", command );
+        scheduler.setDefaultCommandTimeout( 5000 );
+        RetryPolicy retryPolicy = new RetryPolicy( 2, 1000, 2, 60000 );
+        retryPolicy.setJitter( 0 );
+        scheduler.setDefaultRetryPolicy( retryPolicy );
+        scheduler.startService();
+        scheduler.appendCommand("test.hang", Arrays.asList( "t" ) );
+        scheduler.executeQueue();
+        runUntilIdle();
+
+        // The command times out after 5s, and is retried 1s later; the retry also times out.
+        assertEquals( 2, startTimes.get("t").size() );
+        assertDelay( 5000 + 1000, getStartTime( "t", 0 ), getStartTime( "t", 1 ) );
+        assertTrue( clock.currentTimeMillis() >= getStartTime( "t", 1 ) + 5000 );
+        assertEquals( 0, store.countPending() );
+    }
+
+    @Test
+    public void testTimedOutCallKeepsLaneSlot() {
+        // Calls to commands in the disk lane don't return until the test runs them.
+        final List<Runnable> calls = new ArrayList<>();
+        scheduler.setLaneExecutor( CommandScheduler.DiskLane, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                calls.add( runnable );
+            }
+        } );
+        scheduler.setConcurrencyForLane( CommandScheduler.DiskLane, 1 );
+        scheduler.setCommand("test.sync", new TestCommand( CommandScheduler.DiskLane, 100 ) );
+        Map<String,Number> timeouts = new HashMap<>();
+        timeouts.put("test.sync", 5000 );
+        scheduler.setCommandTimeouts( timeouts );
+        scheduler.startService();
+        scheduler.appendCommand("test.sync", Arrays.asList( "s0" ) );
+        scheduler.appendCommand("test.sync", Arrays.asList( "s1" ) );
+        scheduler.executeQueue();
+        runUntilIdle();
+
+        // s0 has timed out, but s1 doesn't start while the call to s0 is still running.
+        assertTrue( clock.currentTimeMillis() >= StartTime + 5000 );
+        assertEquals( 1, calls.size() );
+        assertEquals( 1, store.countPending() );
+        calls.remove( 0 ).run();
+        runUntilIdle();
+
+        // The call to s0 has returned, so s1 starts.
+        assertEquals( 1, calls.size() );
+        calls.remove( 0 ).run();
+        runUntilIdle();
+        assertEquals( 1, endTimes.get("s1").size() );
+        assertEquals( 0, store.countPending() );
+    }
+
+    @Test
+    public void testSimulationRecoversFromCrashes() {
+        CommandSchedulerSimulation simulation = new CommandSchedulerSimulation();
+        simulation.setCommandCount( 2000 );
+        simulation.setSeed( 1 );
+        simulation.setCrashCount( 5 );
+        Map<String,Object> results = simulation.run();
+        assertTrue( simulation.toJSON(), simulation.isCorrect() );
+        assertEquals( 5, results.get("crashes") );
+    }
+
+    /** Run the scheduler until it has no actions waiting and no timers set. */
+    private void runUntilIdle() {
+        while( runQueue.runNext() || clock.runNextTask() ) {
+            assertTrue("Test didn't finish", clock.currentTimeMillis() - StartTime < 24 * 60 * 60 * 1000 );
+        }
+    }
+
+    private int recordStart(String id, String lane) {
+        List<Long> times = startTimes.get( id );
+        if( times == null ) {
+            times = new ArrayList<>();
+            startTimes.put( id, times );
+        }
+        times.add( clock.currentTimeMillis() );
+        int running = getCount( laneRunCounts, lane ) + 1;
+        laneRunCounts.put( lane, running );
+        maxLaneRunCounts.put( lane, Math.max( running, getCount( maxLaneRunCounts, lane ) ) );
+        return times.size() - 1;
+    }
+
+    private void recordEnd(String id, String lane) {
+        List<Long> times = endTimes.get( id );
+        if( times == null ) {
+            times = new ArrayList<>();
+            endTimes.put( id, times );
+        }
+        times.add( clock.currentTimeMillis() );
+        laneRunCounts.put( lane, getCount( laneRunCounts, lane ) - 1 );
+    }
+
+    private long getStartTime(String id, int execution) {
+        return startTimes.get( id ).get( execution );
+    }
+
+    private long getEndTime(String id, int execution) {
+        return endTimes.get( id ).get( execution );
+    }
+
+    private static int getCount(Map<String,Integer> counts, String lane) {
+        Integer count = counts.get( lane );
+        return count != null ? count : 0;
+    }
+
+    /** Assert that the time between two events is the expected delay, allowing for timer ticks. */
+    private static void assertDelay(long expected, long from, long to) {
+        long delay = to - from;
+        assertTrue( String.format("Expected delay of %d ms, was %d ms", expected, delay ), delay >= expected && delay <= expected + TimerTolerance );
+    }
+}
@@ -0,0 +1,186 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the journal queue store, run against a journal in a temporary directory.
+ * A small segment size is used so that tests can force the journal to be compacted.
+ */
+public class JournalCommandQueueStoreTest {
+
+    /** The segment size used by tests; holds a few dozen records. */
+    static final int SegmentSize = 4096;
+    /** The number of commands appended and completed to force compaction. */
+    static final int FillerCount = 500;
+
+    File baseDir;
+    JournalCommandQueueStore store;
+    /** The row ID of the last command appended. */
+    long rowID;
+
+    @Before
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("journal").toFile();
+        store = openStore();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        deleteAll( baseDir );
+    }
+
+    /**
+     * Test that updates to a pending command are visible after the journal is compacted during
+     * writes, and that they survive a reopen.
+     */
+    @Test
+    public void testUpdatesAfterCompaction() {
+        CommandItem item = append("content.refresh", "a");
+        appendAndCompleteFillers();
+        assertTrue("Journal was not compacted", !getSegmentFile( 1 ).exists() );
+        update( item );
+        assertPending( item );
+        store.close();
+        store = openStore();
+        assertPending( item );
+    }
+
+    /**
+     * Test that updates to a pending command are visible after the journal is compacted when
+     * opened, and that they survive a further reopen.
+     */
+    @Test
+    public void testUpdatesAfterReopen() {
+        CommandItem item = append("content.refresh", "a");
+        item.attempts = 1;
+        item.notBefore = 1000;
+        store.reschedule( item );
+        // Fill two segments before completing the fillers, so that the journal isn't compacted
+        // until it's reopened.
+        List<CommandItem> fillers = new ArrayList<>();
+        while( !getSegmentFile( 3 ).exists() ) {
+            fillers.add( append("filler", fillers.size() ) );
+        }
+        for( CommandItem filler : fillers ) {
+            store.complete( filler );
+        }
+        assertTrue("Journal was compacted before reopen", getSegmentFile( 1 ).exists() );
+        store.close();
+        store = openStore();
+        assertTrue("Journal was not compacted on reopen", !getSegmentFile( 1 ).exists() );
+        assertPending( item );
+        update( item );
+        assertPending( item );
+        store.close();
+        store = openStore();
+        assertPending( item );
+    }
+
+    /** Test that dependencies are written to and replayed from the journal. */
+    @Test
+    public void testDependencies() {
+        CommandItem first = append("get", "a");
+        append("unpack", Arrays.asList( first.rowID ), "b");
+        store.close();
+        store = openStore();
+        List<CommandItem> pending = store.readPending( null, 10 );
+        assertEquals( 2, pending.size() );
+        assertEquals( 0, pending.get( 0 ).deps.size() );
+        assertEquals( Arrays.asList( first.rowID ), pending.get( 1 ).deps );
+    }
+
+    JournalCommandQueueStore openStore() {
+        JournalCommandQueueStore store = new JournalCommandQueueStore( baseDir );
+        store.setSegmentSize( SegmentSize );
+        store.open();
+        return store;
+    }
+
+    CommandItem append(String name, Object... args) {
+        return append( name, Collections.<String>emptyList(), args );
+    }
+
+    CommandItem append(String name, List<String> deps, Object... args) {
+        CommandItem item = new CommandItem( name, args );
+        item.deps = deps;
+        rowID++;
+        item.rowID = String.valueOf( rowID );
+        item.rank = rowID;
+        store.append( item );
+        return item;
+    }
+
+    /** Append and complete enough commands to fill several segments. */
+    void appendAndCompleteFillers() {
+        for( int i = 0; i < FillerCount; i++ ) {
+            store.complete( append("filler", i ) );
+        }
+    }
+
+    /** Reschedule, checkpoint and update the args of a command. */
+    void update(CommandItem item) {
+        item.attempts++;
+        item.notBefore += 5000;
+        store.reschedule( item );
+        item.checkpoint = "cursor-" + item.attempts;
+        store.checkpoint( item );
+        item.args = Arrays.asList("b", "c");
+        store.updateArgs( item );
+    }
+
+    /** Assert that a command is the only pending command, and that the store has its current state. */
+    void assertPending(CommandItem item) {
+        List<CommandItem> pending = store.readPending( null, 10 );
+        assertEquals( 1, pending.size() );
+        CommandItem stored = pending.get( 0 );
+        assertEquals( item.rowID, stored.rowID );
+        assertEquals( item.name, stored.name );
+        assertEquals( item.args, stored.args );
+        assertEquals( item.attempts, stored.attempts );
+        assertEquals( item.notBefore, stored.notBefore );
+        assertEquals( item.checkpoint, stored.checkpoint );
+    }
+
+    File getSegmentFile(int number) {
+        File dir = new File( baseDir, String.format("%s.journal", SQLiteCommandQueueStore.DefaultName ) );
+        return new File( dir, String.format("segment-%06d.log", number ) );
+    }
+
+    static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if( files != null ) {
+            for( File child : files ) {
+                deleteAll( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A benchmark of queue stores.
+ * Measures the rate at which commands can be appended to a store and then drained from it, in
+ * groups of writes as the scheduler writes them; and then runs a scheduler simulation on the
+ * store, to measure the store's effect on scheduler throughput.
+ * Used by the local benchmark of the in-memory and journal stores, and by the instrumented
+ * benchmark of the SQLite and journal stores; see CommandQueueStoreBenchmarkTest and
+ * SQLiteCommandQueueStoreBenchmarkTest.
+ */
+public class CommandQueueStoreBenchmark {
+
+    /** The number of commands appended and drained. */
+    private int commandCount = 10000;
+    /** The number of writes in each group. */
+    private int groupSize = 100;
+    /** The number of top level commands in the simulation workload; 0 to skip the simulation. */
+    private int simulationCommandCount = 10000;
+    /** The results, keyed by store name. */
+    private Map<String,Object> results = new LinkedHashMap<>();
+
+    public void setCommandCount(int commandCount) {
+        this.commandCount = commandCount;
+    }
+
+    public void setGroupSize(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    public void setSimulationCommandCount(int count) {
+        this.simulationCommandCount = count;
+    }
+
+    /**
+     * Run the benchmark on a store.
+     * The store should be empty and closed; it's closed again when the benchmark finishes.
+     * Returns the store's results.
+     */
+    public Map<String,Object> run(String name, CommandQueueStore store) {
+        Map<String,Object> storeResults = new LinkedHashMap<>();
+        store.open();
+        long startTime = System.currentTimeMillis();
+        for( int i = 0; i < commandCount; i += groupSize ) {
+            store.beginGroup();
+            for( int j = i; j < Math.min( i + groupSize, commandCount ); j++ ) {
+                CommandItem item = new CommandItem("benchmark.append", String.format("c%d", j ), "http://example.com/wp-json/semo/v1/posts");
+                item.rowID = String.valueOf( j + 1 );
+                item.rank = j;
+                store.append( item );
+            }
+            store.commitGroup();
+        }
+        long appendTime = System.currentTimeMillis() - startTime;
+        startTime = System.currentTimeMillis();
+        int drained = 0;
+        while( true ) {
+            List<CommandItem> items = store.readPending( null, groupSize );
+            if( items.size() == 0 ) {
+                break;
+            }
+            store.beginGroup();
+            for( CommandItem item : items ) {
+                store.complete( item );
+            }
+            store.commitGroup();
+            drained += items.size();
+        }
+        long drainTime = System.currentTimeMillis() - startTime;
+        store.close();
+        storeResults.put("appended", commandCount );
+        storeResults.put("appendTime", appendTime );
+        storeResults.put("appendsPerSecond", getRate( commandCount, appendTime ) );
+        storeResults.put("drained", drained );
+        storeResults.put("drainTime", drainTime );
+        storeResults.put("drainsPerSecond", getRate( drained, drainTime ) );
+        if( simulationCommandCount > 0 ) {
+            CommandSchedulerSimulation simulation = new CommandSchedulerSimulation();
+            simulation.setCommandCount( simulationCommandCount );
+            simulation.setQueueStore( store );
+            simulation.run();
+            store.close();
+            storeResults.put("simulation", simulation.getResults() );
+        }
+        results.put( name, storeResults );
+        return storeResults;
+    }
+
+    /** Return the results of all stores benchmarked, keyed by store name. */
+    public Map<String,Object> getResults() {
+        return results;
+    }
+
+    /** Return the results serialized as JSON. */
+    public String toJSON() {
+        return JSONValue.toJSONString( results );
+    }
+
+    /** Write the results as JSON to a file. */
+    public void writeResults(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter( new FileOutputStream( file ), "UTF-8");
+        try {
+            writer.write( toJSON() );
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    static double getRate(int count, long time) {
+        return time > 0 ? count * 1000.0 / time : 0;
+    }
+}
@@ -0,0 +1,438 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import org.json.simple.JSONValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A deterministic simulation of a command scheduler, used to measure scheduler throughput and
+ * latency and to check its recovery from crashes, without a content server.
+ *
+ * The scheduler is run using a simulated clock, a single threaded run queue, an in-memory queue
+ * store unless another store is set, and simulated commands with configurable latencies and
+ * failure rates; every command execution, timer and store write happens in a reproducible order,
+ * so two runs with the same settings produce the same results. A workload of top level commands
+ * is appended at random intervals; follow on commands returned by the simulated commands extend
+ * the workload.
+ *
+ * Crashes can be injected at points spread evenly over the workload, each a random number of
+ * steps after the append of a top level command. A crash discards the scheduler, its pending run
+ * queue actions and timers, all running executions, and the store's uncommitted group of writes;
+ * a new scheduler is then started on the same store. Other stores are instead closed and
+ * reopened, so that the store itself decides which writes survive. The simulation checks that:
+ * every command which was durably queued is eventually executed, successfully or until its retry
+ * policy gives up; no follow on command starts before the command it depends on has finished; and
+ * the queue is empty at the end of the run. Commands may be executed more than once after a crash;
+ * repeat executions are reported but aren't errors.
+ *
+ * The scheduler is run on the calling thread; as a local unit test with default values returned
+ * by the Android stubs (see CommandSchedulerTest), or as an instrumented test for stores which
+ * need a device (see SQLiteCommandQueueStoreBenchmarkTest). Simulated times are in ms; the results
+ * also give the wall clock time taken, a measure of the scheduler's own overhead.
+ */
+public class CommandSchedulerSimulation {
+
+    static final String Tag = CommandSchedulerSimulation.class.getSimpleName();
+
+    /** The simulated time at which runs start; an arbitrary fixed time. */
+    static final long StartTime = 1451606400000L;
+    /** The maximum number of errors listed in the results. */
+    static final int MaxReportedErrors = 20;
+
+    /** The execution record of a single simulated command. */
+    static class CommandRecord {
+        /** The simulated time the command was appended to the queue; 0 for follow on commands. */
+        long appendTime;
+        /** The number of executions started. */
+        int executions;
+        /** The number of failed executions. */
+        int failures;
+        /** Flag indicating that an execution has succeeded. */
+        boolean succeeded;
+    }
+
+    /** An executor which starts commands immediately, on the calling thread. */
+    static final Executor DirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /** The number of top level commands in the workload. */
+    private int commandCount = 100000;
+    /** The seed used to generate the workload and command behaviour. */
+    private long seed = 1;
+    /** The mean interval, in ms, between top level commands. */
+    private long meanAppendInterval = 20;
+    /** The number of crashes injected, spread evenly over the workload. */
+    private int crashCount;
+    /** The maximum number of attempts to execute each command. */
+    private int maxAttempts = 4;
+    /** The maximum simulated duration of a run, in ms; a run still going after this is an error. */
+    private long maxSimulatedTime = 7L * 24 * 60 * 60 * 1000;
+    /** Simulated commands, keyed by name. */
+    private Map<String,SimulatedCommand> commands = new LinkedHashMap<>();
+    /** The relative frequency of each command in the workload, keyed by name. */
+    private Map<String,Float> workloadWeights = new LinkedHashMap<>();
+
+    /** The simulated clock. */
+    private SimulatedClock clock;
+    /** The queue store set for runs; null if each run uses a new in-memory store. */
+    private CommandQueueStore queueStore;
+    /** The queue store; shared by the schedulers started after each crash. */
+    private CommandQueueStore store;
+    /** The current scheduler. */
+    private CommandScheduler scheduler;
+    /** The current scheduler's run queue. */
+    private SimulatedRunQueue runQueue;
+    /** Execution records, keyed by command ID. */
+    private Map<String,CommandRecord> records;
+    /** The IDs of commands found in the queue store after a crash. */
+    private Set<String> durableIDs;
+    /** Execution latency of all executions. */
+    private CommandSchedulerMetrics.Histogram executionLatency;
+    /** Time from append to first successful completion, for top level commands. */
+    private CommandSchedulerMetrics.Histogram completionLatency;
+    /** Errors found by the run's checks. */
+    private List<String> errors;
+    /** The number of errors found; can be greater than the number listed. */
+    private int errorCount;
+    /** The number of executions started after a command had already succeeded. */
+    private int repeatExecutions;
+    /** The simulated time of the last command completion. */
+    private long lastCompletionTime;
+    /** The results of the last run. */
+    private Map<String,Object> results;
+
+    /** Create a simulation with the default command mix. */
+    public CommandSchedulerSimulation() {
+        SimulatedCommand fetch = addCommand("sim.fetch", CommandScheduler.NetworkLane, 100, 0.05f, 0.6f );
+        fetch.setFollowOns( 0.3f, "sim.write", "sim.index" );
+        addCommand("sim.write", CommandScheduler.DiskLane, 20, 0.01f, 0.2f );
+        addCommand("sim.index", CommandScheduler.DBLane, 5, 0, 0 );
+        addCommand("sim.compute", CommandScheduler.CPULane, 40, 0, 0.2f );
+    }
+
+    /**
+     * Add a simulated command, or replace an existing command with the same name.
+     * @param weight    The command's relative frequency in the workload; 0 if the command is only
+     *                  used as a follow on command.
+     */
+    public SimulatedCommand addCommand(String name, String lane, long meanLatency, float failureRate, float weight) {
+        SimulatedCommand command = new SimulatedCommand( this );
+        command.setLane( lane );
+        command.setMeanLatency( meanLatency );
+        command.setFailureRate( failureRate );
+        commands.put( name, command );
+        if( weight > 0 ) {
+            workloadWeights.put( name, weight );
+        }
+        else {
+            workloadWeights.remove( name );
+        }
+        return command;
+    }
+
+    public void setCommandCount(int commandCount) {
+        this.commandCount = commandCount;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setMeanAppendInterval(long interval) {
+        this.meanAppendInterval = Math.max( interval, 0 );
+    }
+
+    public void setCrashCount(int crashCount) {
+        this.crashCount = Math.max( crashCount, 0 );
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max( maxAttempts, 1 );
+    }
+
+    public void setMaxSimulatedTime(long time) {
+        this.maxSimulatedTime = time;
+    }
+
+    /**
+     * Set the queue store used by runs. The store should be empty. Runs open the store but don't
+     * close it.
+     */
+    public void setQueueStore(CommandQueueStore store) {
+        this.queueStore = store;
+    }
+
+    /** Run the simulation. Returns the results; see getResults(). */
+    public Map<String,Object> run() {
+        clock = new SimulatedClock( StartTime );
+        store = queueStore != null ? queueStore : new MemoryCommandQueueStore();
+        records = new HashMap<>();
+        durableIDs = new HashSet<>();
+        executionLatency = new CommandSchedulerMetrics.Histogram();
+        completionLatency = new CommandSchedulerMetrics.Histogram();
+        errors = new ArrayList<>();
+        errorCount = 0;
+        repeatExecutions = 0;
+        lastCompletionTime = StartTime;
+
+        Random workload = new Random( seed );
+        List<String> names = new ArrayList<>( workloadWeights.keySet() );
+        float totalWeight = 0;
+        for( float weight : workloadWeights.values() ) {
+            totalWeight += weight;
+        }
+        int crashes = 0;
+        int nextCrash = crashCount > 0 ? commandCount / (crashCount + 1) : Integer.MAX_VALUE;
+        // The number of steps until the next crash; 0 if no crash is due.
+        int crashCountdown = 0;
+        int appended = 0;
+        long nextAppendTime = StartTime;
+        long wallStartTime = System.currentTimeMillis();
+        long actions = 0;
+
+        startScheduler();
+        while( true ) {
+            if( crashCountdown > 0 && --crashCountdown == 0 ) {
+                crash();
+                crashes++;
+            }
+            if( runQueue.runNext() ) {
+                actions++;
+                continue;
+            }
+            long nextTaskTime = clock.getNextTaskTime();
+            if( appended < commandCount && nextAppendTime <= nextTaskTime ) {
+                clock.setTime( nextAppendTime );
+                // Append the next top level command.
+                String id = String.format("c%d", appended );
+                String name = pickName( names, totalWeight, workload );
+                CommandRecord record = new CommandRecord();
+                record.appendTime = nextAppendTime;
+                records.put( id, record );
+                scheduler.appendCommand( name, Arrays.asList( id ) );
+                scheduler.executeQueue();
+                appended++;
+                nextAppendTime += (long)(-meanAppendInterval * Math.log( 1 - workload.nextDouble() ));
+                if( appended == nextCrash ) {
+                    // Crash after a random number of further steps, so that crashes happen at
+                    // different points in the scheduler's processing.
+                    crashCountdown = 1 + workload.nextInt( 200 );
+                    int scheduled = crashes + 1;
+                    nextCrash = scheduled < crashCount ? commandCount * (scheduled + 1) / (crashCount + 1) : Integer.MAX_VALUE;
+                }
+            }
+            else if( nextTaskTime != Long.MAX_VALUE ) {
+                if( nextTaskTime - StartTime > maxSimulatedTime ) {
+                    reportError( String.format("Run didn't finish within %d ms of simulated time", maxSimulatedTime ) );
+                    break;
+                }
+                clock.runNextTask();
+                actions++;
+            }
+            else {
+                break;
+            }
+        }
+        long wallTime = System.currentTimeMillis() - wallStartTime;
+
+        // Check that every durably queued command was executed to completion.
+        int succeeded = 0, failed = 0, unqueued = 0;
+        for( String id : records.keySet() ) {
+            CommandRecord record = records.get( id );
+            if( record.succeeded ) {
+                succeeded++;
+            }
+            else if( record.failures >= maxAttempts ) {
+                failed++;
+            }
+            else if( durableIDs.contains( id ) || record.executions > 0 ) {
+                reportError( String.format("Command %s was queued but not completed (%d executions)", id, record.executions ) );
+            }
+            else {
+                // Appended but lost in a crash before the scheduler accepted it.
+                unqueued++;
+            }
+        }
+        int pending = store.countPending();
+        if( pending > 0 ) {
+            reportError( String.format("%d commands left pending", pending ) );
+        }
+
+        long simulatedTime = lastCompletionTime - StartTime;
+        results = new LinkedHashMap<>();
+        results.put("store", store.getClass().getSimpleName() );
+        results.put("seed", seed );
+        results.put("appended", appended );
+        results.put("commands", records.size() );
+        results.put("succeeded", succeeded );
+        results.put("failed", failed );
+        results.put("unqueued", unqueued );
+        results.put("repeatExecutions", repeatExecutions );
+        results.put("crashes", crashes );
+        results.put("simulatedTime", simulatedTime );
+        results.put("commandsPerSecond", simulatedTime > 0 ? (succeeded + failed) * 1000.0 / simulatedTime : 0 );
+        results.put("executionLatency", executionLatency.toMap() );
+        results.put("completionLatency", completionLatency.toMap() );
+        results.put("wallTime", wallTime );
+        results.put("actions", actions );
+        results.put("actionsPerSecond", wallTime > 0 ? actions * 1000.0 / wallTime : 0 );
+        results.put("errorCount", errorCount );
+        results.put("errors", errors );
+        return results;
+    }
+
+    /** Return the results of the last run; null if the simulation hasn't been run. */
+    public Map<String,Object> getResults() {
+        return results;
+    }
+
+    /** Test whether the last run's checks found no errors. */
+    public boolean isCorrect() {
+        return results != null && errorCount == 0;
+    }
+
+    /** Return the results of the last run serialized as JSON. */
+    public String toJSON() {
+        return JSONValue.toJSONString( results );
+    }
+
+    SimulatedClock getClock() {
+        return clock;
+    }
+
+    /** Return a random number generator derived from the simulation's seed and a key. */
+    Random newRandom(String key) {
+        return new Random( seed * 31 + key.hashCode() );
+    }
+
+    /**
+     * Record the start of a command execution.
+     * @param dependencyID  The ID of the command the command depends on; or null.
+     * Returns the number of the execution, starting at 0.
+     */
+    int recordStart(String id, String dependencyID) {
+        CommandRecord record = records.get( id );
+        if( record == null ) {
+            record = new CommandRecord();
+            records.put( id, record );
+        }
+        if( record.succeeded ) {
+            repeatExecutions++;
+        }
+        if( dependencyID != null ) {
+            CommandRecord dependency = records.get( dependencyID );
+            if( dependency == null || !(dependency.succeeded || dependency.failures >= maxAttempts) ) {
+                reportError( String.format("Command %s started before its dependency %s finished", id, dependencyID ) );
+            }
+        }
+        return record.executions++;
+    }
+
+    /** Record the completion of a command execution. */
+    void recordCompletion(String id, long latency, boolean succeeded) {
+        CommandRecord record = records.get( id );
+        long now = clock.currentTimeMillis();
+        executionLatency.record( latency );
+        lastCompletionTime = Math.max( lastCompletionTime, now );
+        if( !succeeded ) {
+            record.failures++;
+        }
+        else if( !record.succeeded ) {
+            record.succeeded = true;
+            if( record.appendTime > 0 ) {
+                completionLatency.record( now - record.appendTime );
+            }
+        }
+    }
+
+    /** Create and start a new scheduler on the simulation's store. */
+    private void startScheduler() {
+        runQueue = new SimulatedRunQueue();
+        scheduler = new CommandScheduler( store );
+        scheduler.setClock( clock );
+        scheduler.setRunQueue( runQueue );
+        for( String lane : new String[]{ CommandScheduler.NetworkLane, CommandScheduler.DiskLane, CommandScheduler.DBLane, CommandScheduler.CPULane, CommandScheduler.DefaultLane } ) {
+            scheduler.setLaneExecutor( lane, DirectExecutor );
+        }
+        // The CPU lane's default concurrency depends on the host; fix it so runs are reproducible.
+        scheduler.setConcurrencyForLane( CommandScheduler.CPULane, 4 );
+        RetryPolicy retryPolicy = new RetryPolicy( maxAttempts, 1000, 2, 60000 );
+        retryPolicy.setJitter( 0 );
+        scheduler.setDefaultRetryPolicy( retryPolicy );
+        for( String name : commands.keySet() ) {
+            scheduler.setCommand( name, commands.get( name ) );
+        }
+        scheduler.startService();
+    }
+
+    /**
+     * Simulate a crash: discard the scheduler, its pending actions and timers, running executions
+     * and uncommitted writes, then start a new scheduler on the same store.
+     */
+    private void crash() {
+        runQueue.clear();
+        clock.clear();
+        if( store instanceof MemoryCommandQueueStore ) {
+            ((MemoryCommandQueueStore)store).abandonGroup();
+        }
+        else {
+            // Reopen the store to find which writes it recovers; the new scheduler opens it again.
+            store.close();
+            store.open();
+        }
+        for( CommandItem item : store.readPendingByAge( null, false, Integer.MAX_VALUE ) ) {
+            durableIDs.add( (String)item.args.get( 0 ) );
+        }
+        if( !(store instanceof MemoryCommandQueueStore) ) {
+            store.close();
+        }
+        startScheduler();
+    }
+
+    /** Pick a command name for the workload, according to the command weights. */
+    private String pickName(List<String> names, float totalWeight, Random random) {
+        float value = random.nextFloat() * totalWeight;
+        for( String name : names ) {
+            value -= workloadWeights.get( name );
+            if( value < 0 ) {
+                return name;
+            }
+        }
+        return names.get( names.size() - 1 );
+    }
+
+    private void reportError(String error) {
+        if( errors.size() < MaxReportedErrors ) {
+            errors.add( error );
+        }
+        errorCount++;
+    }
+}
@@ -0,0 +1,314 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A command queue store which holds commands in memory.
+ * Used to run the scheduler in tests. abandonGroup() discards the writes of an uncommitted group,
+ * as happens to a persistent store when the app is terminated before the group is committed; see
+ * CommandQueueStore. Records of executed commands are never retained.
+ */
+public class MemoryCommandQueueStore implements CommandQueueStore {
+
+    /** The previous state of a command record, recorded before a write within a group. */
+    static class UndoRecord {
+        /** The command's row ID. */
+        long rowID;
+        /** A copy of the command before the write; null if the command didn't exist. */
+        CommandItem previous;
+
+        UndoRecord(long rowID, CommandItem previous) {
+            this.rowID = rowID;
+            this.previous = previous;
+        }
+    }
+
+    /** The queue order; see CommandQueueStore. */
+    static final Comparator<CommandItem> QueueOrder = new Comparator<CommandItem>() {
+        @Override
+        public int compare(CommandItem item1, CommandItem item2) {
+            if( item1.rank != item2.rank ) {
+                return item1.rank < item2.rank ? -1 : 1;
+            }
+            long rowID1 = Long.parseLong( item1.rowID ), rowID2 = Long.parseLong( item2.rowID );
+            return rowID1 < rowID2 ? -1 : (rowID1 == rowID2 ? 0 : 1);
+        }
+    };
+
+    /** Pending commands, keyed by row ID. */
+    private TreeMap<Long,CommandItem> items = new TreeMap<>();
+    /** Pending commands in queue order. */
+    private TreeSet<CommandItem> queue = new TreeSet<>( QueueOrder );
+    /** The number of pending commands with each dedup key; see getDedupKey(). */
+    private Map<String,Integer> dedupKeys = new HashMap<>();
+    /** The highest row ID appended to the store. */
+    private long maxRowID;
+    /** The nesting depth of the current group of writes; 0 if no group is open. */
+    private int groupDepth;
+    /** Records of the state of commands written within the current group, in write order. */
+    private List<UndoRecord> undoLog = new ArrayList<>();
+
+    @Override
+    public void setName(String name) {}
+
+    @Override
+    public void setDeleteExecutedRecords(boolean delete) {}
+
+    @Override
+    public void setArchiveRetention(int maxRecords, long maxAge) {}
+
+    @Override
+    public void open() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public List<CommandItem> readPending(CommandItem after, int limit) {
+        List<CommandItem> result = new ArrayList<>();
+        for( CommandItem item : after == null ? queue : queue.tailSet( after, false ) ) {
+            if( result.size() >= limit ) {
+                break;
+            }
+            result.add( copy( item ) );
+        }
+        return result;
+    }
+
+    @Override
+    public int countPending() {
+        return items.size();
+    }
+
+    @Override
+    public Map<String,Integer> countPendingByName() {
+        Map<String,Integer> counts = new HashMap<>();
+        for( CommandItem item : items.values() ) {
+            Integer count = counts.get( item.name );
+            counts.put( item.name, count == null ? 1 : count + 1 );
+        }
+        return counts;
+    }
+
+    @Override
+    public List<CommandItem> readPendingByAge(String name, boolean newest, int limit) {
+        List<CommandItem> result = new ArrayList<>();
+        NavigableMap<Long,CommandItem> byAge = newest ? items.descendingMap() : items;
+        for( CommandItem item : byAge.values() ) {
+            if( result.size() >= limit ) {
+                break;
+            }
+            if( name == null || name.equals( item.name ) ) {
+                result.add( copy( item ) );
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getMaxRowID() {
+        return maxRowID;
+    }
+
+    @Override
+    public boolean containsPending(CommandItem item) {
+        return dedupKeys.containsKey( getDedupKey( item ) );
+    }
+
+    @Override
+    public void append(CommandItem item) {
+        long rowID = Long.parseLong( item.rowID );
+        // Row IDs aren't reused, even if the append is abandoned.
+        maxRowID = Math.max( maxRowID, rowID );
+        put( rowID, copy( item ) );
+    }
+
+    @Override
+    public void complete(CommandItem item) {
+        remove( Long.parseLong( item.rowID ) );
+    }
+
+    @Override
+    public void reschedule(CommandItem item) {
+        CommandItem stored = getCopy( item.rowID );
+        if( stored != null ) {
+            stored.attempts = item.attempts;
+            stored.notBefore = item.notBefore;
+            put( Long.parseLong( item.rowID ), stored );
+        }
+    }
+
+    @Override
+    public void checkpoint(CommandItem item) {
+        CommandItem stored = getCopy( item.rowID );
+        if( stored != null ) {
+            stored.checkpoint = item.checkpoint;
+            put( Long.parseLong( item.rowID ), stored );
+        }
+    }
+
+    @Override
+    public void updateArgs(CommandItem item) {
+        CommandItem stored = getCopy( item.rowID );
+        if( stored != null ) {
+            stored.args = new ArrayList<Object>( item.args );
+            put( Long.parseLong( item.rowID ), stored );
+        }
+    }
+
+    @Override
+    public void purge() {
+        for( CommandItem item : new ArrayList<>( items.values() ) ) {
+            if( item.repeatInterval == 0 ) {
+                remove( Long.parseLong( item.rowID ) );
+            }
+        }
+    }
+
+    @Override
+    public void purgeBatch(int batch) {
+        for( CommandItem item : new ArrayList<>( items.values() ) ) {
+            if( item.batch == batch && item.repeatInterval == 0 ) {
+                remove( Long.parseLong( item.rowID ) );
+            }
+        }
+    }
+
+    @Override
+    public void purgeCommands(String name) {
+        for( CommandItem item : new ArrayList<>( items.values() ) ) {
+            if( item.name.equals( name ) ) {
+                remove( Long.parseLong( item.rowID ) );
+            }
+        }
+    }
+
+    @Override
+    public void beginGroup() {
+        groupDepth++;
+    }
+
+    @Override
+    public void commitGroup() {
+        if( groupDepth > 0 && --groupDepth == 0 ) {
+            undoLog.clear();
+        }
+    }
+
+    /**
+     * Discard all writes made within the current uncommitted group, and close the group.
+     * Used to simulate the app being terminated before the group is committed.
+     */
+    public void abandonGroup() {
+        for( int i = undoLog.size() - 1; i >= 0; i-- ) {
+            UndoRecord undo = undoLog.get( i );
+            removeItem( undo.rowID );
+            if( undo.previous != null ) {
+                putItem( undo.rowID, undo.previous );
+            }
+        }
+        undoLog.clear();
+        groupDepth = 0;
+    }
+
+    /** Write a command record, recording its previous state if within a group. */
+    private void put(long rowID, CommandItem item) {
+        recordUndo( rowID );
+        removeItem( rowID );
+        putItem( rowID, item );
+    }
+
+    /** Remove a command record, recording its previous state if within a group. */
+    private void remove(long rowID) {
+        if( items.containsKey( rowID ) ) {
+            recordUndo( rowID );
+            removeItem( rowID );
+        }
+    }
+
+    private void recordUndo(long rowID) {
+        if( groupDepth > 0 ) {
+            CommandItem previous = items.get( rowID );
+            undoLog.add( new UndoRecord( rowID, previous != null ? copy( previous ) : null ) );
+        }
+    }
+
+    private void putItem(long rowID, CommandItem item) {
+        items.put( rowID, item );
+        queue.add( item );
+        String dedupKey = getDedupKey( item );
+        Integer count = dedupKeys.get( dedupKey );
+        dedupKeys.put( dedupKey, count == null ? 1 : count + 1 );
+    }
+
+    private void removeItem(long rowID) {
+        CommandItem item = items.remove( rowID );
+        if( item != null ) {
+            queue.remove( item );
+            String dedupKey = getDedupKey( item );
+            Integer count = dedupKeys.get( dedupKey );
+            if( count != null && count > 1 ) {
+                dedupKeys.put( dedupKey, count - 1 );
+            }
+            else {
+                dedupKeys.remove( dedupKey );
+            }
+        }
+    }
+
+    /** Return a copy of a pending command; null if not found. */
+    private CommandItem getCopy(String rowID) {
+        CommandItem item = items.get( Long.parseLong( rowID ) );
+        return item != null ? copy( item ) : null;
+    }
+
+    /**
+     * Return a key identifying duplicate commands: commands with the same batch, name, args and
+     * repeat interval.
+     */
+    private String getDedupKey(CommandItem item) {
+        return String.format("%d:%d:%s:%s", item.batch, item.repeatInterval, item.name, item.getArgsJSON() );
+    }
+
+    /**
+     * Copy a command's persisted fields. Commands are copied in and out of the store, so that
+     * changes made by the scheduler to its own copies aren't visible in the store until written.
+     */
+    private CommandItem copy(CommandItem item) {
+        CommandItem copy = new CommandItem();
+        copy.rowID = item.rowID;
+        copy.batch = item.batch;
+        copy.name = item.name;
+        copy.args = item.args != null ? new ArrayList<Object>( item.args ) : null;
+        copy.priority = item.getPriority();
+        copy.rank = item.rank;
+        copy.deps = new ArrayList<>( item.deps );
+        copy.attempts = item.attempts;
+        copy.notBefore = item.notBefore;
+        copy.repeatInterval = item.repeatInterval;
+        copy.checkpoint = item.checkpoint;
+        return copy;
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import java.util.PriorityQueue;
+
+/**
+ * A simulated clock, used to run a command scheduler deterministically.
+ * Time only advances when the clock's owner calls runNextTask() or setTime(). Tasks scheduled
+ * using runAt() are run in time order, and tasks due at the same time are run in the order they
+ * were scheduled. The clock isn't thread safe; it is intended to be driven by a single thread,
+ * together with a SimulatedRunQueue.
+ */
+public class SimulatedClock implements CommandSchedulerClock {
+
+    /** A scheduled task. */
+    static class ScheduledTask implements Comparable<ScheduledTask> {
+        /** The time the task is due. */
+        long time;
+        /** The task's sequence number; orders tasks due at the same time. */
+        long sequence;
+        /** The task. */
+        Runnable task;
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            if( time != other.time ) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /** The current time, in ms. */
+    private long now;
+    /** Scheduled tasks, ordered by due time. */
+    private PriorityQueue<ScheduledTask> tasks = new PriorityQueue<>();
+    /** The sequence number of the next scheduled task. */
+    private long nextSequence;
+
+    /**
+     * Create a new simulated clock.
+     * @param startTime The clock's initial time, in ms.
+     */
+    public SimulatedClock(long startTime) {
+        this.now = startTime;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void runAt(long time, Runnable task) {
+        ScheduledTask scheduledTask = new ScheduledTask();
+        scheduledTask.time = Math.max( time, now );
+        scheduledTask.sequence = nextSequence++;
+        scheduledTask.task = task;
+        tasks.add( scheduledTask );
+    }
+
+    /** Return the due time of the next scheduled task; Long.MAX_VALUE if no tasks are scheduled. */
+    public long getNextTaskTime() {
+        ScheduledTask next = tasks.peek();
+        return next != null ? next.time : Long.MAX_VALUE;
+    }
+
+    /**
+     * Advance the clock to the due time of the next scheduled task, and run the task.
+     * Returns false if no tasks are scheduled.
+     */
+    public boolean runNextTask() {
+        ScheduledTask next = tasks.poll();
+        if( next == null ) {
+            return false;
+        }
+        now = next.time;
+        next.task.run();
+        return true;
+    }
+
+    /** Advance the clock to the specified time, without running any tasks. */
+    public void setTime(long time) {
+        now = Math.max( now, time );
+    }
+
+    /** Discard all scheduled tasks. */
+    public void clear() {
+        tasks.clear();
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import com.innerfunction.q.Q;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.innerfunction.semo.commands.CommandScheduler.CommandItem;
+
+/**
+ * A fake command, used by CommandSchedulerSimulation.
+ * Each execution completes after a random latency, exponentially distributed around the command's
+ * mean latency, and fails with the command's failure rate. A successful execution may return a
+ * chain of follow on commands. The first arg of each command is a unique command ID; follow on
+ * commands have a second arg, the ID of the command they depend on.
+ *
+ * Random values are derived from the simulation's seed and the command's ID, rather than drawn
+ * from a shared sequence, so that each command behaves the same regardless of the order in which
+ * the scheduler executes commands; this allows runs of different scheduler implementations with
+ * the same workload to be compared.
+ */
+public class SimulatedCommand implements Command, ExecutionLaneAware {
+
+    /** The simulation the command belongs to. */
+    private CommandSchedulerSimulation simulation;
+    /** The lane the command executes in. */
+    private String lane = CommandScheduler.DefaultLane;
+    /** The mean execution latency, in ms. */
+    private long meanLatency = 100;
+    /** The proportion of executions which fail. */
+    private float failureRate;
+    /** The proportion of successful executions which return follow on commands. */
+    private float followOnRate;
+    /** The names of the follow on commands returned; each depends on the one before it. */
+    private List<String> followOnNames = Collections.emptyList();
+
+    SimulatedCommand(CommandSchedulerSimulation simulation) {
+        this.simulation = simulation;
+    }
+
+    public void setLane(String lane) {
+        this.lane = lane;
+    }
+
+    public void setMeanLatency(long meanLatency) {
+        this.meanLatency = Math.max( meanLatency, 0 );
+    }
+
+    public void setFailureRate(float failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Set the follow on commands returned by successful executions.
+     * @param rate  The proportion of successful executions which return the follow on commands.
+     * @param names The names of the follow on commands, in execution order.
+     */
+    public void setFollowOns(float rate, String... names) {
+        this.followOnRate = rate;
+        this.followOnNames = Arrays.asList( names );
+    }
+
+    @Override
+    public String getExecutionLane(String name) {
+        return lane;
+    }
+
+    @Override
+    public Q.Promise<List<CommandItem>> execute(String name, List args) {
+        final String id = (String)args.get( 0 );
+        final String dependencyID = args.size() > 1 ? (String)args.get( 1 ) : null;
+        final int execution = simulation.recordStart( id, dependencyID );
+        final long startTime = simulation.getClock().currentTimeMillis();
+        // Each execution of the command has its own latency and outcome.
+        Random random = simulation.newRandom( id + "#" + execution );
+        final long latency = (long)(-meanLatency * Math.log( 1 - random.nextDouble() ));
+        final boolean failed = random.nextDouble() < failureRate;
+        // Follow on commands are the same for every execution of the command.
+        final List<CommandItem> followOns = new ArrayList<>();
+        if( followOnNames.size() > 0 && simulation.newRandom( id ).nextDouble() < followOnRate ) {
+            String previousID = id;
+            for( int i = 0; i < followOnNames.size(); i++ ) {
+                String followOnID = String.format("%s.%d", id, i + 1 );
+                followOns.add( new CommandItem( followOnNames.get( i ), followOnID, previousID ) );
+                previousID = followOnID;
+            }
+        }
+        final Q.Promise<List<CommandItem>> promise = new Q.Promise<>();
+        simulation.getClock().runAt( startTime + latency, new Runnable() {
+            @Override
+            public void run() {
+                simulation.recordCompletion( id, latency, !failed );
+                if( failed ) {
+                    promise.reject("Simulated failure");
+                }
+                else {
+                    promise.resolve( followOns );
+                }
+            }
+        } );
+        return promise;
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright 2016 InnerFunction Ltd.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+package com.innerfunction.semo.commands;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A command run queue which doesn't have its own thread; actions dispatched to the queue are run
+ * when the queue's owner calls runNext(). Used with a SimulatedClock to run a command scheduler
+ * deterministically. Not thread safe.
+ */
+public class SimulatedRunQueue implements CommandRunQueue {
+
+    /** Actions waiting to run. */
+    private Queue<Runnable> actions = new ArrayDeque<>();
+    /** Flag indicating that an action is running. */
+    private boolean running;
+
+    @Override
+    public void dispatch(Runnable action) {
+        actions.add( action );
+    }
+
+    @Override
+    public boolean isRunningOnQueueThread() {
+        return running;
+    }
+
+    /** Run the next action on the queue. Returns false if the queue is empty. */
+    public boolean runNext() {
+        Runnable action = actions.poll();
+        if( action == null ) {
+            return false;
+        }
+        running = true;
+        try {
+            action.run();
+        }
+        finally {
+            running = false;
+        }
+        return true;
+    }
+
+    /** Discard all actions waiting to run. */
+    public void clear() {
+        actions.clear();
+    }
+}